@@ -48,10 +48,18 @@ application {
     mainClass = "org.YAPM.App"
 }
 
+tasks.named<JavaExec>("run") {
+    // SQLite tuning of the vault files, see org.vault.SqliteProfile
+    System.getProperty("yapm.sqlite.profile")?.let { systemProperty("yapm.sqlite.profile", it) }
+}
+
 tasks.named<Test>("test") {
     // Use JUnit Platform for unit tests.
     useJUnitPlatform()
     testLogging {
       showStandardStreams = true
     }
+    // benchmarks only run with -Dyapm.bench=true
+    System.getProperty("yapm.bench")?.let { systemProperty("yapm.bench", it) }
+    System.getProperty("yapm.sqlite.profile")?.let { systemProperty("yapm.sqlite.profile", it) }
 }
@@ -6,6 +6,9 @@ import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableCellEditor;
 import java.awt.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
@@ -16,6 +19,10 @@ import org.YAPM.components.*;
 import org.misc.*;
 
 public class HomePanel extends JPanel {
+  // passwords are never put in the table model. The column shows a mask and the
+  // copy button decrypts the selected entry on demand
+  private static final int PASSWD_COLUMN = 2;
+  private static final String PASSWD_MASK = "••••••••";
 
   private final MainUI mainUI;
   private VaultManager vm;
@@ -30,13 +37,13 @@ public class HomePanel extends JPanel {
     // Initialize VaultManager
     LoginUser loginUser = App.currentLoginUser;
     String dbPath = loginUser.getDbFilePath();
-    String pwd = loginUser.getPlaintextPassword();
-    this.vm = new VaultManager(dbPath, pwd);
+    this.vm = new VaultManager(dbPath, loginUser.getMasterPasswd(), loginUser.getAccountKeys());
 
     // Connect and load entries
     if (vm.connectToDB() != VaultStatus.DBConnectionSuccess) {
       System.out.println("Failed to connect to DB");
     }
+    vm.startMaintenance(VaultConst.MAINTENANCE_PERIOD_MILLIS);
     if (vm.openVault(credentials) == VaultStatus.DBOpenVaultFailure) {
       System.out.println("Failed to open vault");
     }
@@ -97,25 +104,27 @@ public class HomePanel extends JPanel {
 
     // Set copy icon cell renderer/editor
     TableCellRenderer renderer = new CopyButtonCellRenderer();
-    TableCellEditor editor = new CopyButtonCellEditor();
+    TableCellEditor editor = newCellEditor();
     for (int i = 0; i < table.getColumnCount(); i++) {
       table.getColumnModel().getColumn(i).setCellRenderer(renderer);
       table.getColumnModel().getColumn(i).setCellEditor(editor);
     }
 
-    JPanel buttonPanel = new JPanel(new GridLayout(1, 5, 10, 0));
+    JPanel buttonPanel = new JPanel(new GridLayout(1, 6, 10, 0));
     buttonPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
     buttonPanel.setBackground(darkBg);
 
     JButton addButton = new JButton("Add");
     JButton refreshButton = new JButton("Refresh");
     JButton logoutButton = new JButton("Log Out");
+    JButton lockButton = new JButton("Lock");
     JButton editButton = new JButton("Edit");
     JButton deleteButton = new JButton("Delete");
+    JButton importButton = new JButton("Import");
 
     Font btnFont = new Font("Segoe UI", Font.PLAIN, 14);
     // JButton[] buttons = { refreshButton, addButton, editButton, deleteButton, logoutButton };
-    JButton[] buttons = { addButton, editButton, deleteButton, logoutButton };
+    JButton[] buttons = { addButton, editButton, deleteButton, importButton, lockButton, logoutButton };
     for (JButton btn : buttons) {
       btn.setFont(btnFont);
       btn.setBackground(darkBg.darker());
@@ -183,17 +192,19 @@ public class HomePanel extends JPanel {
 //      refreshEntryTable();
 //    });
 
+    // Import
+    importButton.addActionListener(e -> {
+      importEntries();
+    });
+
+    // Lock
+    lockButton.addActionListener(e -> {
+      lockVault();
+    });
+
     // Logout
     logoutButton.addActionListener(e -> {
-      this.vm.closeDB();
-      BackendError err = App.currentLoginUser.logout();
-      if (err != null) {
-        JOptionPane.showMessageDialog(this, "Failed to properly log out", "Error", JOptionPane.ERROR_MESSAGE);
-        System.err.println("[HomePanel.HomePanel] FATAL: Failed to properly log out: " + err.getErrorType() + " -> "
-            + err.getContext());
-      }
-      App.currentLoginUser = null;
-      mainUI.showPage("login");
+      logout();
     });
 
     // Edit entry
@@ -205,9 +216,17 @@ public class HomePanel extends JPanel {
       }
 
       Entry ent = credentials.get(row);
+      String passwd;
+      try {
+        passwd = ent.getPasswd();
+      } catch (IllegalStateException ex) {
+        JOptionPane.showMessageDialog(this, "Failed to decrypt the password!", "Error", JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+
       JTextField urlField = new JTextField(ent.getURL());
       JTextField usernameField = new JTextField(ent.getUsername());
-      JTextField passwordField = new JTextField(ent.getPasswd());
+      JTextField passwordField = new JTextField(passwd);
 
       JLabel strengthLabel = new JLabel(" ");
       strengthLabel.setBorder(new EmptyBorder(5, 0, 0, 0));
@@ -302,14 +321,187 @@ public class HomePanel extends JPanel {
       Entry e = credentials.get(i);
       rowData[i][0] = e.getUsername();
       rowData[i][1] = e.getURL();
-      rowData[i][2] = e.getPasswd();
+      rowData[i][PASSWD_COLUMN] = PASSWD_MASK;
     }
     return rowData;
   }
 
+  private TableCellEditor newCellEditor() {
+    return new CopyButtonCellEditor(PASSWD_COLUMN, row -> credentials.get(row).getPasswd());
+  }
+
+  private void logout() {
+    this.vm.close();
+    BackendError err = App.currentLoginUser.logout();
+    if (err != null) {
+      JOptionPane.showMessageDialog(this, "Failed to properly log out", "Error", JOptionPane.ERROR_MESSAGE);
+      System.err.println("[HomePanel.logout] FATAL: Failed to properly log out: " + err.getErrorType() + " -> "
+          + err.getContext());
+    }
+    App.currentLoginUser = null;
+    mainUI.showPage("login");
+  }
+
+  // CSV, Bitwarden JSON or KeePass XML export of another password manager,
+  // picked by its extension
+  private void importEntries() {
+    JFileChooser chooser = new JFileChooser();
+    chooser.setDialogTitle("Import Entries (.csv, .json, .xml)");
+    if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+      return;
+    }
+
+    File file = chooser.getSelectedFile();
+    ImportFormat format;
+    try {
+      format = ImportFormat.forFileName(file.getName());
+    } catch (IllegalArgumentException e) {
+      JOptionPane.showMessageDialog(this, "Unsupported file: " + file.getName(), "Error", JOptionPane.ERROR_MESSAGE);
+      return;
+    }
+
+    overlay.setVisible(true);
+    ImportReport report = new ImportReport();
+    SwingWorker<VaultStatus, Void> worker = new SwingWorker<>() {
+      @Override
+      protected VaultStatus doInBackground() throws Exception {
+        try (InputStream in = new FileInputStream(file)) {
+          return vm.importEntries(format, in, report);
+        }
+      }
+
+      @Override
+      protected void done() {
+        overlay.setVisible(false);
+
+        VaultStatus status;
+        try {
+          status = get();
+        } catch (Exception e) {
+          System.err.println("[HomePanel.importEntries] Failed to read " + file + ": " + e);
+          status = VaultStatus.DBImportFailureException;
+        }
+
+        if (status == VaultStatus.DBImportSuccess) {
+          JOptionPane.showMessageDialog(null, "Import finished: " + report, "Success",
+              JOptionPane.INFORMATION_MESSAGE);
+        } else {
+          JOptionPane.showMessageDialog(null, "Import failed: " + status + " (" + report + ")", "Error",
+              JOptionPane.ERROR_MESSAGE);
+        }
+        if (report.getImported() > 0) {
+          refreshEntryTable();
+        }
+      }
+    };
+    worker.execute();
+  }
+
+  // hides the entries until the session PIN is entered. The PIN unseals the
+  // data key directly (QuickUnlock), so unlocking skips the master password KDF.
+  // The PIN is chosen on the first lock of the session
+  private void lockVault() {
+    QuickUnlock quickUnlock = App.currentLoginUser.getQuickUnlock();
+    if (!quickUnlock.isArmed()) {
+      String pin = askForPin("Choose a PIN to unlock this session (at least "
+          + VaultConst.QUICK_UNLOCK_MIN_PIN_LENGTH + " characters):", "Lock Vault");
+      if (pin == null) {
+        return;
+      }
+
+      VaultStatus status = vm.enableQuickUnlock(pin, quickUnlock);
+      if (status != VaultStatus.DBEnableQuickUnlockSuccess) {
+        JOptionPane.showMessageDialog(this, "Failed to set the PIN: " + status, "Error", JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+    }
+
+    vm.closeDB();
+    credentials.clear();
+    reloadTable();
+
+    while (true) {
+      String pin = askForPin("Enter your PIN to unlock the vault:", "Vault Locked");
+      if (pin == null) {
+        logout();
+        return;
+      }
+
+      if (vm.connectToDB() != VaultStatus.DBConnectionSuccess) {
+        JOptionPane.showMessageDialog(this, "Failed to open vault!", "Error", JOptionPane.ERROR_MESSAGE);
+        logout();
+        return;
+      }
+
+      VaultStatus status = vm.quickUnlock(quickUnlock, pin);
+      if (status == VaultStatus.DBQuickUnlockSuccess) {
+        break;
+      }
+      if (status == VaultStatus.DBQuickUnlockWrongPin) {
+        vm.closeDB();
+        JOptionPane.showMessageDialog(this, "Wrong PIN. " + quickUnlock.getAttemptsLeft() + " attempt(s) left.",
+            "Error", JOptionPane.ERROR_MESSAGE);
+        continue;
+      }
+      if (status == VaultStatus.DBQuickUnlockStale) {
+        // the vault was re-keyed or replaced since the PIN was set. The manager
+        // still holds the master password, so only a typed one may open it
+        String passwd = askForPin("The vault changed since the PIN was set. Enter your master password:",
+            "Vault Locked");
+        if (passwd != null && vm.unlockWithMasterPasswd(passwd) == VaultStatus.DBOpenVaultSuccess) {
+          break;
+        }
+        JOptionPane.showMessageDialog(this, "Could not unlock the vault. Log in again.", "Error",
+            JOptionPane.ERROR_MESSAGE);
+        logout();
+        return;
+      }
+
+      // locked after too many wrong PINs, or the vault couldn't be read
+      JOptionPane.showMessageDialog(this, status == VaultStatus.DBQuickUnlockLocked
+          ? "Too many wrong PINs. Log in again."
+          : "Failed to unlock the vault: " + status + ". Log in again.", "Error", JOptionPane.ERROR_MESSAGE);
+      logout();
+      return;
+    }
+
+    if (vm.openVault(credentials) != VaultStatus.DBOpenVaultSuccess) {
+      JOptionPane.showMessageDialog(this, "Failed to reload entries!", "Error", JOptionPane.ERROR_MESSAGE);
+    }
+    reloadTable();
+  }
+
+  // null if the dialog was cancelled
+  private String askForPin(String message, String title) {
+    JPasswordField pinField = new JPasswordField();
+    JPanel panel = new JPanel(new GridLayout(0, 1));
+    panel.add(new JLabel(message));
+    panel.add(pinField);
+
+    int result = JOptionPane.showConfirmDialog(this, panel, title, JOptionPane.OK_CANCEL_OPTION,
+        JOptionPane.PLAIN_MESSAGE);
+    return result == JOptionPane.OK_OPTION ? new String(pinField.getPassword()) : null;
+  }
+
+  private void reloadTable() {
+    String[][] rowData = getRowData();
+    DefaultTableModel model = new DefaultTableModel(rowData, new String[] { "Username", "URL", "Password" });
+    table.setModel(model);
+
+    // reapply renderer/editor
+    TableCellRenderer renderer = new CopyButtonCellRenderer();
+    TableCellEditor editor = newCellEditor();
+    for (int i = 0; i < table.getColumnCount(); i++) {
+      table.getColumnModel().getColumn(i).setCellRenderer(renderer);
+      table.getColumnModel().getColumn(i).setCellEditor(editor);
+    }
+  }
+
+  // the sync may replace the vault file. The VaultManager lets go of it for
+  // the sync and carries its unlocked session over to the new file
   private void refreshEntryTable() {
     credentials.clear();
-    vm.close();
+    vm.suspend();
     overlay.setVisible(true);
 
     SwingWorker<Void, Void> worker = new SwingWorker<>() {
@@ -330,11 +522,7 @@ public class HomePanel extends JPanel {
       protected void done() {
         overlay.setVisible(false);
 
-        String dbPath = App.currentLoginUser.getDbFilePath();
-        String pwd = App.currentLoginUser.getPlaintextPassword();
-        vm = new VaultManager(dbPath, pwd);
-
-        VaultStatus resp = vm.connectToDB();
+        VaultStatus resp = vm.reopen(App.currentLoginUser.getDbFilePath());
         if (resp != VaultStatus.DBConnectionSuccess) {
           JOptionPane.showMessageDialog(null, "Failed to open vault!", "Error", JOptionPane.ERROR_MESSAGE);
           System.err.println("[HomePanel.refreshEntryTable] Failed to open vault: " + resp);
@@ -347,18 +535,7 @@ public class HomePanel extends JPanel {
           return;
         }
 
-        String[][] rowData = getRowData();
-        DefaultTableModel model = new DefaultTableModel(rowData, new String[] { "Username", "URL", "Password" });
-        table.setModel(model);
-
-        // reapply renderer/editor
-        TableCellRenderer renderer = new CopyButtonCellRenderer();
-        TableCellEditor editor = new CopyButtonCellEditor();
-        for (int i = 0; i < table.getColumnCount(); i++) {
-          table.getColumnModel().getColumn(i).setCellRenderer(renderer);
-          table.getColumnModel().getColumn(i).setCellEditor(editor);
-        }
-
+        reloadTable();
       }
     };
     worker.execute();
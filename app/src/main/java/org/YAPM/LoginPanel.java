@@ -5,6 +5,8 @@ import org.backend.*;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -12,10 +14,16 @@ import java.awt.font.TextAttribute;
 import java.util.Map;
 
 public class LoginPanel extends JPanel {
+  // how long both fields have to stay untouched before the key derivation is
+  // started in the background
+  private static final int SPECULATION_DEBOUNCE_MILLIS = 400;
+
   final MainUI mainUI;
   final JTextField usernameEmailField;
   final JPasswordField passField;
   private LoadingOverlay overlay;
+  private final SpeculativeLogin speculativeLogin = new SpeculativeLogin(DBConnection::connect);
+  private final Timer speculationDebounce;
 
   public LoginPanel(MainUI mainUI) {
     this.mainUI = mainUI;
@@ -96,6 +104,30 @@ public class LoginPanel extends JPanel {
     formPanel.add(passField);
     formPanel.add(Box.createVerticalStrut(20));
 
+    // Start deriving the keys once the user stops typing, so the KDF is
+    // usually done by the time Login is pressed
+    this.speculationDebounce = new Timer(SPECULATION_DEBOUNCE_MILLIS, e -> startSpeculativeLogin());
+    speculationDebounce.setRepeats(false);
+
+    DocumentListener restartDebounce = new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        speculationDebounce.restart();
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        speculationDebounce.restart();
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+        speculationDebounce.restart();
+      }
+    };
+    usernameEmailField.getDocument().addDocumentListener(restartDebounce);
+    passField.getDocument().addDocumentListener(restartDebounce);
+
     // Rules Link
     JLabel rulesLabel = new JLabel("View username and password rules");
     rulesLabel.setForeground(accentColor);
@@ -199,6 +231,8 @@ public class LoginPanel extends JPanel {
       DBConnection dbConnection = new DBConnection();
       CloudDbConnection cloudDbConnection = new CloudDbConnection();
       LoginUser loginUser = new LoginUser(dbConnection, cloudDbConnection, accountIdentifier, password);
+      speculationDebounce.stop();
+      loginUser.usePrederived(speculativeLogin);
 
       BackgroundLogin blWorker = new BackgroundLogin(this, loginUser, this.overlay, loginButton);
       blWorker.execute();
@@ -270,6 +304,29 @@ public class LoginPanel extends JPanel {
     add(footer, BorderLayout.SOUTH);
   }
 
+  // the background derivation holds a connection to the local DB and the
+  // password of the last guess
+  @Override
+  public void removeNotify() {
+    speculationDebounce.stop();
+    speculativeLogin.close();
+    super.removeNotify();
+  }
+
+  private void startSpeculativeLogin() {
+    String accountIdentifier = usernameEmailField.getText().trim();
+    String password = new String(passField.getPassword());
+
+    // a rough version of the login button checks, no point deriving a key
+    // for input that will be rejected anyway
+    if (accountIdentifier.isEmpty() || password.length() < 8) {
+      speculativeLogin.cancel();
+      return;
+    }
+
+    speculativeLogin.start(accountIdentifier, password);
+  }
+
   private void showUserFriendlyError(String title, String message) {
     JOptionPane.showMessageDialog(
         this,
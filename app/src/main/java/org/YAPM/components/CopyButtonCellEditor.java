@@ -6,6 +6,7 @@ import java.awt.*;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.function.IntFunction;
 
 public class CopyButtonCellEditor extends AbstractCellEditor implements TableCellEditor {
 
@@ -13,8 +14,21 @@ public class CopyButtonCellEditor extends AbstractCellEditor implements TableCel
   private final JLabel textLabel;
   private final JButton copyButton;
   private String cellValue;
+  // when set, copying a cell of `secretColumn` asks `secretForRow` for the value
+  // instead of using what the table shows
+  private final int secretColumn;
+  private final IntFunction<String> secretForRow;
+  private int editingRow = -1;
+  private int editingColumn = -1;
 
   public CopyButtonCellEditor() {
+    this(-1, null);
+  }
+
+  public CopyButtonCellEditor(int secretColumn, IntFunction<String> secretForRow) {
+    this.secretColumn = secretColumn;
+    this.secretForRow = secretForRow;
+
     panel = new JPanel(new BorderLayout());
     textLabel = new JLabel();
     copyButton = new JButton("📋");
@@ -29,9 +43,19 @@ public class CopyButtonCellEditor extends AbstractCellEditor implements TableCel
     copyButton.addActionListener(new ActionListener() {
       @Override
       public void actionPerformed(ActionEvent e) {
-        if (cellValue != null) {
+        String toCopy = cellValue;
+        if (secretForRow != null && editingColumn == secretColumn && editingRow >= 0) {
+          try {
+            toCopy = secretForRow.apply(editingRow);
+          } catch (RuntimeException ex) {
+            JOptionPane.showMessageDialog(panel, "Failed to decrypt the password!", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+          }
+        }
+
+        if (toCopy != null) {
           Toolkit.getDefaultToolkit().getSystemClipboard()
-              .setContents(new StringSelection(cellValue), null);
+              .setContents(new StringSelection(toCopy), null);
           JOptionPane.showMessageDialog(panel, "Copied to clipboard!", "Copied", JOptionPane.INFORMATION_MESSAGE);
         }
       }
@@ -41,6 +65,8 @@ public class CopyButtonCellEditor extends AbstractCellEditor implements TableCel
   @Override
   public Component getTableCellEditorComponent(JTable table, Object value, boolean isSelected, int row, int column) {
     cellValue = value == null ? "" : value.toString();
+    editingRow = table.convertRowIndexToModel(row);
+    editingColumn = table.convertColumnIndexToModel(column);
     textLabel.setText(cellValue);
     return panel;
   }
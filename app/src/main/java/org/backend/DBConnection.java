@@ -16,6 +16,17 @@ public class DBConnection implements AutoCloseable, DatabaseConnection {
     }
   }
 
+  private DBConnection(Connection con) {
+    this.con = con;
+  }
+
+  // for callers that can live without the DB, unlike the constructor this
+  // doesn't exit when the connection fails
+  public static DBConnection connect() throws SQLException {
+    return new DBConnection(
+        DriverManager.getConnection(EnvVars.DATABASE_URL, EnvVars.DATABASE_USER, EnvVars.DATABASE_PASSWORD));
+  }
+
   public Connection getConnection() {
     return this.con;
   }
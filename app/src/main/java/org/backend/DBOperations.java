@@ -111,6 +111,18 @@ public class DBOperations {
     }
   }
 
+  public boolean updatePasswordHash(String hashedPassword, String username) throws SQLException {
+    String query = "UPDATE `" + EnvVars.MASTER_USER_TABLE + "` SET `hashed_password`=? WHERE `username`=?";
+
+    try (PreparedStatement ps = con.prepareStatement(query)) {
+      ps.setString(1, hashedPassword);
+      ps.setString(2, username);
+
+      int opStat = ps.executeUpdate();
+      return opStat == 1;
+    }
+  }
+
   public boolean updatePasswordDbPath(String newDbFilePath, String username) throws SQLException {
     String query = "UPDATE `" + EnvVars.MASTER_USER_TABLE + "` SET `pwd_db_path`=? WHERE `username`=?";
 
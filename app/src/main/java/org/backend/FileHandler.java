@@ -1,7 +1,11 @@
 package org.backend;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.UUID;
 
 public class FileHandler {
   public static String getDbStoreDir() {
@@ -17,6 +21,29 @@ public class FileHandler {
     return fullPath.toString();
   }
 
+  // a random id for this installation, created on first use. Vaults record
+  // the point at which each device last synced under it
+  public static String getDeviceId() {
+    Path idFile = Path.of(getDbStoreDir(), "device_id");
+    try {
+      if (Files.exists(idFile)) {
+        String id = Files.readString(idFile, StandardCharsets.UTF_8).trim();
+        if (!id.isEmpty()) {
+          return id;
+        }
+      }
+
+      createDbStoreDirIfNotExisting();
+      String id = UUID.randomUUID().toString();
+      Files.writeString(idFile, id, StandardCharsets.UTF_8);
+      return id;
+    } catch (IOException e) {
+      // without an id the merge records no sync point for this device
+      System.err.println("[FileHandler.getDeviceId] Failed to read or create the device id: " + e);
+      return null;
+    }
+  }
+
   public static boolean createDbStoreDirIfNotExisting() {
     File dbStoreDir = new File(getDbStoreDir());
     if (!dbStoreDir.exists()) {
@@ -5,22 +5,29 @@ import org.vault.*;
 
 import java.io.File;
 import java.nio.file.Path;
-import java.security.spec.KeySpec;
+import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.UUID;
-
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import java.util.concurrent.Future;
 
 public class LoginUser {
   private final DBOperations localDbOps;
   private final DBOperations cloudDbOps;
   private String username;
   private String email;
-  private final String plaintextPassword;
-  private String hashedPassword;
+  // the master password and the AccountKeys kek live off the heap until
+  // logout() wipes them
+  private final SecretArena secrets = new SecretArena();
+  private final SecretArena.Secret masterPasswd;
+  // derived from the master password at login, used to open the vault without
+  // running the KDF again
+  private AccountKeys accountKeys;
   private UserInfo fetchedUser;
   private UserInfo cloudFetchedUser;
+  // the vault's data key under the session PIN, see HomePanel's lock
+  private final QuickUnlock quickUnlock = new QuickUnlock();
+  // a derivation SpeculativeLogin started while the password was being typed
+  private Future<SpeculativeLogin.Prederived> prederived;
 
   public LoginUser(DatabaseConnection localDb, DatabaseConnection cloudDb, String accountIdentifier, String pwd) {
     this.localDbOps = new DBOperations(localDb);
@@ -32,7 +39,7 @@ public class LoginUser {
       this.email = accountIdentifier;
     }
 
-    this.plaintextPassword = pwd;
+    this.masterPasswd = this.secrets.encode(pwd);
   }
 
   public BackendError login() {
@@ -125,8 +132,7 @@ public class LoginUser {
 
     }
 
-    generatePasswordHash();
-    if ((!this.hashedPassword.equals(this.fetchedUser.hashedPassword))) {
+    if (!verifyPassword()) {
       // failed to log in
       this.fetchedUser = null;
       return new BackendError(BackendError.ErrorTypes.InvalidLoginCredentials,
@@ -164,9 +170,11 @@ public class LoginUser {
       String mergedDbTempPath = FileHandler.getFullPath(mergedDbTempName);
       File newlyMergedDbFile = new File(mergedDbTempPath);
 
-      try (VaultManager vm = new VaultManager(localDbPath, this.plaintextPassword);
-          VaultManager otherVm = new VaultManager(localDbPath.concat("_for_merging"), this.plaintextPassword)) {
+      try (VaultManager vm = new VaultManager(localDbPath, this.masterPasswd, this.accountKeys);
+          VaultManager otherVm = new VaultManager(localDbPath.concat("_for_merging"), this.masterPasswd,
+              this.accountKeys)) {
 
+        vm.setDeviceId(FileHandler.getDeviceId());
         VaultStatus status = VaultManager.merge(mergedDbTempPath, vm, otherVm);
         if (status != VaultStatus.DBMergeSuccess) {
           return new BackendError(BackendError.ErrorTypes.FailedToMergeDbFiles,
@@ -278,31 +286,94 @@ public class LoginUser {
     return null;
   }
 
-  private void generatePasswordHash() {
+  // checks the master password against the stored hash with a single KDF run.
+  // Rows still holding the legacy PBKDF2-SHA1 hash are upgraded to an
+  // AccountKeys verifier in both databases
+  private boolean verifyPassword() {
     if (this.fetchedUser == null) {
-      return;
+      return false;
     }
     // For salt
     byte[] salt = Base64.getDecoder().decode(this.fetchedUser.salt);
+    String stored = this.fetchedUser.hashedPassword;
 
-    // For the hash (+salt)
-    KeySpec spec = new PBEKeySpec(this.plaintextPassword.toCharArray(), salt, 65536, 128);
-    SecretKeyFactory factory;
-    byte[] hash;
+    // only usable if it was derived from the row we're checking against
+    SpeculativeLogin.Prederived prederived = SpeculativeLogin.await(this.prederived);
+    this.prederived = null;
+    SpeculativeLogin.Prederived guess = prederived != null && prederived.appliesTo(this.fetchedUser)
+        ? prederived
+        : null;
 
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
+      if (AccountKeys.isVerifier(stored)) {
+        AccountKeys keys = guess != null && guess.accountKeys != null
+            ? guess.accountKeys.moveTo(this.secrets)
+            : AccountKeys.derive(this.masterPasswd, salt, stored);
+        if (!keys.matches(stored)) {
+          return false;
+        }
+
+        this.accountKeys = keys;
+        return true;
+      }
+
+      byte[] hash = guess != null && guess.legacyHash != null
+          ? guess.legacyHash
+          : RegisterUser.LEGACY_PASSWORD_HASH_KDF.derive(this.masterPasswd, salt,
+              RegisterUser.LEGACY_PASSWORD_HASH_LENGTH);
+      if (!MessageDigest.isEqual(hash, Base64.getDecoder().decode(stored))) {
+        return false;
+      }
 
-      this.hashedPassword = Base64.getEncoder().encodeToString(hash);
+      this.accountKeys = AccountKeys.create(this.masterPasswd, salt);
+      upgradePasswordHash(this.accountKeys.encodeVerifier());
+      return true;
+    } catch (IllegalArgumentException e) {
+      System.err.println("[LoginUser.verifyPassword] The stored password hash is malformed: " + e);
+      return false;
     } catch (Exception e) {
       System.err.println(
-          "[LoginUser.generatePasswordHash] Either the PBKDF2WithHmacSHA1 hashing algorithm is not available or the provided PBEKeySpec is wrong: "
+          "[LoginUser.verifyPassword] Either the PBKDF2 hashing algorithm is not available or the provided PBEKeySpec is wrong: "
               + e);
       System.exit(1);
+      return false;
+    } finally {
+      // the kek was copied into this.secrets by moveTo()
+      if (prederived != null) {
+        prederived.wipe();
+      }
+    }
+  }
+
+  private void upgradePasswordHash(String newHash) {
+    // cloud first: a local row that is newer than the cloud one would be seen as
+    // a conflict on the next login and thrown away
+    try {
+      if (!this.cloudDbOps.updatePasswordHash(newHash, this.fetchedUser.username)) {
+        System.err.println("[LoginUser.upgradePasswordHash] Failed to upgrade the password hash in the cloud DB");
+        return;
+      }
+      this.cloudFetchedUser.hashedPassword = newHash;
+
+      if (!this.localDbOps.updatePasswordHash(newHash, this.fetchedUser.username)) {
+        System.err.println("[LoginUser.upgradePasswordHash] Failed to upgrade the password hash in the local DB");
+        return;
+      }
+      this.fetchedUser.hashedPassword = newHash;
+    } catch (Exception e) {
+      // the legacy hash keeps working, the upgrade is retried on the next login
+      System.err.println("[LoginUser.upgradePasswordHash] Failed to upgrade the password hash: " + e);
     }
   }
 
+
+  // picks up the speculative derivation for this identifier and password, if
+  // one was started
+  public void usePrederived(SpeculativeLogin speculativeLogin) {
+    String accountIdentifier = this.username != null ? this.username : this.email;
+    this.prederived = speculativeLogin.take(accountIdentifier, this.masterPasswd);
+  }
+
   public String getDbFilePath() {
     // redundant code for clarity
     if (this.fetchedUser.passwordDbName == null) {
@@ -312,8 +383,16 @@ public class LoginUser {
     return FileHandler.getFullPath(this.fetchedUser.passwordDbName);
   }
 
-  public String getPlaintextPassword() {
-    return this.plaintextPassword;
+  public SecretArena.Secret getMasterPasswd() {
+    return this.masterPasswd;
+  }
+
+  public AccountKeys getAccountKeys() {
+    return this.accountKeys;
+  }
+
+  public QuickUnlock getQuickUnlock() {
+    return this.quickUnlock;
   }
 
   public BackendError sync() {
@@ -334,13 +413,14 @@ public class LoginUser {
           "[LoginUser.login] Failed to download DB file from the cloud");
     }
 
-    try (VaultManager vm = new VaultManager(localDbPath, this.plaintextPassword);
-        VaultManager otherVm = new VaultManager(cloudDbPath, this.plaintextPassword);) {
+    try (VaultManager vm = new VaultManager(localDbPath, this.masterPasswd, this.accountKeys);
+        VaultManager otherVm = new VaultManager(cloudDbPath, this.masterPasswd, this.accountKeys);) {
 
       String mergedDbTempName = this.fetchedUser.username + UUID.randomUUID().toString() + ".db";
       String mergedDbTempPath = FileHandler.getFullPath(mergedDbTempName);
       File newlyMergedDb = new File(mergedDbTempPath);
 
+      vm.setDeviceId(FileHandler.getDeviceId());
       VaultStatus status = VaultManager.merge(mergedDbTempPath, vm, otherVm);
       if (status != VaultStatus.DBMergeSuccess) {
         return new BackendError(BackendError.ErrorTypes.FailedToMergeDbFiles,
@@ -392,8 +472,16 @@ public class LoginUser {
     return null;
   }
 
+  // the master password, keys and PIN-sealed data key are dropped even if the
+  // sync fails, the session is over either way
   public BackendError logout() {
-    BackendError err = sync();
+    BackendError err;
+    try {
+      err = sync();
+    } finally {
+      this.quickUnlock.clear();
+      this.secrets.close();
+    }
     if (err != null) {
       return err;
     }
@@ -6,14 +6,15 @@ import org.vault.*;
 import java.io.File;
 import java.nio.file.Path;
 import java.security.SecureRandom;
-import java.security.spec.KeySpec;
 import java.util.Base64;
 import java.util.UUID;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-
 public class RegisterUser {
+  // the legacy (pre-AccountKeys) master password hash still found in
+  // `master_users`. Only used to check and upgrade those rows on login
+  static final KeyDerivation LEGACY_PASSWORD_HASH_KDF = new Pbkdf2Derivation(Pbkdf2Derivation.ID_SHA1, 65536);
+  static final int LEGACY_PASSWORD_HASH_LENGTH = 16;
+
   private final DBOperations localDbOps;
   private final DBOperations cloudDbOps;
   private String username;
@@ -22,6 +23,7 @@ public class RegisterUser {
   private String hashedPassword;
   private String hashSaltBase64;
   private String dbFileName;
+  private AccountKeys accountKeys;
 
   public RegisterUser(DatabaseConnection loaclDb, DatabaseConnection cloudDb) {
     this.localDbOps = new DBOperations(loaclDb);
@@ -95,7 +97,8 @@ public class RegisterUser {
   }
 
   private BackendError createLocalDb(String dbName) {
-    try (VaultManager vm = new VaultManager(FileHandler.getFullPath(dbName), this.plaintextPassword)) {
+    try (VaultManager vm = new VaultManager(FileHandler.getFullPath(dbName), this.plaintextPassword,
+        this.accountKeys)) {
       VaultStatus resp = vm.connectToDB();
       if (resp != VaultStatus.DBConnectionSuccess) {
         return new BackendError(BackendError.ErrorTypes.LocalDBCreationFailed,
@@ -142,19 +145,14 @@ public class RegisterUser {
     random.nextBytes(salt);
 
     // For the hash (+salt)
-    KeySpec spec = new PBEKeySpec(this.plaintextPassword.toCharArray(), salt, 65536, 128);
-    SecretKeyFactory factory;
-    byte[] hash;
-
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
+      this.accountKeys = AccountKeys.create(this.plaintextPassword, salt);
 
       this.hashSaltBase64 = Base64.getEncoder().encodeToString(salt);
-      this.hashedPassword = Base64.getEncoder().encodeToString(hash);
+      this.hashedPassword = this.accountKeys.encodeVerifier();
     } catch (Exception e) {
       System.err.println(
-          "[RegisterUser.generatePasswordHash] Either the PBKDF2WithHmacSHA1 hashing algorithm is not available or the provided PBEKeySpec is wrong: "
+          "[RegisterUser.generatePasswordHash] Either the PBKDF2WithHmacSHA256 hashing algorithm is not available or the provided PBEKeySpec is wrong: "
               + e);
       System.exit(1);
     }
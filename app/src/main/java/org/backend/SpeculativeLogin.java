@@ -0,0 +1,223 @@
+package org.backend;
+
+import org.utils.InputValidator;
+import org.vault.*;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs the login KDF in the background while the user is still on the login
+// form, so LoginUser.login() usually finds the keys ready. The salt and stored
+// hash come from the local DB. A guess that doesn't fit what login() fetches
+// later (different row, password changed since) is simply not used.
+//
+// Only one derivation runs at a time. Starting a new one cancels the previous
+// one; a PBKDF2 run that already started can't be interrupted, its result is
+// just dropped.
+public class SpeculativeLogin implements AutoCloseable {
+  private final Callable<DatabaseConnection> localDbFactory;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "speculative-login");
+    t.setDaemon(true);
+    return t;
+  });
+  // only touched on the executor thread
+  private DatabaseConnection localDb;
+
+  private Future<Prederived> pending;
+  private String pendingIdentifier;
+  // each guess gets an arena of its own for the password and the keys derived
+  // from it. It is closed when the guess is dropped, or handed over with the
+  // Prederived
+  private SecretArena pendingArena;
+  private SecretArena.Secret pendingPasswd;
+  private boolean closed;
+
+  public SpeculativeLogin(Callable<DatabaseConnection> localDbFactory) {
+    this.localDbFactory = localDbFactory;
+  }
+
+  static final class Prederived {
+    final String saltBase64;
+    final String storedHash;
+    // set for v2 hashes
+    final AccountKeys accountKeys;
+    // set for legacy hashes
+    final byte[] legacyHash;
+    final SecretArena arena;
+
+    private Prederived(String saltBase64, String storedHash, AccountKeys accountKeys, byte[] legacyHash,
+        SecretArena arena) {
+      this.saltBase64 = saltBase64;
+      this.storedHash = storedHash;
+      this.accountKeys = accountKeys;
+      this.legacyHash = legacyHash;
+      this.arena = arena;
+    }
+
+    boolean appliesTo(UserInfo user) {
+      return this.saltBase64.equals(user.salt) && this.storedHash.equals(user.hashedPassword);
+    }
+
+    // once the keys were moved to the session, or turned out to be useless
+    void wipe() {
+      if (this.legacyHash != null) {
+        Arrays.fill(this.legacyHash, (byte) 0);
+      }
+      this.arena.close();
+    }
+  }
+
+  public synchronized void start(String accountIdentifier, String pwd) {
+    if (this.closed || isPending(accountIdentifier, pwd)) {
+      return;
+    }
+
+    cancel();
+    if (accountIdentifier.isEmpty() || pwd.isEmpty()) {
+      return;
+    }
+
+    SecretArena arena = new SecretArena();
+    SecretArena.Secret passwd = arena.encode(pwd);
+    this.pendingIdentifier = accountIdentifier;
+    this.pendingArena = arena;
+    this.pendingPasswd = passwd;
+    this.pending = this.executor.submit(() -> derive(accountIdentifier, passwd, arena));
+  }
+
+  public synchronized void cancel() {
+    if (this.pending != null) {
+      this.pending.cancel(true);
+    }
+    // a derivation still running fails on the closed arena, or its result is
+    // never looked at
+    if (this.pendingArena != null) {
+      this.pendingArena.close();
+    }
+
+    this.pending = null;
+    this.pendingIdentifier = null;
+    this.pendingArena = null;
+    this.pendingPasswd = null;
+  }
+
+  // hands the derivation for exactly these credentials over to a LoginUser,
+  // which wipes the Prederived once done with it. Anything else that is
+  // running is cancelled
+  synchronized Future<Prederived> take(String accountIdentifier, SecretArena.Secret pwd) {
+    Future<Prederived> result = null;
+    if (accountIdentifier.equals(this.pendingIdentifier) && this.pendingPasswd != null) {
+      try {
+        if (this.pendingPasswd.contentEquals(pwd)) {
+          result = this.pending;
+          this.pending = null;
+          this.pendingArena = null;
+        }
+      } catch (IllegalStateException e) {
+        // the guess found nothing and already let go of its arena
+      }
+    }
+
+    cancel();
+    return result;
+  }
+
+  private boolean isPending(String accountIdentifier, String pwd) {
+    if (!accountIdentifier.equals(this.pendingIdentifier) || this.pendingPasswd == null) {
+      return false;
+    }
+
+    try {
+      return this.pendingPasswd.matches(pwd);
+    } catch (IllegalStateException e) {
+      return false;
+    }
+  }
+
+  // blocks until a handed over derivation is done. null if it failed, found no
+  // user, or was cancelled
+  static Prederived await(Future<Prederived> future) {
+    if (future == null) {
+      return null;
+    }
+
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException | CancellationException e) {
+      return null;
+    }
+  }
+
+  // null if the local DB can't be reached or has no such user. The arena is
+  // closed unless it goes out with the result
+  private Prederived derive(String accountIdentifier, SecretArena.Secret pwd, SecretArena arena) throws Exception {
+    try {
+      UserInfo user = fetchUser(accountIdentifier);
+      if (user == null || user.lastLoggedInTime == -1 || user.salt == null || user.hashedPassword == null) {
+        arena.close();
+        return null;
+      }
+
+      byte[] salt = Base64.getDecoder().decode(user.salt);
+      if (AccountKeys.isVerifier(user.hashedPassword)) {
+        return new Prederived(user.salt, user.hashedPassword,
+            AccountKeys.derive(pwd, salt, user.hashedPassword), null, arena);
+      }
+
+      return new Prederived(user.salt, user.hashedPassword, null,
+          RegisterUser.LEGACY_PASSWORD_HASH_KDF.derive(pwd, salt, RegisterUser.LEGACY_PASSWORD_HASH_LENGTH), arena);
+    } catch (Exception e) {
+      arena.close();
+      throw e;
+    }
+  }
+
+  // a connection that failed is dropped, the next guess tries a new one
+  private UserInfo fetchUser(String accountIdentifier) {
+    try {
+      if (this.localDb == null) {
+        this.localDb = this.localDbFactory.call();
+      }
+
+      DBOperations ops = new DBOperations(this.localDb);
+      return InputValidator.isValidUsername(accountIdentifier)
+          ? ops.getUserInfo(accountIdentifier)
+          : ops.getUserInfoByEmail(accountIdentifier);
+    } catch (Exception e) {
+      System.err.println("[SpeculativeLogin.fetchUser] Failed to read the local DB: " + e);
+      closeLocalDb();
+      return null;
+    }
+  }
+
+  private void closeLocalDb() {
+    if (this.localDb != null) {
+      this.localDb.close();
+      this.localDb = null;
+    }
+  }
+
+  // the connection is closed on the executor thread, after whatever derivation
+  // is still running there
+  @Override
+  public synchronized void close() {
+    if (this.closed) {
+      return;
+    }
+
+    this.closed = true;
+    cancel();
+    this.executor.execute(this::closeLocalDb);
+    this.executor.shutdown();
+  }
+}
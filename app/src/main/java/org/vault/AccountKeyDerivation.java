@@ -0,0 +1,78 @@
+package org.vault;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+// The vault key is HKDF(AccountKeys kek, vault salt). The account salt and
+// iteration count are part of the parameters, so the vault can still be
+// opened from the master password alone. A VaultManager holding the account's
+// AccountKeys skips the PBKDF2 run entirely.
+public final class AccountKeyDerivation implements KeyDerivation {
+  public static final String ID = "account-hkdf";
+
+  private final byte[] accountSalt;
+  private final int iterations;
+
+  AccountKeyDerivation(byte[] accountSalt, int iterations) {
+    this.accountSalt = accountSalt;
+    this.iterations = iterations;
+  }
+
+  static AccountKeyDerivation fromParams(String params) {
+    byte[] salt = null;
+    int iterations = -1;
+
+    try {
+      for (String kv : params.split(",")) {
+        String[] parts = kv.split("=", 2);
+        switch (parts[0]) {
+          case "i":
+            iterations = Integer.parseInt(parts[1]);
+            break;
+          case "s":
+            salt = Base64.getDecoder().decode(parts[1]);
+            break;
+          default:
+            throw new IllegalArgumentException();
+        }
+      }
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("[AccountKeyDerivation.fromParams] ERROR: bad parameters: " + params, e);
+    }
+    if (salt == null || iterations < 1) {
+      throw new IllegalArgumentException("[AccountKeyDerivation.fromParams] ERROR: bad parameters: " + params);
+    }
+
+    return new AccountKeyDerivation(salt, iterations);
+  }
+
+  @Override
+  public String id() {
+    return ID;
+  }
+
+  @Override
+  public String encodeParams() {
+    return "i=" + this.iterations + ",s=" + Base64.getEncoder().encodeToString(this.accountSalt);
+  }
+
+  @Override
+  public byte[] derive(ByteBuffer passwd, byte[] salt, int keyLength) throws GeneralSecurityException {
+    try (SecretArena scratch = new SecretArena()) {
+      return AccountKeys.derive(passwd, this.accountSalt, this.iterations, scratch).vaultKey(salt, keyLength);
+    }
+  }
+
+  // the cost belongs to the account, not to the vault
+  @Override
+  public KeyDerivation scaled(double factor) {
+    return this;
+  }
+
+  // the account's iterations are calibrated like a vault's
+  @Override
+  public boolean exceedsCalibratedMax(double factor) {
+    return Pbkdf2Derivation.exceedsCalibratedMax(this.iterations, factor);
+  }
+}
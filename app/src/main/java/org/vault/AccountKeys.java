@@ -0,0 +1,155 @@
+package org.vault;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+// Everything a login needs from the master password, from one PBKDF2 run over
+// the account salt:
+//
+// master   = PBKDF2-SHA256(passwd, account salt, iterations)
+// verifier = HKDF(master, "yapm-auth-v1")       stored in master_users
+// kek      = HKDF(master, "yapm-vault-kek-v1")  never stored
+//
+// A vault created for the account (AccountKeyDerivation) derives its key from
+// the kek and its own salt, so unlocking it after login costs no second KDF.
+// The kek lives in a SecretArena: the password's own when derived from a
+// Secret, otherwise a fresh one until moveTo() hands it to the session's.
+public final class AccountKeys {
+  // stored hashes look like "v2$<iterations>$<Base64 verifier>". Hashes without
+  // the prefix are the legacy PBKDF2-SHA1 ones
+  private static final String VERIFIER_PREFIX = "v2";
+  private static final int SECRET_LENGTH = 32;
+  private static final byte[] AUTH_INFO = "yapm-auth-v1".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEK_INFO = "yapm-vault-kek-v1".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] VAULT_KEY_INFO = "yapm-vault-key-v1".getBytes(StandardCharsets.UTF_8);
+
+  private final byte[] accountSalt;
+  private final int iterations;
+  private final byte[] verifier;
+  private final SecretArena.Secret kek;
+
+  private AccountKeys(byte[] accountSalt, int iterations, byte[] verifier, SecretArena.Secret kek) {
+    this.accountSalt = accountSalt;
+    this.iterations = iterations;
+    this.verifier = verifier;
+    this.kek = kek;
+  }
+
+  static AccountKeys derive(ByteBuffer passwd, byte[] accountSalt, int iterations, SecretArena arena)
+      throws GeneralSecurityException {
+    byte[] master = new Pbkdf2Derivation(Pbkdf2Derivation.ID_SHA256, iterations).derive(passwd, accountSalt,
+        SECRET_LENGTH);
+
+    try {
+      return new AccountKeys(accountSalt.clone(), iterations,
+          CryptoUtils.hkdf(null, master, AUTH_INFO, SECRET_LENGTH),
+          arena.copyOf(CryptoUtils.hkdf(null, master, KEK_INFO, SECRET_LENGTH)));
+    } finally {
+      Arrays.fill(master, (byte) 0);
+    }
+  }
+
+  public static AccountKeys derive(SecretArena.Secret passwd, byte[] accountSalt, int iterations)
+      throws GeneralSecurityException {
+    return derive(passwd.view(), accountSalt, iterations, passwd.arena());
+  }
+
+  public static AccountKeys derive(String passwd, byte[] accountSalt, int iterations) throws GeneralSecurityException {
+    byte[] passwdBytes = passwd.getBytes(StandardCharsets.UTF_8);
+    try {
+      return derive(ByteBuffer.wrap(passwdBytes), accountSalt, iterations, new SecretArena());
+    } finally {
+      Arrays.fill(passwdBytes, (byte) 0);
+    }
+  }
+
+  // for a new account: the iteration count is calibrated on this host
+  public static AccountKeys create(SecretArena.Secret passwd, byte[] accountSalt) throws GeneralSecurityException {
+    return derive(passwd, accountSalt, calibratedIterations());
+  }
+
+  public static AccountKeys create(String passwd, byte[] accountSalt) throws GeneralSecurityException {
+    return derive(passwd, accountSalt, calibratedIterations());
+  }
+
+  private static int calibratedIterations() throws GeneralSecurityException {
+    Pbkdf2Derivation kdf = (Pbkdf2Derivation) KdfCalibrator.calibrate(Pbkdf2Derivation.legacy(),
+        VaultConst.KDF_TARGET_MILLIS);
+
+    return kdf.getIterations();
+  }
+
+  // for a stored hash in the current format
+  public static AccountKeys derive(SecretArena.Secret passwd, byte[] accountSalt, String storedVerifier)
+      throws GeneralSecurityException {
+    return derive(passwd, accountSalt, verifierIterations(storedVerifier));
+  }
+
+  public static AccountKeys derive(String passwd, byte[] accountSalt, String storedVerifier)
+      throws GeneralSecurityException {
+    return derive(passwd, accountSalt, verifierIterations(storedVerifier));
+  }
+
+  // the same keys with the kek copied into `arena`. This copy's kek is wiped
+  public AccountKeys moveTo(SecretArena arena) {
+    if (this.kek.arena() == arena) {
+      return this;
+    }
+
+    AccountKeys moved = new AccountKeys(this.accountSalt, this.iterations, this.verifier, arena.copyOf(this.kek));
+    this.kek.wipe();
+    return moved;
+  }
+
+  public static boolean isVerifier(String stored) {
+    return stored != null && stored.startsWith(VERIFIER_PREFIX + "$");
+  }
+
+  private static int verifierIterations(String stored) {
+    String[] parts = stored == null ? new String[0] : stored.split("\\$");
+    if (parts.length != 3 || !VERIFIER_PREFIX.equals(parts[0])) {
+      throw new IllegalArgumentException("[AccountKeys.verifierIterations] ERROR: not a v2 password hash.");
+    }
+
+    return Integer.parseInt(parts[1]);
+  }
+
+  public String encodeVerifier() {
+    return VERIFIER_PREFIX + "$" + this.iterations + "$" + Base64.getEncoder().encodeToString(this.verifier);
+  }
+
+  public boolean matches(String storedVerifier) {
+    if (!isVerifier(storedVerifier)) {
+      return false;
+    }
+
+    byte[] stored;
+    try {
+      if (verifierIterations(storedVerifier) != this.iterations) {
+        return false;
+      }
+      stored = Base64.getDecoder().decode(storedVerifier.substring(storedVerifier.lastIndexOf('$') + 1));
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+
+    return MessageDigest.isEqual(stored, this.verifier);
+  }
+
+  // the KDF recorded in vaults created for this account
+  public KeyDerivation vaultKdf() {
+    return new AccountKeyDerivation(this.accountSalt, this.iterations);
+  }
+
+  boolean derives(KeyDerivation kdf) {
+    return AccountKeyDerivation.ID.equals(kdf.id()) && vaultKdf().encodeParams().equals(kdf.encodeParams());
+  }
+
+  byte[] vaultKey(byte[] vaultSalt, int keyLength) throws GeneralSecurityException {
+    return CryptoUtils.hkdf(vaultSalt, this.kek.view(), VAULT_KEY_INFO, keyLength);
+  }
+}
@@ -0,0 +1,39 @@
+package org.vault;
+
+// A file attached to an entry. Only the description lives here, the content
+// is streamed with VaultManager.readAttachment()
+public class Attachment {
+  private final String id;
+  private final String entryId;
+  private final String name;
+  private final long size;
+  private final long timestamp;
+
+  Attachment(String id, String entryId, String name, long size, long timestamp) {
+    this.id = id;
+    this.entryId = entryId;
+    this.name = name;
+    this.size = size;
+    this.timestamp = timestamp;
+  }
+
+  public String getID() {
+    return this.id;
+  }
+
+  public String getEntryID() {
+    return this.entryId;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public long getSize() {
+    return this.size;
+  }
+
+  public long getTimestamp() {
+    return this.timestamp;
+  }
+}
@@ -0,0 +1,382 @@
+package org.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// Attachment content is split into chunks of `chunk_size` bytes, each sealed
+// as its own AEAD blob in `attachment_chunks`. The AAD binds a chunk to its
+// attachment, its position and whether it is the last one, so chunks can't be
+// reordered, moved to another attachment or cut off, and any chunk can be
+// opened on its own for range reads. At most two chunks are on the heap at a
+// time. Nothing here commits. The per-vault operations run on the
+// VaultManager's StatementCache, merge() on a plain connection.
+class AttachmentStore {
+  private static final String NAME_AAD_SUFFIX = "#name";
+
+  static void createTables(Statement statement) throws SQLException {
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS attachments (" +
+        "  id TEXT PRIMARY KEY," +
+        "  entry_id TEXT NOT NULL," +
+        "  name BLOB NOT NULL," +
+        "  size INTEGER NOT NULL," +
+        "  chunk_size INTEGER NOT NULL," +
+        "  timestamp INTEGER NOT NULL" +
+        ");");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS attachments_entry_id ON attachments(entry_id);");
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS attachment_chunks (" +
+        "  attachment_id TEXT NOT NULL," +
+        "  seq INTEGER NOT NULL," +
+        "  data BLOB NOT NULL," +
+        "  PRIMARY KEY (attachment_id, seq)" +
+        ");");
+  }
+
+  static Attachment write(StatementCache statements, String entryId, String name, InputStream in,
+      SecretKeySpec key) throws Exception {
+    return write(statements, UUID.randomUUID().toString(), entryId, name, in, key, -1);
+  }
+
+  // with the id and timestamp of an attachment restored from an archive. A
+  // negative timestamp means now
+  static Attachment write(StatementCache statements, String id, String entryId, String name, InputStream in,
+      SecretKeySpec key, long timestamp) throws Exception {
+    int chunkSize = VaultConst.ATTACHMENT_CHUNK_SIZE;
+    long size = 0;
+
+    PreparedStatement insertChunk = statements.get(
+        "INSERT INTO attachment_chunks(attachment_id, seq, data) VALUES(?,?,?)");
+    byte[] cur = new byte[chunkSize];
+    byte[] next = new byte[chunkSize];
+    int n = readFully(in, cur);
+
+    // a full chunk is only known to be the last one once the stream is empty
+    for (long seq = 0;; seq++) {
+      int m = n == chunkSize ? readFully(in, next) : 0;
+      boolean last = m == 0;
+
+      insertChunk.setString(1, id);
+      insertChunk.setLong(2, seq);
+      insertChunk.setBytes(3, CryptoUtils.encryptBlob(cur, 0, n, key, chunkAad(id, seq, last)));
+      insertChunk.executeUpdate();
+      size += n;
+
+      if (last) {
+        break;
+      }
+      byte[] tmp = cur;
+      cur = next;
+      next = tmp;
+      n = m;
+    }
+
+    Arrays.fill(cur, (byte) 0);
+    Arrays.fill(next, (byte) 0);
+
+    long now = timestamp < 0 ? System.currentTimeMillis() : timestamp;
+    PreparedStatement ps = statements.get(
+        "INSERT INTO attachments(id, entry_id, name, size, chunk_size, timestamp) VALUES(?,?,?,?,?,?)");
+    ps.setString(1, id);
+    ps.setString(2, entryId);
+    ps.setBytes(3, CryptoUtils.encryptBlob(name.getBytes(StandardCharsets.UTF_8), key, nameAad(id)));
+    ps.setLong(4, size);
+    ps.setInt(5, chunkSize);
+    ps.setLong(6, now);
+    ps.executeUpdate();
+
+    return new Attachment(id, entryId, name, size, now);
+  }
+
+  // writes bytes [offset, offset + length) of the attachment, clamped to its
+  // size, decrypting only the chunks that overlap the range. false if there is
+  // no such attachment
+  static boolean read(StatementCache statements, String id, long offset, long length, OutputStream out,
+      SecretKeySpec key) throws Exception {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException("[AttachmentStore.read] ERROR: negative range.");
+    }
+
+    long size;
+    int chunkSize;
+    PreparedStatement header = statements.get("SELECT size, chunk_size FROM attachments WHERE id = ?");
+    header.setString(1, id);
+    try (ResultSet rs = header.executeQuery()) {
+      if (!rs.next()) {
+        return false;
+      }
+      size = rs.getLong("size");
+      chunkSize = rs.getInt("chunk_size");
+    }
+
+    long end = Math.min(size, offset + Math.min(length, Long.MAX_VALUE - offset));
+    if (offset >= end) {
+      return true;
+    }
+
+    long lastChunk = Math.max(0, (size - 1) / chunkSize);
+    long firstSeq = offset / chunkSize;
+    long lastSeq = (end - 1) / chunkSize;
+
+    PreparedStatement chunks = statements.get(
+        "SELECT seq, data FROM attachment_chunks WHERE attachment_id = ? AND seq BETWEEN ? AND ? ORDER BY seq");
+    chunks.setString(1, id);
+    chunks.setLong(2, firstSeq);
+    chunks.setLong(3, lastSeq);
+
+    long expected = firstSeq;
+    try (ResultSet rs = chunks.executeQuery()) {
+      while (rs.next()) {
+        long seq = rs.getLong("seq");
+        if (seq != expected) {
+          break;
+        }
+
+        byte[] plain = CryptoUtils.decryptBlob(rs.getBytes("data"), key, chunkAad(id, seq, seq == lastChunk));
+        int from = seq == firstSeq ? (int) (offset - seq * chunkSize) : 0;
+        int to = seq == lastSeq ? (int) (end - seq * chunkSize) : plain.length;
+        if (to > plain.length) {
+          throw new IllegalStateException("[AttachmentStore.read] ERROR: chunk " + seq + " of " + id
+              + " is short.");
+        }
+
+        out.write(plain, from, to - from);
+        Arrays.fill(plain, (byte) 0);
+        expected++;
+      }
+    }
+
+    if (expected != lastSeq + 1) {
+      throw new IllegalStateException("[AttachmentStore.read] ERROR: chunk " + expected + " of " + id
+          + " is missing.");
+    }
+
+    return true;
+  }
+
+  static void list(StatementCache statements, String entryId, SecretKeySpec key,
+      ArrayList<Attachment> attachments) throws Exception {
+    PreparedStatement ps = statements.get(
+        "SELECT id, name, size, timestamp FROM attachments WHERE entry_id = ? ORDER BY timestamp");
+    ps.setString(1, entryId);
+    try (ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        String id = rs.getString("id");
+        String name = openName(id, rs.getBytes("name"), key);
+
+        attachments.add(new Attachment(id, entryId, name, rs.getLong("size"), rs.getLong("timestamp")));
+      }
+    }
+  }
+
+  static String openName(String id, byte[] blob, SecretKeySpec key) throws Exception {
+    return new String(CryptoUtils.decryptBlob(blob, key, nameAad(id)), StandardCharsets.UTF_8);
+  }
+
+  // removes the attachment and leaves a tombstone in `deleted` for merge().
+  // false if there is no such attachment
+  static boolean delete(StatementCache statements, String id, long deletedAt) throws SQLException {
+    PreparedStatement ps = statements.get("DELETE FROM attachments WHERE id = ?");
+    ps.setString(1, id);
+    if (ps.executeUpdate() == 0) {
+      return false;
+    }
+
+    ps = statements.get("DELETE FROM attachment_chunks WHERE attachment_id = ?");
+    ps.setString(1, id);
+    ps.executeUpdate();
+
+    ps = statements.get("INSERT OR REPLACE INTO deleted(id,deleted_at) VALUES(?,?)");
+    ps.setString(1, id);
+    ps.setLong(2, deletedAt);
+    ps.executeUpdate();
+
+    return true;
+  }
+
+  static void deleteForEntry(StatementCache statements, String entryId, long deletedAt) throws SQLException {
+    for (String id : idsOf(statements, entryId)) {
+      delete(statements, id, deletedAt);
+    }
+  }
+
+  // editEntry() changes the entry id. The chunks aren't bound to the entry, so
+  // moving the attachments along is a metadata update. The new timestamp makes
+  // merge() prefer the moved row
+  static void moveToEntry(StatementCache statements, String oldEntryId, String newEntryId, long timestamp)
+      throws SQLException {
+    PreparedStatement ps = statements.get("UPDATE attachments SET entry_id = ?, timestamp = ? WHERE entry_id = ?");
+    ps.setString(1, newEntryId);
+    ps.setLong(2, timestamp);
+    ps.setString(3, oldEntryId);
+    ps.executeUpdate();
+  }
+
+  // copies the attachments of the vaults attached as v1 and v2 into the main
+  // database of `conn`, after its entries and tombstones have been merged. The
+  // newer copy of an attachment wins, newer tombstones and attachments of
+  // entries that didn't survive are dropped. Rows from v2 are re-sealed chunk
+  // by chunk when the vaults have different keys
+  static void merge(Connection conn, SecretKeySpec v1Key, SecretKeySpec v2Key, boolean sameKey) throws Exception {
+    ArrayList<String> ids = new ArrayList<>();
+    try (PreparedStatement ps = conn.prepareStatement(
+        "SELECT id FROM v1.attachments UNION SELECT id FROM v2.attachments");
+        ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        ids.add(rs.getString("id"));
+      }
+    }
+
+    for (String id : ids) {
+      long ts1 = timestampIn(conn, "v1", id);
+      long ts2 = timestampIn(conn, "v2", id);
+      String alias = ts1 >= ts2 ? "v1" : "v2";
+      long ts = Math.max(ts1, ts2);
+
+      if (!isLive(conn, alias, id, ts)) {
+        continue;
+      }
+
+      try (PreparedStatement ps = conn.prepareStatement("INSERT INTO attachments "
+          + "SELECT id, entry_id, name, size, chunk_size, timestamp FROM " + alias + ".attachments WHERE id = ?")) {
+        ps.setString(1, id);
+        ps.executeUpdate();
+      }
+      try (PreparedStatement ps = conn.prepareStatement("DELETE FROM deleted WHERE id = ?")) {
+        ps.setString(1, id);
+        ps.executeUpdate();
+      }
+
+      if (alias.equals("v1") || sameKey) {
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO attachment_chunks "
+            + "SELECT attachment_id, seq, data FROM " + alias + ".attachment_chunks WHERE attachment_id = ?")) {
+          ps.setString(1, id);
+          ps.executeUpdate();
+        }
+      } else {
+        reseal(conn, id, v2Key, v1Key);
+      }
+    }
+  }
+
+  private static void reseal(Connection conn, String id, SecretKeySpec from, SecretKeySpec to) throws Exception {
+    long lastChunk;
+    try (PreparedStatement read = conn.prepareStatement(
+        "SELECT name, size, chunk_size FROM attachments WHERE id = ?");
+        PreparedStatement write = conn.prepareStatement("UPDATE attachments SET name = ? WHERE id = ?")) {
+      read.setString(1, id);
+      try (ResultSet rs = read.executeQuery()) {
+        rs.next();
+        byte[] name = CryptoUtils.decryptBlob(rs.getBytes("name"), from, nameAad(id));
+        lastChunk = Math.max(0, (rs.getLong("size") - 1) / rs.getInt("chunk_size"));
+
+        write.setBytes(1, CryptoUtils.encryptBlob(name, to, nameAad(id)));
+        write.setString(2, id);
+      }
+      write.executeUpdate();
+    }
+
+    try (PreparedStatement read = conn.prepareStatement(
+        "SELECT seq, data FROM v2.attachment_chunks WHERE attachment_id = ? ORDER BY seq");
+        PreparedStatement write = conn.prepareStatement(
+            "INSERT INTO attachment_chunks(attachment_id, seq, data) VALUES(?,?,?)")) {
+      read.setString(1, id);
+      try (ResultSet rs = read.executeQuery()) {
+        while (rs.next()) {
+          long seq = rs.getLong("seq");
+          byte[] aad = chunkAad(id, seq, seq == lastChunk);
+          byte[] plain = CryptoUtils.decryptBlob(rs.getBytes("data"), from, aad);
+
+          write.setString(1, id);
+          write.setLong(2, seq);
+          write.setBytes(3, CryptoUtils.encryptBlob(plain, to, aad));
+          write.executeUpdate();
+          Arrays.fill(plain, (byte) 0);
+        }
+      }
+    }
+  }
+
+  private static long timestampIn(Connection conn, String alias, String id) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(
+        "SELECT timestamp FROM " + alias + ".attachments WHERE id = ?")) {
+      ps.setString(1, id);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() ? rs.getLong("timestamp") : -1;
+      }
+    }
+  }
+
+  // the attachment isn't outdated by a tombstone and its entry is in the merged
+  // vault
+  private static boolean isLive(Connection conn, String alias, String id, long timestamp) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement("SELECT deleted_at FROM deleted WHERE id = ?")) {
+      ps.setString(1, id);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next() && rs.getLong("deleted_at") > timestamp) {
+          return false;
+        }
+      }
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM " + alias + ".attachments a "
+        + "JOIN main.entries e ON e.id = a.entry_id WHERE a.id = ?")) {
+      ps.setString(1, id);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next();
+      }
+    }
+  }
+
+  private static ArrayList<String> idsOf(StatementCache statements, String entryId) throws SQLException {
+    ArrayList<String> ids = new ArrayList<>();
+    PreparedStatement ps = statements.get("SELECT id FROM attachments WHERE entry_id = ?");
+    ps.setString(1, entryId);
+    try (ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        ids.add(rs.getString("id"));
+      }
+    }
+
+    return ids;
+  }
+
+  // id || seq (8 bytes, big endian) || 1 if this is the last chunk
+  private static byte[] chunkAad(String id, long seq, boolean last) {
+    byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+    byte[] aad = Arrays.copyOf(idBytes, idBytes.length + 9);
+    for (int i = 0; i < 8; i++) {
+      aad[idBytes.length + i] = (byte) (seq >>> (56 - 8 * i));
+    }
+    aad[aad.length - 1] = (byte) (last ? 1 : 0);
+
+    return aad;
+  }
+
+  private static byte[] nameAad(String id) {
+    return (id + NAME_AAD_SUFFIX).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int n = 0;
+    while (n < buf.length) {
+      int r = in.read(buf, n, buf.length - n);
+      if (r < 0) {
+        break;
+      }
+      n += r;
+    }
+
+    return n;
+  }
+}
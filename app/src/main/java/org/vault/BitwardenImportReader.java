@@ -0,0 +1,110 @@
+package org.vault;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// The unencrypted JSON export of Bitwarden: {"encrypted": false, "folders": [...],
+// "items": [{"type": 1, "name", "login": {"username", "password", "uris": [{"uri"}]}}]}.
+// Items are pulled one by one out of the `items` array. Only logins (type 1)
+// carry credentials, the other item types come out incomplete and are skipped
+final class BitwardenImportReader implements ImportReader {
+  private static final String LOGIN_TYPE = "1";
+
+  private final Reader in;
+  private final JsonPullParser json;
+  private boolean done;
+
+  BitwardenImportReader(Reader in) throws IOException {
+    this.in = in;
+    this.json = new JsonPullParser(in);
+
+    this.json.beginObject();
+    while (this.json.hasNext()) {
+      String name = this.json.nextName();
+      if (name.equals("encrypted") && "true".equals(this.json.nextString())) {
+        throw new IllegalArgumentException("[BitwardenImportReader] ERROR: encrypted exports are not supported.");
+      } else if (name.equals("items")) {
+        this.json.beginArray();
+        return;
+      } else if (!name.equals("encrypted")) {
+        this.json.skipValue();
+      }
+    }
+
+    throw new IllegalArgumentException("[BitwardenImportReader] ERROR: no items in the export.");
+  }
+
+  @Override
+  public Credential next() throws IOException {
+    if (this.done) {
+      return null;
+    }
+    if (!this.json.hasNext()) {
+      this.done = true;
+      this.json.endArray();
+      return null;
+    }
+
+    String type = null, title = null, uri = null, username = null, passwd = null;
+    this.json.beginObject();
+    while (this.json.hasNext()) {
+      switch (this.json.nextName()) {
+        case "type" -> type = this.json.nextString();
+        case "name" -> title = this.json.nextString();
+        case "login" -> {
+          if (this.json.peek() == JsonPullParser.Token.NULL) {
+            this.json.skipValue();
+            continue;
+          }
+
+          this.json.beginObject();
+          while (this.json.hasNext()) {
+            switch (this.json.nextName()) {
+              case "username" -> username = this.json.nextString();
+              case "password" -> passwd = this.json.nextString();
+              case "uris" -> uri = firstUri();
+              default -> this.json.skipValue();
+            }
+          }
+          this.json.endObject();
+        }
+        default -> this.json.skipValue();
+      }
+    }
+    this.json.endObject();
+
+    if (!LOGIN_TYPE.equals(type)) {
+      return new Credential(null, null, null);
+    }
+    return new Credential(Credential.firstNonEmpty(uri, title), username, passwd);
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+
+  private String firstUri() throws IOException {
+    if (this.json.peek() != JsonPullParser.Token.BEGIN_ARRAY) {
+      this.json.skipValue();
+      return null;
+    }
+
+    String first = null;
+    this.json.beginArray();
+    while (this.json.hasNext()) {
+      this.json.beginObject();
+      while (this.json.hasNext()) {
+        if (this.json.nextName().equals("uri") && first == null) {
+          first = this.json.nextString();
+        } else {
+          this.json.skipValue();
+        }
+      }
+      this.json.endObject();
+    }
+    this.json.endArray();
+
+    return first;
+  }
+}
@@ -0,0 +1,76 @@
+package org.vault;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.EnumMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+// Per-thread cache of the JCA objects used by CryptoUtils, so provider lookups
+// happen once per thread instead of once per call. The objects are re-initialized
+// by every operation and must never be shared across threads or held across
+// calls.
+final class CryptoContext {
+  private static final ThreadLocal<CryptoContext> CONTEXT = ThreadLocal.withInitial(CryptoContext::new);
+
+  // one seeded DRBG for the whole process. SecureRandom is thread-safe
+  static final SecureRandom RANDOM = createRandom();
+
+  private Cipher cbcCipher;
+  private final EnumMap<CipherSuite, Cipher> blobCiphers = new EnumMap<>(CipherSuite.class);
+  private Mac hmacSha256;
+  private MessageDigest sha256;
+
+  private CryptoContext() {
+  }
+
+  static CryptoContext get() {
+    return CONTEXT.get();
+  }
+
+  Cipher cbcCipher() throws GeneralSecurityException {
+    if (this.cbcCipher == null) {
+      this.cbcCipher = Cipher.getInstance(VaultConst.ENCRYPTION_ALGO);
+    }
+
+    return this.cbcCipher;
+  }
+
+  Cipher blobCipher(CipherSuite suite) throws GeneralSecurityException {
+    Cipher cipher = this.blobCiphers.get(suite);
+    if (cipher == null) {
+      cipher = Cipher.getInstance(suite.transformation());
+      this.blobCiphers.put(suite, cipher);
+    }
+
+    return cipher;
+  }
+
+  Mac hmacSha256() throws GeneralSecurityException {
+    if (this.hmacSha256 == null) {
+      this.hmacSha256 = Mac.getInstance("HmacSHA256");
+    }
+
+    return this.hmacSha256;
+  }
+
+  MessageDigest sha256() throws NoSuchAlgorithmException {
+    if (this.sha256 == null) {
+      this.sha256 = MessageDigest.getInstance("SHA-256");
+    }
+
+    this.sha256.reset();
+    return this.sha256;
+  }
+
+  private static SecureRandom createRandom() {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  }
+}
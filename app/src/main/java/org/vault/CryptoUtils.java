@@ -1,78 +1,181 @@
 package org.vault;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
+import javax.crypto.Mac;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
-import java.security.spec.KeySpec;
-import java.util.Base64;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 public class CryptoUtils {
   public static EncryptedData encrypt(String plaintext, String passwd) throws Exception {
-    byte[] salt = generateRandomBytes(VaultConst.SALT_LENGTH);
-    SecretKeySpec key = deriveKeyFromPasswd(passwd, salt);
-
-    Cipher cipher = Cipher.getInstance(VaultConst.ENCRYPTION_ALGO);
-    byte[] iv = generateRandomBytes(VaultConst.IV_LENGTH);
-    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
-
-    byte[] encrypted = cipher.doFinal(plaintext.getBytes());
-    return new EncryptedData(Base64.getEncoder().encodeToString(encrypted), Base64.getEncoder().encodeToString(iv),
-        Base64.getEncoder().encodeToString(salt));
+    return encrypt(plaintext, passwd, generateRandomBytes(VaultConst.SALT_LENGTH));
   }
 
   public static EncryptedData encrypt(String plaintext, String passwd, byte[] salt) throws Exception {
-    SecretKeySpec key = deriveKeyFromPasswd(passwd, salt);
+    return encrypt(plaintext, deriveKeyFromPasswd(passwd, salt), salt);
+  }
 
-    Cipher cipher = Cipher.getInstance(VaultConst.ENCRYPTION_ALGO);
-    byte[] iv = generateRandomBytes(VaultConst.IV_LENGTH);
-    cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+  public static EncryptedData encrypt(String plaintext, String passwd, byte[] salt, byte[] iv) throws Exception {
+    return encrypt(plaintext, deriveKeyFromPasswd(passwd, salt), salt, iv);
+  }
 
-    byte[] encrypted = cipher.doFinal(plaintext.getBytes());
-    return new EncryptedData(Base64.getEncoder().encodeToString(encrypted), Base64.getEncoder().encodeToString(iv),
-        Base64.getEncoder().encodeToString(salt));
+  public static EncryptedData encrypt(String plaintext, SecretKeySpec key, byte[] salt) throws Exception {
+    return encrypt(plaintext, key, salt, generateRandomBytes(VaultConst.IV_LENGTH));
   }
 
-  public static EncryptedData encrypt(String plaintext, String passwd, byte[] salt, byte[] iv) throws Exception {
-    SecretKeySpec key = deriveKeyFromPasswd(passwd, salt);
+  public static EncryptedData encrypt(String plaintext, SecretKeySpec key, byte[] salt, byte[] iv) throws Exception {
+    return encrypt(plaintext.getBytes(), key, salt, iv);
+  }
 
-    Cipher cipher = Cipher.getInstance(VaultConst.ENCRYPTION_ALGO);
+  public static EncryptedData encrypt(byte[] plaintext, SecretKeySpec key, byte[] salt, byte[] iv) throws Exception {
+    Cipher cipher = CryptoContext.get().cbcCipher();
     cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
 
-    byte[] encrypted = cipher.doFinal(plaintext.getBytes());
-    return new EncryptedData(Base64.getEncoder().encodeToString(encrypted), Base64.getEncoder().encodeToString(iv),
-        Base64.getEncoder().encodeToString(salt));
+    return new EncryptedData(cipher.doFinal(plaintext), iv, salt);
   }
 
   public static String decrypt(EncryptedData data, String passwd) throws Exception {
-    byte[] cipherText = Base64.getDecoder().decode(data.getCipherText());
-    byte[] iv = Base64.getDecoder().decode(data.getIV());
-    byte[] salt = Base64.getDecoder().decode(data.getSalt());
+    return decrypt(data, deriveKeyFromPasswd(passwd, data.getSaltBytes()));
+  }
+
+  public static String decrypt(EncryptedData data, SecretKeySpec key) throws Exception {
+    return new String(decryptBytes(data, key), StandardCharsets.UTF_8);
+  }
+
+  public static byte[] decryptBytes(EncryptedData data, SecretKeySpec key) throws Exception {
+    Cipher cipher = CryptoContext.get().cbcCipher();
+    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(data.getIVBytes()));
+
+    return cipher.doFinal(data.getCipherTextBytes());
+  }
+
+  // the AEAD is picked by the key's algorithm, see CipherSuite
+  public static byte[] encryptBlob(byte[] plaintext, SecretKeySpec key, byte[] aad) throws Exception {
+    return encryptBlob(plaintext, 0, plaintext.length, key, aad);
+  }
+
+  public static byte[] encryptBlob(byte[] plaintext, int offset, int length, SecretKeySpec key, byte[] aad)
+      throws Exception {
+    CipherSuite suite = CipherSuite.forKey(key);
+    Cipher cipher = CryptoContext.get().blobCipher(suite);
+    byte[] iv = generateRandomBytes(VaultConst.GCM_IV_LENGTH);
+    cipher.init(Cipher.ENCRYPT_MODE, key, suite.params(iv));
+    cipher.updateAAD(aad);
+
+    byte[] blob = new byte[iv.length + cipher.getOutputSize(length)];
+    System.arraycopy(iv, 0, blob, 0, iv.length);
+    cipher.doFinal(plaintext, offset, length, blob, iv.length);
+
+    return blob;
+  }
 
-    SecretKeySpec key = deriveKeyFromPasswd(passwd, salt);
-    Cipher cipher = Cipher.getInstance(VaultConst.ENCRYPTION_ALGO);
-    cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+  public static byte[] decryptBlob(byte[] blob, SecretKeySpec key, byte[] aad) throws Exception {
+    CipherSuite suite = CipherSuite.forKey(key);
+    Cipher cipher = CryptoContext.get().blobCipher(suite);
+    cipher.init(Cipher.DECRYPT_MODE, key, suite.params(blob));
+    cipher.updateAAD(aad);
 
-    byte[] decrypted = cipher.doFinal(cipherText);
-    return new String(decrypted, StandardCharsets.UTF_8);
+    return cipher.doFinal(blob, VaultConst.GCM_IV_LENGTH, blob.length - VaultConst.GCM_IV_LENGTH);
   }
 
   public static SecretKeySpec deriveKeyFromPasswd(String passwd, byte[] salt) throws Exception {
-    SecretKeyFactory factory = SecretKeyFactory.getInstance(VaultConst.KEY_DERIVATION_FUNCTION);
-    KeySpec spec = new PBEKeySpec(passwd.toCharArray(), salt, VaultConst.ITERATIONS, VaultConst.KEY_LENGTH);
-    SecretKey res = factory.generateSecret(spec);
+    return deriveKeyFromPasswd(passwd, salt, Pbkdf2Derivation.legacy());
+  }
+
+  public static SecretKeySpec deriveKeyFromPasswd(String passwd, byte[] salt, KeyDerivation kdf) throws Exception {
+    return new SecretKeySpec(kdf.derive(passwd, salt, VaultConst.KEY_LENGTH / 8), "AES");
+  }
+
+  public static SecretKeySpec deriveKeyFromPasswd(SecretArena.Secret passwd, byte[] salt, KeyDerivation kdf)
+      throws Exception {
+    byte[] raw = kdf.derive(passwd, salt, VaultConst.KEY_LENGTH / 8);
+    try {
+      return new SecretKeySpec(raw, "AES");
+    } finally {
+      Arrays.fill(raw, (byte) 0);
+    }
+  }
+
+  public static byte[] hmacSha256(byte[] key, byte[] data) throws Exception {
+    Mac mac = CryptoContext.get().hmacSha256();
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+
+    return mac.doFinal(data);
+  }
+
+  // HKDF-SHA256 (RFC 5869), extract then expand
+  public static byte[] hkdf(byte[] salt, byte[] ikm, byte[] info, int length) throws GeneralSecurityException {
+    if (length > 255 * 32) {
+      throw new IllegalArgumentException("[CryptoUtils.hkdf] ERROR: output too long.");
+    }
+
+    Mac mac = CryptoContext.get().hmacSha256();
+    mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[32] : salt, "HmacSHA256"));
+    byte[] prk = mac.doFinal(ikm);
+
+    mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+    byte[] out = new byte[length];
+    byte[] t = new byte[0];
+    for (int i = 1, pos = 0; pos < length; i++) {
+      mac.update(t);
+      mac.update(info);
+      mac.update((byte) i);
+      t = mac.doFinal();
+
+      int n = Math.min(t.length, length - pos);
+      System.arraycopy(t, 0, out, pos, n);
+      pos += n;
+    }
+
+    Arrays.fill(prk, (byte) 0);
+    return out;
+  }
+
+  // for input keying material held in a SecretArena. The Mac needs it on the
+  // heap, so it gets a short-lived copy that is zeroed afterwards
+  static byte[] hkdf(byte[] salt, ByteBuffer ikm, byte[] info, int length) throws GeneralSecurityException {
+    byte[] copy = new byte[ikm.remaining()];
+    ikm.get(ikm.position(), copy);
+    try {
+      return hkdf(salt, copy, info, length);
+    } finally {
+      Arrays.fill(copy, (byte) 0);
+    }
+  }
+
+  public static SecretKeySpec generateDataKey() {
+    return generateDataKey(CipherSuite.AES_GCM);
+  }
+
+  public static SecretKeySpec generateDataKey(CipherSuite suite) {
+    return suite.key(generateRandomBytes(VaultConst.KEY_LENGTH / 8));
+  }
+
+  // seals a vault data key under a key derived from the master password
+  public static byte[] wrapKey(SecretKeySpec dataKey, SecretKeySpec kek) throws Exception {
+    return encryptBlob(dataKey.getEncoded(), kek, VaultConst.DATA_KEY_LABEL.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static SecretKeySpec unwrapKey(byte[] wrapped, SecretKeySpec kek, CipherSuite suite) throws Exception {
+    byte[] raw = decryptBlob(wrapped, kek, VaultConst.DATA_KEY_LABEL.getBytes(StandardCharsets.UTF_8));
+    try {
+      return suite.key(raw);
+    } finally {
+      Arrays.fill(raw, (byte) 0);
+    }
+  }
 
-    return new SecretKeySpec(res.getEncoded(), "AES");
+  public static byte[] keyCheckValue(SecretKeySpec key) throws Exception {
+    return hmacSha256(key.getEncoded(), VaultConst.KCV_LABEL.getBytes(StandardCharsets.UTF_8));
   }
 
   public static byte[] generateRandomBytes(int length) {
     byte[] res = new byte[length];
-    new SecureRandom().nextBytes(res);
+    CryptoContext.RANDOM.nextBytes(res);
 
     return res;
   }
@@ -0,0 +1,137 @@
+package org.vault;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// RFC 4180 CSV with a header row, as exported by browsers (url, username,
+// password) and Bitwarden (login_uri, login_username, login_password). Quoted
+// fields may span lines. The columns are found by name, `name`/`title` is
+// the label of rows without a URL
+final class CsvImportReader implements ImportReader {
+  private static final String[] URL_COLUMNS = { "url", "uri", "login_uri", "website" };
+  private static final String[] USERNAME_COLUMNS = { "username", "login_username", "user name", "login" };
+  private static final String[] PASSWD_COLUMNS = { "password", "login_password" };
+  private static final String[] TITLE_COLUMNS = { "name", "title" };
+
+  private final Reader in;
+  private final int urlColumn, usernameColumn, passwdColumn, titleColumn;
+  private int pushedBack = -2;
+
+  CsvImportReader(Reader in) throws IOException {
+    this.in = in;
+
+    List<String> header = nextRecord();
+    if (header == null) {
+      throw new IllegalArgumentException("[CsvImportReader] ERROR: the file is empty.");
+    }
+
+    this.urlColumn = column(header, URL_COLUMNS);
+    this.usernameColumn = column(header, USERNAME_COLUMNS);
+    this.passwdColumn = column(header, PASSWD_COLUMNS);
+    this.titleColumn = column(header, TITLE_COLUMNS);
+    if (this.passwdColumn < 0 || this.usernameColumn < 0 || (this.urlColumn < 0 && this.titleColumn < 0)) {
+      throw new IllegalArgumentException("[CsvImportReader] ERROR: no url, username and password columns in " + header);
+    }
+  }
+
+  @Override
+  public Credential next() throws IOException {
+    List<String> record;
+    do {
+      record = nextRecord();
+      if (record == null) {
+        return null;
+      }
+      // blank lines
+    } while (record.size() == 1 && record.get(0).isEmpty());
+
+    return new Credential(Credential.firstNonEmpty(field(record, this.urlColumn), field(record, this.titleColumn)),
+        field(record, this.usernameColumn), field(record, this.passwdColumn));
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+
+  private static int column(List<String> header, String[] names) {
+    for (String name : names) {
+      for (int i = 0; i < header.size(); i++) {
+        if (header.get(i).strip().toLowerCase(Locale.ROOT).equals(name)) {
+          return i;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  private static String field(List<String> record, int column) {
+    return column >= 0 && column < record.size() ? record.get(column) : "";
+  }
+
+  // the fields of the next record, or null at the end of the input
+  private List<String> nextRecord() throws IOException {
+    int c = read();
+    if (c == -1) {
+      return null;
+    }
+
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    while (true) {
+      if (quoted) {
+        if (c == -1) {
+          throw new IllegalArgumentException("[CsvImportReader.nextRecord] ERROR: unterminated quoted field.");
+        }
+        if (c == '"') {
+          int after = read();
+          if (after == '"') {
+            field.append('"');
+          } else {
+            quoted = false;
+            unread(after);
+          }
+        } else {
+          field.append((char) c);
+        }
+      } else if (c == '"' && field.length() == 0) {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else if (c == '\r' || c == '\n' || c == -1) {
+        if (c == '\r') {
+          int after = read();
+          if (after != '\n') {
+            unread(after);
+          }
+        }
+        fields.add(field.toString());
+        return fields;
+      } else {
+        field.append((char) c);
+      }
+
+      c = read();
+    }
+  }
+
+  private int read() throws IOException {
+    if (this.pushedBack != -2) {
+      int c = this.pushedBack;
+      this.pushedBack = -2;
+      return c;
+    }
+
+    return this.in.read();
+  }
+
+  private void unread(int c) {
+    this.pushedBack = c;
+  }
+}
@@ -0,0 +1,117 @@
+package org.vault;
+
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.net.InternetDomainName;
+
+// Blind index over the site of every entry (format 10). `entries.host_tag` and
+// `entries.domain_tag` hold a truncated HMAC of the normalized host of the url
+// and of its registrable domain, under a key derived from the data key. A
+// lookup by site tags the query the same way and finds its rows through the
+// column indexes, without decrypting the rest of the vault.
+//
+// The tags reveal which entries share a host or a domain, but not the name
+// itself. They only depend on the data key, so changing the master password
+// keeps them valid
+final class DomainIndex {
+  private static final byte[] KEY_LABEL = "yapm-domain-index-v1".getBytes(StandardCharsets.UTF_8);
+  private static final int TAG_LENGTH = 16;
+
+  private final byte[] key;
+
+  DomainIndex(SecretKeySpec dataKey) throws GeneralSecurityException {
+    byte[] raw = dataKey.getEncoded();
+    try {
+      this.key = CryptoUtils.hkdf(null, raw, KEY_LABEL, 32);
+    } finally {
+      Arrays.fill(raw, (byte) 0);
+    }
+  }
+
+  static void createIndexes(Statement statement) throws SQLException {
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS entries_host_tag ON entries(host_tag);");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS entries_domain_tag ON entries(domain_tag);");
+  }
+
+  // null for a url without a host
+  byte[] hostTag(String url) throws Exception {
+    String host = host(url);
+    return host == null ? null : tag(host);
+  }
+
+  byte[] domainTag(String url) throws Exception {
+    String host = host(url);
+    return host == null ? null : tag(domain(host));
+  }
+
+  private byte[] tag(String name) throws Exception {
+    return Arrays.copyOf(CryptoUtils.hmacSha256(this.key, name.getBytes(StandardCharsets.UTF_8)), TAG_LENGTH);
+  }
+
+  // "https://user@WWW.Example.com:8443/login?x" -> "example.com". Urls are
+  // typed by hand, so the scheme is optional and anything that doesn't parse
+  // as a url is indexed as it is. "www." is dropped, it never names a
+  // different site
+  static String host(String url) {
+    String host = url.strip().toLowerCase(Locale.ROOT);
+
+    int scheme = host.indexOf("://");
+    if (scheme >= 0) {
+      host = host.substring(scheme + 3);
+    }
+    for (char c : new char[] { '/', '?', '#' }) {
+      int end = host.indexOf(c);
+      if (end >= 0) {
+        host = host.substring(0, end);
+      }
+    }
+    host = host.substring(host.lastIndexOf('@') + 1);
+
+    if (host.startsWith("[")) {
+      // IPv6 literal, the colons are part of the address
+      int close = host.indexOf(']');
+      host = close > 0 ? host.substring(0, close + 1) : host;
+    } else if (host.indexOf(':') >= 0) {
+      host = host.substring(0, host.indexOf(':'));
+    }
+
+    while (host.endsWith(".")) {
+      host = host.substring(0, host.length() - 1);
+    }
+    if (host.startsWith("www.")) {
+      host = host.substring(4);
+    }
+
+    try {
+      host = IDN.toASCII(host, IDN.ALLOW_UNASSIGNED);
+    } catch (IllegalArgumentException e) {
+      // not a DNS name, keep it as typed
+    }
+
+    return host.isEmpty() ? null : host;
+  }
+
+  // the registrable domain of a normalized host per the public suffix list:
+  // "login.example.co.uk" -> "example.co.uk". Addresses, single labels and
+  // public suffixes are their own domain
+  static String domain(String host) {
+    try {
+      InternetDomainName name = InternetDomainName.from(host);
+      if (name.isUnderPublicSuffix()) {
+        return name.topPrivateDomain().toString();
+      }
+    } catch (IllegalArgumentException e) {
+      // IP addresses and names that aren't valid DNS names
+    }
+
+    return host;
+  }
+}
@@ -1,25 +1,51 @@
 package org.vault;
 
+import java.util.Base64;
+
 public class EncryptedData {
-  private final String cipherText;
-  private final String iv;
-  private final String salt;
+  private final byte[] cipherText;
+  private final byte[] iv;
+  private final byte[] salt;
 
-  public EncryptedData(String cipherText, String iv, String salt) {
+  public EncryptedData(byte[] cipherText, byte[] iv, byte[] salt) {
     this.cipherText = cipherText;
     this.iv = iv;
     this.salt = salt;
   }
 
+  public EncryptedData(String cipherText, String iv, String salt) {
+    this(decode(cipherText), decode(iv), decode(salt));
+  }
+
   public String getCipherText() {
-    return this.cipherText;
+    return encode(this.cipherText);
   }
 
   public String getIV() {
-    return this.iv;
+    return encode(this.iv);
   }
 
   public String getSalt() {
+    return encode(this.salt);
+  }
+
+  public byte[] getCipherTextBytes() {
+    return this.cipherText;
+  }
+
+  public byte[] getIVBytes() {
+    return this.iv;
+  }
+
+  public byte[] getSaltBytes() {
     return this.salt;
   }
+
+  private static byte[] decode(String b64) {
+    return b64 == null ? null : Base64.getDecoder().decode(b64);
+  }
+
+  private static String encode(byte[] bytes) {
+    return bytes == null ? null : Base64.getEncoder().encodeToString(bytes);
+  }
 }
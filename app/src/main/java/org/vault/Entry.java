@@ -1,16 +1,38 @@
 package org.vault;
 
+import javax.crypto.spec.SecretKeySpec;
+
 public class Entry {
   private final String id;
   private final String url;
   private final String username;
-  private final String passwd;
+
+  // the password stays sealed until getPasswd() is called. The plaintext is
+  // only kept around for `passwdCacheMillis` after a decryption
+  private final byte[] sealedPasswd;
+  private final SecretKeySpec key;
+  private final long passwdCacheMillis;
+  private String passwd;
+  private long passwdExpiresAt;
 
   Entry(String id, String url, String username, String passwd) {
     this.id = id;
     this.url = url;
     this.username = username;
     this.passwd = passwd;
+    this.passwdExpiresAt = Long.MAX_VALUE;
+    this.sealedPasswd = null;
+    this.key = null;
+    this.passwdCacheMillis = 0;
+  }
+
+  Entry(String id, String url, String username, byte[] sealedPasswd, SecretKeySpec key, long passwdCacheMillis) {
+    this.id = id;
+    this.url = url;
+    this.username = username;
+    this.sealedPasswd = sealedPasswd;
+    this.key = key;
+    this.passwdCacheMillis = passwdCacheMillis;
   }
 
   public String getID() {
@@ -25,14 +47,36 @@ public class Entry {
     return this.username;
   }
 
-  public String getPasswd() {
-    return this.passwd;
+  public synchronized String getPasswd() {
+    if (this.sealedPasswd == null) {
+      return this.passwd;
+    }
+
+    long now = System.currentTimeMillis();
+    if (this.passwd != null && now < this.passwdExpiresAt) {
+      return this.passwd;
+    }
+    this.passwd = null;
+
+    String plain;
+    try {
+      plain = EntryCodec.openSecret(this.id, this.sealedPasswd, this.key);
+    } catch (Exception e) {
+      throw new IllegalStateException("[Entry.getPasswd] ERROR: failed to decrypt the password of " + this.id, e);
+    }
+
+    if (this.passwdCacheMillis > 0) {
+      this.passwd = plain;
+      this.passwdExpiresAt = now + this.passwdCacheMillis;
+    }
+
+    return plain;
   }
 
   public void display() {
     System.out.println("ID: " + this.id);
     System.out.println("URL: " + this.url);
     System.out.println("Username: " + this.username);
-    System.out.println("Password: " + this.passwd);
+    System.out.println("Password: " + this.getPasswd());
   }
 }
@@ -0,0 +1,120 @@
+package org.vault;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// Decrypted entries of one VaultManager, keyed by id and versioned by the
+// `timestamp` column of their row. Every write to a row gives it a new
+// timestamp, so openVault() only decrypts the rows whose (id, timestamp) it
+// hasn't seen yet, also after a sync replaced the whole file. The writes of
+// the manager itself invalidate their ids too, a row may be rewritten within
+// the same millisecond.
+//
+// The cache holds at most `maxEntries` and drops the ones nobody asked for in
+// `idleMillis`, least recently used first. The passwords stay sealed in the
+// cached entries. Everything is dropped when the data key changes
+final class EntryCache {
+  private static final class Cached {
+    final long timestamp;
+    final Entry entry;
+    long lastUsed;
+
+    Cached(long timestamp, Entry entry, long lastUsed) {
+      this.timestamp = timestamp;
+      this.entry = entry;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  private final LinkedHashMap<String, Cached> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private int maxEntries;
+  private long idleMillis;
+  private byte[] keyCheck;
+
+  EntryCache(int maxEntries, long idleMillis) {
+    this.maxEntries = maxEntries;
+    this.idleMillis = idleMillis;
+  }
+
+  synchronized void configure(int maxEntries, long idleMillis) {
+    this.maxEntries = maxEntries;
+    this.idleMillis = idleMillis;
+    evict(System.currentTimeMillis());
+  }
+
+  // entries decrypted under another key are useless, and their sealed
+  // passwords won't open with this one
+  synchronized void bind(SecretKeySpec key) throws Exception {
+    byte[] check = CryptoUtils.keyCheckValue(key);
+    if (this.keyCheck == null || !MessageDigest.isEqual(this.keyCheck, check)) {
+      this.entries.clear();
+      this.keyCheck = check;
+    }
+  }
+
+  // null unless the entry is cached at exactly this version
+  synchronized Entry get(String id, long timestamp) {
+    Cached cached = this.entries.get(id);
+    if (cached == null) {
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+    if (cached.timestamp != timestamp || now - cached.lastUsed > this.idleMillis) {
+      this.entries.remove(id);
+      return null;
+    }
+
+    cached.lastUsed = now;
+    return cached.entry;
+  }
+
+  synchronized void put(String id, long timestamp, Entry entry) {
+    if (this.maxEntries <= 0) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    this.entries.put(id, new Cached(timestamp, entry, now));
+    evict(now);
+  }
+
+  synchronized void invalidate(String id) {
+    this.entries.remove(id);
+  }
+
+  // drops the ids that are no longer in the vault
+  synchronized void retainAll(Set<String> ids) {
+    this.entries.keySet().retainAll(ids);
+  }
+
+  synchronized void clear() {
+    this.entries.clear();
+    if (this.keyCheck != null) {
+      Arrays.fill(this.keyCheck, (byte) 0);
+      this.keyCheck = null;
+    }
+  }
+
+  synchronized int size() {
+    return this.entries.size();
+  }
+
+  // in access order, so the least recently used come first
+  private void evict(long now) {
+    Iterator<Map.Entry<String, Cached>> it = this.entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Cached eldest = it.next().getValue();
+      if (this.entries.size() <= this.maxEntries && now - eldest.lastUsed <= this.idleMillis) {
+        break;
+      }
+      it.remove();
+    }
+  }
+}
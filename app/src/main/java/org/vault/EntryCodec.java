@@ -0,0 +1,92 @@
+package org.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// Packs the fields of an entry into a single buffer so they can be sealed as
+// one blob. Every field is written as an unsigned LEB128 length followed by its
+// UTF-8 bytes.
+//
+// Since format 4 a row holds two blobs: `data` (url, username) which is opened
+// with the vault, and `secret` (password) which is only opened on demand. Both
+// are bound to the entry id, and to each other's role, through the AAD.
+class EntryCodec {
+  private static final String SECRET_AAD_SUFFIX = "#secret";
+
+  static byte[] sealData(String id, String url, String username, SecretKeySpec key) throws Exception {
+    return CryptoUtils.encryptBlob(pack(url, username), key, id.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static String[] openData(String id, byte[] blob, SecretKeySpec key) throws Exception {
+    return unpack(CryptoUtils.decryptBlob(blob, key, id.getBytes(StandardCharsets.UTF_8)), 2);
+  }
+
+  static byte[] sealSecret(String id, String passwd, SecretKeySpec key) throws Exception {
+    return CryptoUtils.encryptBlob(passwd.getBytes(StandardCharsets.UTF_8), key, secretAad(id));
+  }
+
+  static String openSecret(String id, byte[] blob, SecretKeySpec key) throws Exception {
+    return new String(CryptoUtils.decryptBlob(blob, key, secretAad(id)), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] secretAad(String id) {
+    return (id + SECRET_AAD_SUFFIX).getBytes(StandardCharsets.UTF_8);
+  }
+
+  static byte[] pack(String... fields) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    for (String field : fields) {
+      byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+
+    return out.toByteArray();
+  }
+
+  static String[] unpack(byte[] data, int fieldCount) {
+    String[] fields = new String[fieldCount];
+    int pos = 0;
+
+    for (int i = 0; i < fieldCount; i++) {
+      int len = 0;
+      int shift = 0;
+      while (true) {
+        if (pos >= data.length || shift > 28) {
+          throw new IllegalArgumentException("[EntryCodec.unpack] ERROR: malformed field length.");
+        }
+
+        int b = data[pos++] & 0xFF;
+        len |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          break;
+        }
+        shift += 7;
+      }
+
+      if (len < 0 || len > data.length - pos) {
+        throw new IllegalArgumentException("[EntryCodec.unpack] ERROR: field runs past the end of the blob.");
+      }
+
+      fields[i] = new String(data, pos, len, StandardCharsets.UTF_8);
+      pos += len;
+    }
+
+    if (pos != data.length) {
+      throw new IllegalArgumentException("[EntryCodec.unpack] ERROR: trailing bytes after the last field.");
+    }
+
+    return fields;
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+}
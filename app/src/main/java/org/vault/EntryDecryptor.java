@@ -0,0 +1,94 @@
+package org.vault;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// Decrypts rows read from the `entries` cursor on a worker pool shared by the
+// whole process. Each call keeps at most QUEUE_CAPACITY rows in flight; beyond
+// that the submitting (JDBC) thread decrypts the row itself, so the cursor can
+// never run far ahead of the workers. Each worker reuses its thread's Cipher
+// through CryptoContext. Results are handed back in submission order.
+class EntryDecryptor implements AutoCloseable {
+  private static final int QUEUE_CAPACITY = 256;
+
+  // created on first use, its daemon threads live as long as the process
+  private static final class Workers {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), r -> {
+          Thread t = new Thread(r, "vault-decrypt-" + threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  private final SecretKeySpec key;
+  private final long passwdCacheMillis;
+  private final Semaphore inFlight = new Semaphore(QUEUE_CAPACITY);
+  private final ArrayList<Future<Entry>> pending = new ArrayList<>();
+
+  EntryDecryptor(SecretKeySpec key, long passwdCacheMillis) {
+    this.key = key;
+    this.passwdCacheMillis = passwdCacheMillis;
+  }
+
+  // only the url/username blob is opened here, the password stays sealed in
+  // the Entry until it is asked for
+  void submit(String id, byte[] data, byte[] secret) {
+    Callable<Entry> task = () -> {
+      String[] fields = EntryCodec.openData(id, data, this.key);
+
+      return new Entry(id, fields[0], fields[1], secret, this.key, this.passwdCacheMillis);
+    };
+
+    if (!this.inFlight.tryAcquire()) {
+      FutureTask<Entry> own = new FutureTask<>(task);
+      own.run();
+      this.pending.add(own);
+      return;
+    }
+
+    this.pending.add(Workers.POOL.submit(() -> {
+      try {
+        return task.call();
+      } finally {
+        this.inFlight.release();
+      }
+    }));
+  }
+
+  // blocks until every submitted row is decrypted and appends them in the
+  // order they were submitted
+  void drainTo(ArrayList<Entry> entries) throws Exception {
+    entries.ensureCapacity(entries.size() + this.pending.size());
+
+    try {
+      for (Future<Entry> f : this.pending) {
+        entries.add(f.get());
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw (cause instanceof Exception) ? (Exception) cause : e;
+    } finally {
+      this.pending.clear();
+    }
+  }
+
+  // drops the rows of this call that no worker picked up yet
+  @Override
+  public void close() {
+    for (Future<Entry> f : this.pending) {
+      f.cancel(false);
+    }
+    this.pending.clear();
+  }
+}
@@ -0,0 +1,9 @@
+package org.vault;
+
+// Receives the entries of VaultManager.scanVault() one by one. `rowId` orders
+// the entries of a vault and resumes a scan after them
+@FunctionalInterface
+public interface EntryVisitor {
+  // false stops the scan
+  boolean visit(long rowId, Entry entry) throws Exception;
+}
@@ -0,0 +1,68 @@
+package org.vault;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// The export files VaultManager.importEntries() understands
+public enum ImportFormat {
+  CSV("csv", ".csv"),
+  BITWARDEN_JSON("bitwarden-json", ".json"),
+  KEEPASS_XML("keepass-xml", ".xml");
+
+  private final String id;
+  private final String extension;
+
+  ImportFormat(String id, String extension) {
+    this.id = id;
+    this.extension = extension;
+  }
+
+  public String id() {
+    return this.id;
+  }
+
+  public static ImportFormat fromId(String id) {
+    for (ImportFormat format : values()) {
+      if (format.id.equals(id)) {
+        return format;
+      }
+    }
+
+    throw new IllegalArgumentException("[ImportFormat.fromId] ERROR: unknown import format: " + id);
+  }
+
+  public static ImportFormat forFileName(String fileName) {
+    String lower = fileName.toLowerCase(Locale.ROOT);
+    for (ImportFormat format : values()) {
+      if (lower.endsWith(format.extension)) {
+        return format;
+      }
+    }
+
+    throw new IllegalArgumentException("[ImportFormat.forFileName] ERROR: unknown export file: " + fileName);
+  }
+
+  ImportReader open(InputStream in) throws IOException {
+    // the XML declaration names its own encoding
+    if (this == KEEPASS_XML) {
+      return new KeePassImportReader(in);
+    }
+
+    Reader reader = withoutBom(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    return this == CSV ? new CsvImportReader(reader) : new BitwardenImportReader(reader);
+  }
+
+  private static Reader withoutBom(BufferedReader reader) throws IOException {
+    reader.mark(1);
+    if (reader.read() != '\uFEFF') {
+      reader.reset();
+    }
+
+    return reader;
+  }
+}
@@ -0,0 +1,42 @@
+package org.vault;
+
+import java.io.IOException;
+
+// Pulls one credential at a time out of an export file, so an import never
+// holds more of the source in memory than VaultImporter has in flight. Malformed
+// input is reported with an IllegalArgumentException
+interface ImportReader extends AutoCloseable {
+  // null once the source is exhausted. Fields the source doesn't have are
+  // empty, VaultImporter skips what a vault entry can't hold
+  Credential next() throws IOException;
+
+  @Override
+  void close() throws IOException;
+
+  final class Credential {
+    final String url;
+    final String username;
+    final String passwd;
+
+    Credential(String url, String username, String passwd) {
+      this.url = url == null ? "" : url.strip();
+      this.username = username == null ? "" : username.strip();
+      this.passwd = passwd == null ? "" : passwd;
+    }
+
+    // e.g. the URL, else the title of the entry as its label
+    static String firstNonEmpty(String... values) {
+      for (String value : values) {
+        if (value != null && !value.isBlank()) {
+          return value;
+        }
+      }
+
+      return "";
+    }
+
+    boolean isComplete() {
+      return !this.url.isEmpty() && !this.username.isEmpty() && !this.passwd.isEmpty();
+    }
+  }
+}
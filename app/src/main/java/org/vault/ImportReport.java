@@ -0,0 +1,53 @@
+package org.vault;
+
+// What VaultManager.importEntries() did with an export file
+public final class ImportReport {
+  private int imported;
+  // already in the vault, or earlier in the same file
+  private int duplicates;
+  // missing a URL (or title), username or password
+  private int skipped;
+  private long elapsedNanos;
+
+  public int getImported() {
+    return this.imported;
+  }
+
+  public int getDuplicates() {
+    return this.duplicates;
+  }
+
+  public int getSkipped() {
+    return this.skipped;
+  }
+
+  public long getElapsedMillis() {
+    return this.elapsedNanos / 1_000_000;
+  }
+
+  public double getEntriesPerSecond() {
+    return this.elapsedNanos == 0 ? 0 : this.imported * 1e9 / this.elapsedNanos;
+  }
+
+  void addImported(int count) {
+    this.imported += count;
+  }
+
+  void addDuplicate() {
+    this.duplicates++;
+  }
+
+  void addSkipped() {
+    this.skipped++;
+  }
+
+  void setElapsedNanos(long elapsedNanos) {
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d imported, %d duplicates, %d skipped in %d ms (%.0f entries/s)", this.imported,
+        this.duplicates, this.skipped, getElapsedMillis(), getEntriesPerSecond());
+  }
+}
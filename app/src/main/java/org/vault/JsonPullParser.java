@@ -0,0 +1,284 @@
+package org.vault;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.regex.Pattern;
+
+// A minimal streaming JSON reader: the caller walks the document token by
+// token (beginObject(), nextName(), nextString(), skipValue(), ...) and only
+// the current token is held in memory. Numbers and booleans are returned as
+// their text.
+final class JsonPullParser {
+  enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  }
+
+  private static final Pattern NUMBER_PATTERN = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+  private enum Scope {
+    DOCUMENT, DOCUMENT_DONE, ARRAY_FIRST, ARRAY_NEXT, OBJECT_FIRST, OBJECT_NEXT, OBJECT_VALUE
+  }
+
+  private final Reader in;
+  private final ArrayDeque<Scope> scopes = new ArrayDeque<>();
+  private Token peeked;
+  private String peekedText;
+  private int pushedBack = -2;
+
+  JsonPullParser(Reader in) {
+    this.in = in;
+    this.scopes.push(Scope.DOCUMENT);
+  }
+
+  Token peek() throws IOException {
+    if (this.peeked != null) {
+      return this.peeked;
+    }
+
+    Scope scope = this.scopes.pop();
+    int c = nextNonSpace();
+    switch (scope) {
+      case DOCUMENT -> {
+        this.scopes.push(Scope.DOCUMENT_DONE);
+        readValue(c);
+      }
+      case DOCUMENT_DONE -> {
+        this.scopes.push(scope);
+        if (c != -1) {
+          throw syntaxError("trailing data after the document");
+        }
+        this.peeked = Token.END_DOCUMENT;
+      }
+      case ARRAY_FIRST, ARRAY_NEXT -> {
+        this.scopes.push(Scope.ARRAY_NEXT);
+        if (c == ']') {
+          this.peeked = Token.END_ARRAY;
+        } else if (scope == Scope.ARRAY_FIRST) {
+          readValue(c);
+        } else if (c == ',') {
+          readValue(nextNonSpace());
+        } else {
+          throw syntaxError("expected ',' or ']'");
+        }
+      }
+      case OBJECT_FIRST, OBJECT_NEXT -> {
+        this.scopes.push(Scope.OBJECT_VALUE);
+        if (c == '}') {
+          this.peeked = Token.END_OBJECT;
+        } else {
+          if (scope == Scope.OBJECT_NEXT) {
+            if (c != ',') {
+              throw syntaxError("expected ',' or '}'");
+            }
+            c = nextNonSpace();
+          }
+          if (c != '"') {
+            throw syntaxError("expected a name");
+          }
+          this.peeked = Token.NAME;
+          this.peekedText = readString();
+        }
+      }
+      case OBJECT_VALUE -> {
+        this.scopes.push(Scope.OBJECT_NEXT);
+        if (c != ':') {
+          throw syntaxError("expected ':'");
+        }
+        readValue(nextNonSpace());
+      }
+    }
+
+    return this.peeked;
+  }
+
+  void beginObject() throws IOException {
+    consume(Token.BEGIN_OBJECT);
+    this.scopes.push(Scope.OBJECT_FIRST);
+  }
+
+  void endObject() throws IOException {
+    consume(Token.END_OBJECT);
+    this.scopes.pop();
+  }
+
+  void beginArray() throws IOException {
+    consume(Token.BEGIN_ARRAY);
+    this.scopes.push(Scope.ARRAY_FIRST);
+  }
+
+  void endArray() throws IOException {
+    consume(Token.END_ARRAY);
+    this.scopes.pop();
+  }
+
+  // whether the current object or array has another member
+  boolean hasNext() throws IOException {
+    Token token = peek();
+    return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+  }
+
+  String nextName() throws IOException {
+    String name = this.peekedText;
+    consume(Token.NAME);
+    return name;
+  }
+
+  // a string, number or boolean as text, or null
+  String nextString() throws IOException {
+    Token token = peek();
+    if (token != Token.STRING && token != Token.NUMBER && token != Token.BOOLEAN && token != Token.NULL) {
+      throw syntaxError("expected a value but was " + token);
+    }
+
+    String text = this.peekedText;
+    this.peeked = null;
+    this.peekedText = null;
+    return text;
+  }
+
+  void skipValue() throws IOException {
+    int depth = 0;
+    do {
+      switch (peek()) {
+        case BEGIN_OBJECT -> {
+          beginObject();
+          depth++;
+        }
+        case BEGIN_ARRAY -> {
+          beginArray();
+          depth++;
+        }
+        case END_OBJECT -> {
+          endObject();
+          depth--;
+        }
+        case END_ARRAY -> {
+          endArray();
+          depth--;
+        }
+        case NAME -> nextName();
+        case END_DOCUMENT -> throw syntaxError("unexpected end of the document");
+        default -> nextString();
+      }
+    } while (depth > 0);
+  }
+
+  private void consume(Token expected) throws IOException {
+    Token token = peek();
+    if (token != expected) {
+      throw syntaxError("expected " + expected + " but was " + token);
+    }
+
+    this.peeked = null;
+    this.peekedText = null;
+  }
+
+  private void readValue(int c) throws IOException {
+    this.peekedText = null;
+    switch (c) {
+      case '{' -> this.peeked = Token.BEGIN_OBJECT;
+      case '[' -> this.peeked = Token.BEGIN_ARRAY;
+      case '"' -> {
+        this.peeked = Token.STRING;
+        this.peekedText = readString();
+      }
+      case -1 -> throw syntaxError("unexpected end of the document");
+      default -> {
+        String literal = readLiteral(c);
+        if (literal.equals("true") || literal.equals("false")) {
+          this.peeked = Token.BOOLEAN;
+          this.peekedText = literal;
+        } else if (literal.equals("null")) {
+          this.peeked = Token.NULL;
+        } else if (NUMBER_PATTERN.matcher(literal).matches()) {
+          this.peeked = Token.NUMBER;
+          this.peekedText = literal;
+        } else {
+          throw syntaxError("unexpected '" + literal + "'");
+        }
+      }
+    }
+  }
+
+  private String readLiteral(int c) throws IOException {
+    StringBuilder literal = new StringBuilder();
+    while (c != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.')) {
+      literal.append((char) c);
+      c = read();
+    }
+    unread(c);
+
+    if (literal.length() == 0) {
+      throw syntaxError("unexpected '" + (char) c + "'");
+    }
+    return literal.toString();
+  }
+
+  // after the opening quote
+  private String readString() throws IOException {
+    StringBuilder text = new StringBuilder();
+    while (true) {
+      int c = read();
+      if (c == '"') {
+        return text.toString();
+      }
+      if (c == -1 || c < 0x20) {
+        throw syntaxError("unterminated string");
+      }
+      if (c != '\\') {
+        text.append((char) c);
+        continue;
+      }
+
+      c = read();
+      switch (c) {
+        case '"', '\\', '/' -> text.append((char) c);
+        case 'b' -> text.append('\b');
+        case 'f' -> text.append('\f');
+        case 'n' -> text.append('\n');
+        case 'r' -> text.append('\r');
+        case 't' -> text.append('\t');
+        case 'u' -> {
+          int code = 0;
+          for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+              throw syntaxError("bad \\u escape");
+            }
+            code = code << 4 | digit;
+          }
+          text.append((char) code);
+        }
+        default -> throw syntaxError("bad escape");
+      }
+    }
+  }
+
+  private int nextNonSpace() throws IOException {
+    int c;
+    do {
+      c = read();
+    } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+
+    return c;
+  }
+
+  private int read() throws IOException {
+    if (this.pushedBack != -2) {
+      int c = this.pushedBack;
+      this.pushedBack = -2;
+      return c;
+    }
+
+    return this.in.read();
+  }
+
+  private void unread(int c) {
+    this.pushedBack = c;
+  }
+
+  private static IllegalArgumentException syntaxError(String message) {
+    return new IllegalArgumentException("[JsonPullParser] ERROR: malformed JSON, " + message + ".");
+  }
+}
@@ -0,0 +1,36 @@
+package org.vault;
+
+import java.security.GeneralSecurityException;
+
+// Picks the cost of a KeyDerivation for this host by timing it, so unlocking a
+// new vault takes about `targetMillis`. The result is never cheaper than the
+// KDF's own minimum, only more expensive on fast machines.
+final class KdfCalibrator {
+  private static final String PROBE_PASSWD = "kdf-calibration";
+  // a run is timed as at least 1 ms, so no calibration scales the floor by
+  // more than this
+  static final double MAX_FACTOR = VaultConst.KDF_TARGET_MILLIS;
+
+  private KdfCalibrator() {
+  }
+
+  static KeyDerivation calibrate(KeyDerivation base, long targetMillis) throws GeneralSecurityException {
+    KeyDerivation floor = base.scaled(1);
+    if (targetMillis <= 0) {
+      return floor;
+    }
+
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+    int keyLength = VaultConst.KEY_LENGTH / 8;
+
+    // the first run pays for class loading and JIT warm-up
+    floor.derive(PROBE_PASSWD, salt, keyLength);
+
+    long start = System.nanoTime();
+    floor.derive(PROBE_PASSWD, salt, keyLength);
+    double elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000.0);
+
+    double factor = targetMillis / elapsedMillis;
+    return factor > 1 ? floor.scaled(factor) : floor;
+  }
+}
@@ -0,0 +1,124 @@
+package org.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+// The "KeePass XML (2.x)" export, read with StAX: every <Entry> of every
+// <Group>, with its Title, UserName, Password and URL <String>s. Old versions
+// of an entry under <History> are not imported. Values with Protected="True"
+// are only readable inside a .kdbx, so such a file is rejected
+final class KeePassImportReader implements ImportReader {
+  private final InputStream in;
+  private final XMLStreamReader xml;
+
+  KeePassImportReader(InputStream in) throws IOException {
+    this.in = in;
+
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    // no DTDs, so no external entities either
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try {
+      this.xml = factory.createXMLStreamReader(in);
+      if (this.xml.nextTag() != XMLStreamConstants.START_ELEMENT || !this.xml.getLocalName().equals("KeePassFile")) {
+        throw new IllegalArgumentException("[KeePassImportReader] ERROR: not a KeePass XML export.");
+      }
+    } catch (XMLStreamException e) {
+      throw new IllegalArgumentException("[KeePassImportReader] ERROR: malformed XML.", e);
+    }
+  }
+
+  @Override
+  public Credential next() throws IOException {
+    try {
+      while (this.xml.hasNext()) {
+        if (this.xml.next() == XMLStreamConstants.START_ELEMENT && this.xml.getLocalName().equals("Entry")) {
+          return readEntry();
+        }
+      }
+
+      return null;
+    } catch (XMLStreamException e) {
+      throw new IllegalArgumentException("[KeePassImportReader.next] ERROR: malformed XML.", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      this.xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
+      this.in.close();
+    }
+  }
+
+  // from <Entry> to its </Entry>
+  private Credential readEntry() throws XMLStreamException {
+    String title = null, username = null, passwd = null, url = null;
+    int depth = 1;
+    while (depth > 0) {
+      int event = this.xml.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        if (depth == 1 && this.xml.getLocalName().equals("String")) {
+          String[] field = readString();
+          switch (field[0]) {
+            case "Title" -> title = field[1];
+            case "UserName" -> username = field[1];
+            case "Password" -> passwd = field[1];
+            case "URL" -> url = field[1];
+            default -> {
+            }
+          }
+        } else if (depth == 1 && this.xml.getLocalName().equals("History")) {
+          skipElement();
+        } else {
+          depth++;
+        }
+      }
+    }
+
+    return new Credential(Credential.firstNonEmpty(url, title), username, passwd);
+  }
+
+  // <String><Key>..</Key><Value>..</Value></String> as { key, value }
+  private String[] readString() throws XMLStreamException {
+    String[] field = { "", "" };
+    while (this.xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String name = this.xml.getLocalName();
+      if (name.equals("Value") && "True".equalsIgnoreCase(this.xml.getAttributeValue(null, "Protected"))) {
+        throw new IllegalArgumentException("[KeePassImportReader.readString] ERROR: protected values, export "
+            + "the database as KeePass XML instead.");
+      }
+
+      String text = this.xml.getElementText();
+      if (name.equals("Key")) {
+        field[0] = text;
+      } else if (name.equals("Value")) {
+        field[1] = text;
+      }
+    }
+
+    return field;
+  }
+
+  private void skipElement() throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = this.xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+}
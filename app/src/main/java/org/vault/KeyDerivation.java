@@ -0,0 +1,56 @@
+package org.vault;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+// A password-based key derivation function together with its cost parameters.
+// Vaults store id() and encodeParams() in `metadata` so they can be re-derived
+// with exactly the parameters they were created with.
+public interface KeyDerivation {
+  public String id();
+
+  public String encodeParams();
+
+  // `passwd` holds the UTF-8 password from its position to its limit. It is
+  // only read, with absolute gets, so a SecretArena view works as it is
+  public byte[] derive(ByteBuffer passwd, byte[] salt, int keyLength) throws GeneralSecurityException;
+
+  public default byte[] derive(SecretArena.Secret passwd, byte[] salt, int keyLength)
+      throws GeneralSecurityException {
+    return derive(passwd.view(), salt, keyLength);
+  }
+
+  public default byte[] derive(String passwd, byte[] salt, int keyLength) throws GeneralSecurityException {
+    byte[] passwdBytes = passwd.getBytes(StandardCharsets.UTF_8);
+    try {
+      return derive(ByteBuffer.wrap(passwdBytes), salt, keyLength);
+    } finally {
+      Arrays.fill(passwdBytes, (byte) 0);
+    }
+  }
+
+  // a copy whose cost is roughly `factor` times this one, never below the
+  // function's minimum
+  public KeyDerivation scaled(double factor);
+
+  // whether this costs more than `factor` times the most KdfCalibrator can
+  // pick. Parameters that come from outside the vault are checked with it
+  // before anything is derived
+  public boolean exceedsCalibratedMax(double factor);
+
+  public static KeyDerivation fromParams(String id, String params) {
+    switch (id) {
+      case Pbkdf2Derivation.ID_SHA256:
+      case Pbkdf2Derivation.ID_SHA1:
+        return Pbkdf2Derivation.fromParams(id, params);
+      case ScryptDerivation.ID:
+        return ScryptDerivation.fromParams(params);
+      case AccountKeyDerivation.ID:
+        return AccountKeyDerivation.fromParams(params);
+      default:
+        throw new IllegalArgumentException("[KeyDerivation.fromParams] ERROR: unknown KDF: " + id);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package org.vault;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+public final class Pbkdf2Derivation implements KeyDerivation {
+  public static final String ID_SHA256 = "pbkdf2-sha256";
+  public static final String ID_SHA1 = "pbkdf2-sha1";
+  public static final int MIN_ITERATIONS = VaultConst.ITERATIONS;
+
+  private final String id;
+  private final int iterations;
+
+  public Pbkdf2Derivation(String id, int iterations) {
+    if (!ID_SHA256.equals(id) && !ID_SHA1.equals(id)) {
+      throw new IllegalArgumentException("[Pbkdf2Derivation] ERROR: unknown PRF: " + id);
+    }
+    if (iterations < 1) {
+      throw new IllegalArgumentException("[Pbkdf2Derivation] ERROR: iterations must be positive.");
+    }
+
+    this.id = id;
+    this.iterations = iterations;
+  }
+
+  // what every vault used before the KDF was stored in `metadata`
+  public static Pbkdf2Derivation legacy() {
+    return new Pbkdf2Derivation(ID_SHA256, VaultConst.ITERATIONS);
+  }
+
+  static Pbkdf2Derivation fromParams(String id, String params) {
+    if (params == null || !params.startsWith("i=")) {
+      throw new IllegalArgumentException("[Pbkdf2Derivation.fromParams] ERROR: bad parameters: " + params);
+    }
+
+    return new Pbkdf2Derivation(id, Integer.parseInt(params.substring(2)));
+  }
+
+  public int getIterations() {
+    return this.iterations;
+  }
+
+  @Override
+  public String id() {
+    return this.id;
+  }
+
+  @Override
+  public String encodeParams() {
+    return "i=" + this.iterations;
+  }
+
+  @Override
+  public byte[] derive(ByteBuffer passwd, byte[] salt, int keyLength) throws GeneralSecurityException {
+    Pbkdf2Engine engine = ID_SHA256.equals(this.id) ? Pbkdf2Engine.sha256() : Pbkdf2Engine.sha1();
+
+    return engine.derive(passwd, salt, this.iterations, keyLength);
+  }
+
+  @Override
+  public KeyDerivation scaled(double factor) {
+    long scaled = (long) Math.ceil(this.iterations * factor);
+    int iterations = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_ITERATIONS, scaled));
+
+    return new Pbkdf2Derivation(this.id, iterations);
+  }
+
+  @Override
+  public boolean exceedsCalibratedMax(double factor) {
+    return exceedsCalibratedMax(this.iterations, factor);
+  }
+
+  static boolean exceedsCalibratedMax(int iterations, double factor) {
+    return iterations > factor * KdfCalibrator.MAX_FACTOR * MIN_ITERATIONS;
+  }
+}
@@ -0,0 +1,137 @@
+package org.vault;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// PBKDF2 (RFC 8018) over HMAC-SHA256 or HMAC-SHA1. The JCA implementation
+// hashes both HMAC pad blocks again for every iteration, four compressions
+// per iteration. Here the digests are advanced past the inner and outer pad
+// once per derivation and cloned from there, so an iteration costs two
+// compressions. The compressions themselves stay in MessageDigest, where
+// HotSpot uses the CPU's SHA instructions. Produces the same bytes as
+// PBKDF2WithHmacSHA256/SHA1 for the UTF-8 encoded password.
+//
+// The password is only read while the two pad blocks are built, straight from
+// the buffer it is passed in, so a SecretArena secret never gets a heap copy.
+final class Pbkdf2Engine {
+  private static final int BLOCK_LENGTH = 64;
+
+  private final String digestAlgo;
+  private final int digestLength;
+
+  private Pbkdf2Engine(String digestAlgo, int digestLength) {
+    this.digestAlgo = digestAlgo;
+    this.digestLength = digestLength;
+  }
+
+  static Pbkdf2Engine sha256() {
+    return new Pbkdf2Engine("SHA-256", 32);
+  }
+
+  static Pbkdf2Engine sha1() {
+    return new Pbkdf2Engine("SHA-1", 20);
+  }
+
+  byte[] derive(byte[] passwd, byte[] salt, int iterations, int keyLength) throws GeneralSecurityException {
+    return derive(ByteBuffer.wrap(passwd), salt, iterations, keyLength);
+  }
+
+  // `passwd` is read from its position to its limit and left as it is
+  byte[] derive(ByteBuffer passwd, byte[] salt, int iterations, int keyLength) throws GeneralSecurityException {
+    ByteBuffer key = passwd.slice();
+    byte[] hashedKey = null;
+    // HMAC keys longer than a block are hashed first
+    if (key.remaining() > BLOCK_LENGTH) {
+      hashedKey = hash(key);
+      key = ByteBuffer.wrap(hashedKey);
+    }
+    MessageDigest inner = padded(key, 0x36);
+    MessageDigest outer = padded(key, 0x5c);
+    if (hashedKey != null) {
+      Arrays.fill(hashedKey, (byte) 0);
+    }
+
+    int dl = this.digestLength;
+    byte[] out = new byte[keyLength];
+    byte[] u = new byte[dl];
+    byte[] t = new byte[dl];
+    byte[] counter = new byte[4];
+
+    for (int block = 1, pos = 0; pos < keyLength; block++) {
+      counter[0] = (byte) (block >>> 24);
+      counter[1] = (byte) (block >>> 16);
+      counter[2] = (byte) (block >>> 8);
+      counter[3] = (byte) block;
+
+      // U1 = HMAC(passwd, salt || INT(block))
+      MessageDigest md = copy(inner);
+      md.update(salt);
+      md.update(counter);
+      md.digest(u, 0, dl);
+      md = copy(outer);
+      md.update(u);
+      md.digest(u, 0, dl);
+      System.arraycopy(u, 0, t, 0, dl);
+
+      // Uj = HMAC(passwd, Uj-1)
+      for (int i = 1; i < iterations; i++) {
+        md = copy(inner);
+        md.update(u);
+        md.digest(u, 0, dl);
+        md = copy(outer);
+        md.update(u);
+        md.digest(u, 0, dl);
+
+        for (int j = 0; j < dl; j++) {
+          t[j] ^= u[j];
+        }
+      }
+
+      int n = Math.min(dl, keyLength - pos);
+      System.arraycopy(t, 0, out, pos, n);
+      pos += n;
+    }
+
+    Arrays.fill(u, (byte) 0);
+    Arrays.fill(t, (byte) 0);
+    return out;
+  }
+
+  // a digest that has absorbed the key XOR `pad` block
+  private MessageDigest padded(ByteBuffer key, int pad) throws GeneralSecurityException {
+    byte[] block = new byte[BLOCK_LENGTH];
+    for (int i = 0; i < BLOCK_LENGTH; i++) {
+      block[i] = (byte) ((i < key.limit() ? key.get(i) : 0) ^ pad);
+    }
+
+    MessageDigest md = MessageDigest.getInstance(this.digestAlgo);
+    md.update(block);
+    Arrays.fill(block, (byte) 0);
+    return md;
+  }
+
+  // MessageDigest.update(ByteBuffer) copies direct buffers through a scratch
+  // array it keeps, so the key goes through one we can zero
+  private byte[] hash(ByteBuffer key) throws GeneralSecurityException {
+    MessageDigest md = MessageDigest.getInstance(this.digestAlgo);
+    byte[] chunk = new byte[BLOCK_LENGTH];
+    for (int pos = 0; pos < key.limit(); pos += BLOCK_LENGTH) {
+      int n = Math.min(BLOCK_LENGTH, key.limit() - pos);
+      key.get(pos, chunk, 0, n);
+      md.update(chunk, 0, n);
+    }
+
+    Arrays.fill(chunk, (byte) 0);
+    return md.digest();
+  }
+
+  private static MessageDigest copy(MessageDigest md) {
+    try {
+      return (MessageDigest) md.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException("[Pbkdf2Engine.copy] ERROR: " + md.getAlgorithm() + " can't be cloned.", e);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package org.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+
+// A vault's data key sealed under a short PIN, so a vault that was unlocked
+// once in this session can be opened again without the master password KDF
+// (see VaultManager.enableQuickUnlock() and quickUnlock()). The PIN is weak
+// on its own: the sealed key only lives in this object, and it is dropped
+// after VaultConst.QUICK_UNLOCK_ATTEMPTS wrong PINs in a row.
+//
+// It also remembers the vault's metadata.wrapped_key, so a vault whose data
+// key or master password changed since is reported stale instead of being
+// opened with the old key.
+public final class QuickUnlock {
+  private static final byte[] AAD = VaultConst.QUICK_UNLOCK_LABEL.getBytes(StandardCharsets.UTF_8);
+
+  private byte[] pinSalt;
+  private byte[] sealedKey;
+  private CipherSuite suite;
+  private byte[] vaultWrappedKey;
+  private int attemptsLeft;
+
+  public synchronized boolean isArmed() {
+    return this.sealedKey != null;
+  }
+
+  public synchronized int getAttemptsLeft() {
+    return this.sealedKey != null ? this.attemptsLeft : 0;
+  }
+
+  synchronized void arm(String pin, SecretKeySpec dataKey, byte[] vaultWrappedKey) throws Exception {
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+    byte[] raw = dataKey.getEncoded();
+    try {
+      byte[] sealed = CryptoUtils.encryptBlob(raw, pinKey(pin, salt), AAD);
+
+      clear();
+      this.pinSalt = salt;
+      this.sealedKey = sealed;
+      this.suite = CipherSuite.forKey(dataKey);
+      this.vaultWrappedKey = vaultWrappedKey.clone();
+      this.attemptsLeft = VaultConst.QUICK_UNLOCK_ATTEMPTS;
+    } finally {
+      Arrays.fill(raw, (byte) 0);
+    }
+  }
+
+  synchronized boolean belongsTo(byte[] vaultWrappedKey) {
+    return this.sealedKey != null && Arrays.equals(this.vaultWrappedKey, vaultWrappedKey);
+  }
+
+  // the data key, or null for a wrong PIN. Throws IllegalStateException once
+  // the attempts are used up
+  synchronized SecretKeySpec unlock(String pin) throws Exception {
+    if (this.sealedKey == null) {
+      throw new IllegalStateException("[QuickUnlock.unlock] ERROR: quick unlock is not armed.");
+    }
+
+    byte[] raw;
+    try {
+      raw = CryptoUtils.decryptBlob(this.sealedKey, pinKey(pin, this.pinSalt), AAD);
+    } catch (AEADBadTagException e) {
+      if (--this.attemptsLeft <= 0) {
+        clear();
+      }
+      return null;
+    }
+
+    try {
+      this.attemptsLeft = VaultConst.QUICK_UNLOCK_ATTEMPTS;
+      return this.suite.key(raw);
+    } finally {
+      Arrays.fill(raw, (byte) 0);
+    }
+  }
+
+  public synchronized void clear() {
+    if (this.sealedKey != null) {
+      Arrays.fill(this.sealedKey, (byte) 0);
+    }
+
+    this.pinSalt = null;
+    this.sealedKey = null;
+    this.suite = null;
+    this.vaultWrappedKey = null;
+    this.attemptsLeft = 0;
+  }
+
+  private static SecretKeySpec pinKey(String pin, byte[] salt) throws GeneralSecurityException {
+    byte[] raw = new Pbkdf2Derivation(Pbkdf2Derivation.ID_SHA256, VaultConst.QUICK_UNLOCK_ITERATIONS).derive(pin,
+        salt, VaultConst.KEY_LENGTH / 8);
+    try {
+      return new SecretKeySpec(raw, "AES");
+    } finally {
+      Arrays.fill(raw, (byte) 0);
+    }
+  }
+}
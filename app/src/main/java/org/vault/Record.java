@@ -5,8 +5,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import javax.crypto.spec.SecretKeySpec;
+
 class Record {
-  String id, url, username, password, iv;
+  String id;
+  byte[] data, secret, hostTag, domainTag;
   long timestamp;
   Long deletedAt;
 
@@ -17,13 +20,13 @@ class Record {
 
     // entry
     try (ResultSet re = conn.createStatement().executeQuery(
-        "SELECT url,username,password,iv,timestamp FROM " + dbAlias + ".entries WHERE id='" + id + "'")) {
+        "SELECT data,secret,timestamp,host_tag,domain_tag FROM " + dbAlias + ".entries WHERE id='" + id + "'")) {
       if (re.next()) {
-        r.url = re.getString("url");
-        r.username = re.getString("username");
-        r.password = re.getString("password");
-        r.iv = re.getString("iv");
+        r.data = re.getBytes("data");
+        r.secret = re.getBytes("secret");
         r.timestamp = re.getLong("timestamp");
+        r.hostTag = re.getBytes("host_tag");
+        r.domainTag = re.getBytes("domain_tag");
       }
     }
     // deleted
@@ -36,15 +39,33 @@ class Record {
     return r;
   }
 
+  // a copy of this entry sealed and tagged under `to` instead of `from`
+  Record resealed(SecretKeySpec from, SecretKeySpec to) throws Exception {
+    String[] fields = EntryCodec.openData(this.id, this.data, from);
+    String passwd = EntryCodec.openSecret(this.id, this.secret, from);
+
+    Record r = new Record();
+    r.id = this.id;
+    r.data = EntryCodec.sealData(this.id, fields[0], fields[1], to);
+    r.secret = EntryCodec.sealSecret(this.id, passwd, to);
+    DomainIndex index = new DomainIndex(to);
+    r.hostTag = index.hostTag(fields[0]);
+    r.domainTag = index.domainTag(fields[0]);
+    r.timestamp = this.timestamp;
+    r.deletedAt = this.deletedAt;
+
+    return r;
+  }
+
   public void upsertEntry(Connection conn, Record rec) throws SQLException {
     try (PreparedStatement ps = conn.prepareStatement(
-        "INSERT OR REPLACE INTO entries(id,url,username,password,iv,timestamp) VALUES(?,?,?,?,?,?)")) {
+        "INSERT OR REPLACE INTO entries(id,data,secret,timestamp,host_tag,domain_tag) VALUES(?,?,?,?,?,?)")) {
       ps.setString(1, rec.id);
-      ps.setString(2, rec.url);
-      ps.setString(3, rec.username);
-      ps.setString(4, rec.password);
-      ps.setString(5, rec.iv);
-      ps.setLong(6, rec.timestamp);
+      ps.setBytes(2, rec.data);
+      ps.setBytes(3, rec.secret);
+      ps.setLong(4, rec.timestamp);
+      ps.setBytes(5, rec.hostTag);
+      ps.setBytes(6, rec.domainTag);
       ps.executeUpdate();
     }
   }
@@ -0,0 +1,237 @@
+package org.vault;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+// scrypt (RFC 7914), the memory-hard option. Uses N * r * 128 bytes of memory
+// per derivation, 32 MiB with the defaults. The PBKDF2-HMAC-SHA256 steps use
+// Pbkdf2Engine, the Salsa20/8 core and ROMix are done here.
+public final class ScryptDerivation implements KeyDerivation {
+  public static final String ID = "scrypt";
+  public static final int DEFAULT_LOG_N = 15;
+  public static final int DEFAULT_R = 8;
+  public static final int DEFAULT_P = 1;
+  // 1 GiB with r = 8
+  private static final int MAX_LOG_N = 20;
+
+  private final int logN;
+  private final int r;
+  private final int p;
+
+  public ScryptDerivation() {
+    this(DEFAULT_LOG_N, DEFAULT_R, DEFAULT_P);
+  }
+
+  public ScryptDerivation(int logN, int r, int p) {
+    if (logN < 1 || logN > 30 || r < 1 || p < 1 || (long) r * p >= (1 << 30)
+        || 32L * r * (1L << logN) > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException(
+          "[ScryptDerivation] ERROR: bad parameters ln=" + logN + ",r=" + r + ",p=" + p);
+    }
+
+    this.logN = logN;
+    this.r = r;
+    this.p = p;
+  }
+
+  static ScryptDerivation fromParams(String params) {
+    int logN = -1, r = -1, p = -1;
+
+    try {
+      for (String kv : params.split(",")) {
+        String[] parts = kv.split("=", 2);
+        int value = Integer.parseInt(parts[1]);
+        switch (parts[0]) {
+          case "ln":
+            logN = value;
+            break;
+          case "r":
+            r = value;
+            break;
+          case "p":
+            p = value;
+            break;
+          default:
+            throw new IllegalArgumentException();
+        }
+      }
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("[ScryptDerivation.fromParams] ERROR: bad parameters: " + params, e);
+    }
+
+    return new ScryptDerivation(logN, r, p);
+  }
+
+  @Override
+  public String id() {
+    return ID;
+  }
+
+  @Override
+  public String encodeParams() {
+    return "ln=" + this.logN + ",r=" + this.r + ",p=" + this.p;
+  }
+
+  @Override
+  public KeyDerivation scaled(double factor) {
+    // cost doubles with every step of log N
+    int steps = (int) Math.floor(Math.log(factor) / Math.log(2));
+    int logN = Math.min(MAX_LOG_N, Math.max(DEFAULT_LOG_N, this.logN + steps));
+
+    return new ScryptDerivation(logN, this.r, this.p);
+  }
+
+  // calibration stops at MAX_LOG_N with the default r and p. Memory is held to
+  // that, only the time may go `factor` times over it
+  @Override
+  public boolean exceedsCalibratedMax(double factor) {
+    long blocks = (long) this.r << this.logN;
+    long maxBlocks = (long) DEFAULT_R << MAX_LOG_N;
+
+    return blocks > maxBlocks || (double) blocks * this.p > factor * maxBlocks * DEFAULT_P;
+  }
+
+  @Override
+  public byte[] derive(ByteBuffer passwd, byte[] salt, int keyLength) throws GeneralSecurityException {
+    int blockWords = 32 * this.r;
+    byte[] b = pbkdf2(passwd, salt, this.p * blockWords * 4);
+
+    int n = 1 << this.logN;
+    int[] x = new int[blockWords];
+    int[] y = new int[blockWords];
+    int[] scratch = new int[16];
+    int[] v = new int[blockWords * n];
+
+    for (int i = 0; i < this.p; i++) {
+      int offset = i * blockWords * 4;
+      for (int k = 0; k < blockWords; k++) {
+        x[k] = readIntLE(b, offset + k * 4);
+      }
+
+      roMix(x, y, v, scratch, n);
+
+      for (int k = 0; k < blockWords; k++) {
+        writeIntLE(b, offset + k * 4, x[k]);
+      }
+    }
+
+    return pbkdf2(passwd, b, keyLength);
+  }
+
+  // ROMix, leaves the result in x
+  private void roMix(int[] x, int[] y, int[] v, int[] scratch, int n) {
+    int blockWords = x.length;
+
+    for (int i = 0; i < n; i += 2) {
+      System.arraycopy(x, 0, v, i * blockWords, blockWords);
+      blockMix(x, y, scratch);
+      System.arraycopy(y, 0, v, (i + 1) * blockWords, blockWords);
+      blockMix(y, x, scratch);
+    }
+
+    for (int i = 0; i < n; i += 2) {
+      int j = x[blockWords - 16] & (n - 1);
+      for (int k = 0; k < blockWords; k++) {
+        x[k] ^= v[j * blockWords + k];
+      }
+      blockMix(x, y, scratch);
+
+      j = y[blockWords - 16] & (n - 1);
+      for (int k = 0; k < blockWords; k++) {
+        y[k] ^= v[j * blockWords + k];
+      }
+      blockMix(y, x, scratch);
+    }
+  }
+
+  // BlockMix with Salsa20/8: even output blocks go to the first half of `out`,
+  // odd ones to the second half
+  private void blockMix(int[] in, int[] out, int[] scratch) {
+    System.arraycopy(in, in.length - 16, scratch, 0, 16);
+
+    for (int i = 0; i < 2 * this.r; i++) {
+      for (int k = 0; k < 16; k++) {
+        scratch[k] ^= in[i * 16 + k];
+      }
+      salsa20_8(scratch);
+
+      int dest = (i >> 1) * 16 + (i & 1) * this.r * 16;
+      System.arraycopy(scratch, 0, out, dest, 16);
+    }
+  }
+
+  private static void salsa20_8(int[] b) {
+    int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+    int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+    for (int i = 0; i < 8; i += 2) {
+      // columns
+      x4 ^= Integer.rotateLeft(x0 + x12, 7);
+      x8 ^= Integer.rotateLeft(x4 + x0, 9);
+      x12 ^= Integer.rotateLeft(x8 + x4, 13);
+      x0 ^= Integer.rotateLeft(x12 + x8, 18);
+      x9 ^= Integer.rotateLeft(x5 + x1, 7);
+      x13 ^= Integer.rotateLeft(x9 + x5, 9);
+      x1 ^= Integer.rotateLeft(x13 + x9, 13);
+      x5 ^= Integer.rotateLeft(x1 + x13, 18);
+      x14 ^= Integer.rotateLeft(x10 + x6, 7);
+      x2 ^= Integer.rotateLeft(x14 + x10, 9);
+      x6 ^= Integer.rotateLeft(x2 + x14, 13);
+      x10 ^= Integer.rotateLeft(x6 + x2, 18);
+      x3 ^= Integer.rotateLeft(x15 + x11, 7);
+      x7 ^= Integer.rotateLeft(x3 + x15, 9);
+      x11 ^= Integer.rotateLeft(x7 + x3, 13);
+      x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+      // rows
+      x1 ^= Integer.rotateLeft(x0 + x3, 7);
+      x2 ^= Integer.rotateLeft(x1 + x0, 9);
+      x3 ^= Integer.rotateLeft(x2 + x1, 13);
+      x0 ^= Integer.rotateLeft(x3 + x2, 18);
+      x6 ^= Integer.rotateLeft(x5 + x4, 7);
+      x7 ^= Integer.rotateLeft(x6 + x5, 9);
+      x4 ^= Integer.rotateLeft(x7 + x6, 13);
+      x5 ^= Integer.rotateLeft(x4 + x7, 18);
+      x11 ^= Integer.rotateLeft(x10 + x9, 7);
+      x8 ^= Integer.rotateLeft(x11 + x10, 9);
+      x9 ^= Integer.rotateLeft(x8 + x11, 13);
+      x10 ^= Integer.rotateLeft(x9 + x8, 18);
+      x12 ^= Integer.rotateLeft(x15 + x14, 7);
+      x13 ^= Integer.rotateLeft(x12 + x15, 9);
+      x14 ^= Integer.rotateLeft(x13 + x12, 13);
+      x15 ^= Integer.rotateLeft(x14 + x13, 18);
+    }
+
+    b[0] += x0;
+    b[1] += x1;
+    b[2] += x2;
+    b[3] += x3;
+    b[4] += x4;
+    b[5] += x5;
+    b[6] += x6;
+    b[7] += x7;
+    b[8] += x8;
+    b[9] += x9;
+    b[10] += x10;
+    b[11] += x11;
+    b[12] += x12;
+    b[13] += x13;
+    b[14] += x14;
+    b[15] += x15;
+  }
+
+  private static byte[] pbkdf2(ByteBuffer passwd, byte[] salt, int length) throws GeneralSecurityException {
+    return Pbkdf2Engine.sha256().derive(passwd, salt, 1, length);
+  }
+
+  private static int readIntLE(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+  }
+
+  private static void writeIntLE(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >>> 8);
+    b[off + 2] = (byte) (v >>> 16);
+    b[off + 3] = (byte) (v >>> 24);
+  }
+}
@@ -0,0 +1,174 @@
+package org.vault;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Off-heap home for the master password and the key material derived from
+// it. Strings and byte[]s on the heap get copied around by the GC and can't
+// be wiped reliably; a secret here is written once into a direct buffer, read
+// from there by the KDFs, and zeroed by wipe() or, for everything the arena
+// handed out, by close().
+//
+// Allocation is a bump pointer over fixed slabs. Wiping the most recent secret
+// gives its space back, anything else stays zeroed until close()
+public final class SecretArena implements AutoCloseable {
+  private static final int SLAB_SIZE = 4096;
+
+  private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+  // the slab new secrets go to, its position is the first free byte
+  private ByteBuffer current;
+  private volatile boolean closed;
+
+  // the password as UTF-8, which is what every KDF here hashes. Invalid
+  // surrogates become '?' like String.getBytes() does
+  public synchronized Secret encode(CharSequence passwd) {
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    ByteBuffer slab = reserve((int) Math.ceil(passwd.length() * (double) encoder.maxBytesPerChar()));
+    int offset = slab.position();
+    encoder.encode(CharBuffer.wrap(passwd), slab, true);
+    encoder.flush(slab);
+
+    return new Secret(this, slab, offset, slab.position() - offset);
+  }
+
+  // takes over `bytes` and zeroes the heap copy
+  public synchronized Secret copyOf(byte[] bytes) {
+    ByteBuffer slab = reserve(bytes.length);
+    int offset = slab.position();
+    slab.put(bytes);
+    Arrays.fill(bytes, (byte) 0);
+
+    return new Secret(this, slab, offset, bytes.length);
+  }
+
+  // a copy owned by this arena, without going through the heap
+  public synchronized Secret copyOf(Secret other) {
+    ByteBuffer src = other.view();
+    ByteBuffer slab = reserve(src.remaining());
+    int offset = slab.position();
+    slab.put(src);
+
+    return new Secret(this, slab, offset, slab.position() - offset);
+  }
+
+  private ByteBuffer reserve(int length) {
+    if (this.closed) {
+      throw new IllegalStateException("[SecretArena.reserve] ERROR: the arena is closed.");
+    }
+
+    if (this.current == null || this.current.remaining() < length) {
+      ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, length));
+      this.slabs.add(slab);
+      // oversized secrets get a slab of their own, the current one keeps its space
+      if (this.current == null || length <= SLAB_SIZE) {
+        this.current = slab;
+      }
+      return slab;
+    }
+
+    return this.current;
+  }
+
+  private synchronized void release(Secret secret) {
+    zero(secret.slab, secret.offset, secret.length);
+    if (secret.slab == this.current && secret.offset + secret.length == this.current.position()) {
+      this.current.position(secret.offset);
+    }
+  }
+
+  public boolean isClosed() {
+    return this.closed;
+  }
+
+  // zeroes every secret this arena handed out. Using one afterwards throws
+  @Override
+  public synchronized void close() {
+    if (this.closed) {
+      return;
+    }
+
+    this.closed = true;
+    for (ByteBuffer slab : this.slabs) {
+      zero(slab, 0, slab.capacity());
+    }
+    this.slabs.clear();
+    this.current = null;
+  }
+
+  private static void zero(ByteBuffer buf, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      buf.put(i, (byte) 0);
+    }
+  }
+
+  public static final class Secret {
+    private final SecretArena arena;
+    private final ByteBuffer slab;
+    private final int offset;
+    private final int length;
+    private volatile boolean wiped;
+
+    private Secret(SecretArena arena, ByteBuffer slab, int offset, int length) {
+      this.arena = arena;
+      this.slab = slab;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public int length() {
+      return this.length;
+    }
+
+    SecretArena arena() {
+      return this.arena;
+    }
+
+    // the bytes, read-only and without a copy. Only valid until the secret or
+    // its arena is wiped
+    ByteBuffer view() {
+      if (this.wiped || this.arena.closed) {
+        throw new IllegalStateException("[SecretArena.Secret.view] ERROR: the secret was wiped.");
+      }
+
+      return this.slab.asReadOnlyBuffer().position(this.offset).limit(this.offset + this.length).slice();
+    }
+
+    // constant time for secrets of the same length
+    public boolean contentEquals(Secret other) {
+      ByteBuffer a = view();
+      ByteBuffer b = other.view();
+      if (a.remaining() != b.remaining()) {
+        return false;
+      }
+
+      int diff = 0;
+      for (int i = 0; i < this.length; i++) {
+        diff |= a.get(i) ^ b.get(i);
+      }
+      return diff == 0;
+    }
+
+    public boolean matches(CharSequence passwd) {
+      try (SecretArena scratch = new SecretArena()) {
+        return contentEquals(scratch.encode(passwd));
+      }
+    }
+
+    public void wipe() {
+      if (this.wiped || this.arena.closed) {
+        return;
+      }
+
+      this.wiped = true;
+      this.arena.release(this);
+    }
+  }
+}
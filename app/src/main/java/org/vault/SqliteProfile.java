@@ -0,0 +1,93 @@
+package org.vault;
+
+import org.sqlite.SQLiteConfig;
+
+// How VaultManager.connectToDB() tunes the SQLite connection of a vault file.
+// The default is picked per deployment with -Dyapm.sqlite.profile=<id> or the
+// YAPM_SQLITE_PROFILE environment variable, see configured().
+//
+// The WAL profiles keep commits in a -wal file next to the vault. The vault
+// file itself is uploaded and replaced by LoginUser.sync(), so VaultManager
+// checkpoints the WAL back into it whenever the connection is closed
+public enum SqliteProfile {
+  // the driver defaults: rollback journal, synchronous=FULL
+  LEGACY("legacy", null, null, 0, 0),
+  // WAL, still synced on every commit
+  DURABLE("durable", SQLiteConfig.JournalMode.WAL, SQLiteConfig.SynchronousMode.FULL, 8 * 1024, 64L << 20),
+  // WAL synced at checkpoints only. A power loss can drop the last commits
+  // but never corrupts the vault
+  BALANCED("balanced", SQLiteConfig.JournalMode.WAL, SQLiteConfig.SynchronousMode.NORMAL, 8 * 1024, 64L << 20),
+  // BALANCED with a larger cache and mapping, for big vaults and imports
+  THROUGHPUT("throughput", SQLiteConfig.JournalMode.WAL, SQLiteConfig.SynchronousMode.NORMAL, 64 * 1024, 256L << 20);
+
+  public static final String PROPERTY = "yapm.sqlite.profile";
+  public static final String ENV_VAR = "YAPM_SQLITE_PROFILE";
+
+  // only applies to new vault files, SQLite keeps the page size of an existing
+  // file in WAL mode
+  private static final int PAGE_SIZE = 4096;
+
+  private final String id;
+  private final SQLiteConfig.JournalMode journalMode;
+  private final SQLiteConfig.SynchronousMode synchronous;
+  private final int cacheKib;
+  private final long mmapBytes;
+
+  SqliteProfile(String id, SQLiteConfig.JournalMode journalMode, SQLiteConfig.SynchronousMode synchronous,
+      int cacheKib, long mmapBytes) {
+    this.id = id;
+    this.journalMode = journalMode;
+    this.synchronous = synchronous;
+    this.cacheKib = cacheKib;
+    this.mmapBytes = mmapBytes;
+  }
+
+  public String id() {
+    return this.id;
+  }
+
+  SQLiteConfig config() {
+    SQLiteConfig config = new SQLiteConfig();
+    if (this == LEGACY) {
+      return config;
+    }
+
+    config.setJournalMode(this.journalMode);
+    config.setSynchronous(this.synchronous);
+    config.setPageSize(PAGE_SIZE);
+    // negative: KiB rather than pages
+    config.setCacheSize(-this.cacheKib);
+    config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, Long.toString(this.mmapBytes));
+    config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+
+    return config;
+  }
+
+  public static SqliteProfile fromId(String id) {
+    for (SqliteProfile profile : values()) {
+      if (profile.id.equalsIgnoreCase(id)) {
+        return profile;
+      }
+    }
+
+    throw new IllegalArgumentException("[SqliteProfile.fromId] ERROR: unknown SQLite profile: " + id);
+  }
+
+  public static SqliteProfile configured() {
+    String id = System.getProperty(PROPERTY);
+    if (id == null || id.isBlank()) {
+      id = System.getenv(ENV_VAR);
+    }
+    if (id == null || id.isBlank()) {
+      return BALANCED;
+    }
+
+    try {
+      return fromId(id.strip());
+    } catch (IllegalArgumentException e) {
+      System.out.println("[SqliteProfile.configured] ERROR: ");
+      e.printStackTrace();
+      return BALANCED;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package org.vault;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+// The compiled statements of one connection. A statement is prepared the first
+// time its SQL is used and kept until close(), so the vault operations don't
+// parse and plan the same SQL on every call. The SQL is always one of the
+// constants in VaultManager and AttachmentStore, which bounds the cache.
+//
+// Callers never close what get() returns, only their ResultSets
+final class StatementCache implements AutoCloseable {
+  private final Connection connection;
+  private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+
+  StatementCache(Connection connection) {
+    this.connection = connection;
+  }
+
+  Connection connection() {
+    return this.connection;
+  }
+
+  PreparedStatement get(String sql) throws SQLException {
+    PreparedStatement ps = this.statements.get(sql);
+    if (ps == null || ps.isClosed()) {
+      ps = this.connection.prepareStatement(sql);
+      this.statements.put(sql, ps);
+    } else {
+      ps.clearParameters();
+    }
+
+    return ps;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    SQLException failure = null;
+    for (PreparedStatement ps : this.statements.values()) {
+      try {
+        ps.close();
+      } catch (SQLException e) {
+        failure = failure == null ? e : failure;
+      }
+    }
+    this.statements.clear();
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,475 @@
+package org.vault;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+
+// The backup format of VaultManager.exportArchive() and restoreArchive():
+//
+//   header: "YAPMARC" || version || kdf || kdf_params || salt || cipher || kcv
+//   chunks: last (1 byte) || length (4 bytes) || AEAD blob, repeated
+//
+// The archive key is derived from the master password with the vault's KDF
+// under a fresh salt, so a backup outlives the vault file and its data key.
+// The kcv tells a wrong password apart from a damaged archive.
+//
+// The chunks carry one deflated stream of records: entries in plaintext,
+// tombstones, and attachments followed by their content, then an end record.
+// A chunk holds VaultConst.ARCHIVE_CHUNK_SIZE bytes of it, and its AAD binds it
+// to the header, its position and whether it is the last one, so chunks can't
+// be reordered, swapped between archives or cut off. Both directions stream:
+// rows come off a ResultSet and at most one chunk is buffered either way
+final class VaultArchive {
+  static final byte[] MAGIC = "YAPMARC".getBytes(StandardCharsets.US_ASCII);
+  static final int VERSION = 1;
+  // an archive may name a KDF up to this many times as costly as any this app
+  // calibrates, anything above is refused before a key is derived
+  static final double MAX_KDF_COST = 2;
+
+  private static final int ENTRY = 'E';
+  private static final int TOMBSTONE = 'D';
+  private static final int ATTACHMENT = 'A';
+  private static final int END = 'Z';
+
+  private VaultArchive() {
+  }
+
+  static final class Header {
+    final KeyDerivation kdf;
+    final byte[] salt;
+    final CipherSuite suite;
+    final byte[] kcv;
+
+    Header(KeyDerivation kdf, byte[] salt, CipherSuite suite, byte[] kcv) {
+      this.kdf = kdf;
+      this.salt = salt;
+      this.suite = suite;
+      this.kcv = kcv;
+    }
+
+    byte[] encode() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      out.writeUTF(this.kdf.id());
+      out.writeUTF(this.kdf.encodeParams());
+      out.writeByte(this.salt.length);
+      out.write(this.salt);
+      out.writeUTF(this.suite.id());
+      out.writeByte(this.kcv.length);
+      out.write(this.kcv);
+
+      return bytes.toByteArray();
+    }
+
+    // reads no further than the header. IllegalArgumentException if this is
+    // not an archive this version can read
+    static Header read(InputStream source) throws IOException {
+      DataInputStream in = new DataInputStream(source);
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IllegalArgumentException("[VaultArchive.Header.read] ERROR: not a vault archive.");
+      }
+      int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("[VaultArchive.Header.read] ERROR: unsupported archive version "
+            + version + ".");
+      }
+
+      KeyDerivation kdf = KeyDerivation.fromParams(in.readUTF(), in.readUTF());
+      if (kdf.exceedsCalibratedMax(MAX_KDF_COST)) {
+        throw new IllegalArgumentException("[VaultArchive.Header.read] ERROR: the KDF parameters are too costly: "
+            + kdf.id() + " " + kdf.encodeParams());
+      }
+      byte[] salt = new byte[in.readUnsignedByte()];
+      in.readFully(salt);
+      CipherSuite suite = CipherSuite.fromId(in.readUTF());
+      byte[] kcv = new byte[in.readUnsignedByte()];
+      in.readFully(kcv);
+
+      return new Header(kdf, salt, suite, kcv);
+    }
+  }
+
+  static void export(StatementCache statements, SecretKeySpec dataKey, Header header, SecretKeySpec archiveKey,
+      OutputStream out) throws Exception {
+    byte[] encodedHeader = header.encode();
+    out.write(encodedHeader);
+
+    SealingOutputStream sealed = new SealingOutputStream(out, archiveKey, digest(encodedHeader));
+    try (DataOutputStream records = new DataOutputStream(
+        new BufferedOutputStream(new DeflaterOutputStream(sealed), 8192))) {
+      try (ResultSet rs = statements.get("SELECT id, data, secret, timestamp FROM entries").executeQuery()) {
+        while (rs.next()) {
+          String id = rs.getString("id");
+          String[] fields = EntryCodec.openData(id, rs.getBytes("data"), dataKey);
+
+          records.writeByte(ENTRY);
+          writeString(records, id);
+          writeString(records, fields[0]);
+          writeString(records, fields[1]);
+          writeString(records, EntryCodec.openSecret(id, rs.getBytes("secret"), dataKey));
+          records.writeLong(rs.getLong("timestamp"));
+        }
+      }
+
+      try (ResultSet rs = statements.get("SELECT id, deleted_at FROM deleted").executeQuery()) {
+        while (rs.next()) {
+          records.writeByte(TOMBSTONE);
+          writeString(records, rs.getString("id"));
+          records.writeLong(rs.getLong("deleted_at"));
+        }
+      }
+
+      try (ResultSet rs = statements.get("SELECT id, entry_id, name, size, timestamp FROM attachments")
+          .executeQuery()) {
+        while (rs.next()) {
+          String id = rs.getString("id");
+          long size = rs.getLong("size");
+
+          records.writeByte(ATTACHMENT);
+          writeString(records, id);
+          writeString(records, rs.getString("entry_id"));
+          writeString(records, AttachmentStore.openName(id, rs.getBytes("name"), dataKey));
+          records.writeLong(size);
+          records.writeLong(rs.getLong("timestamp"));
+          AttachmentStore.read(statements, id, 0, size, records, dataKey);
+        }
+      }
+
+      records.writeByte(END);
+    }
+    out.flush();
+  }
+
+  // newer rows of the vault win over the archive, like in merge(). Nothing
+  // here commits
+  static void restore(StatementCache statements, SecretKeySpec dataKey, Header header, SecretKeySpec archiveKey,
+      InputStream in) throws Exception {
+    OpeningInputStream opened = new OpeningInputStream(in, archiveKey, digest(header.encode()));
+    DataInputStream records = new DataInputStream(new BufferedInputStream(new InflaterInputStream(opened), 8192));
+    DomainIndex index = new DomainIndex(dataKey);
+
+    while (true) {
+      int type = records.read();
+      if (type == END) {
+        break;
+      }
+
+      switch (type) {
+        case ENTRY -> {
+          String id = readString(records);
+          String url = readString(records);
+          String username = readString(records);
+          String passwd = readString(records);
+          long timestamp = records.readLong();
+
+          if (timestamp > timestampOf(statements, "SELECT timestamp FROM entries WHERE id = ?", id)
+              && timestamp > timestampOf(statements, "SELECT deleted_at FROM deleted WHERE id = ?", id)) {
+            PreparedStatement ps = statements.get(
+                "INSERT OR REPLACE INTO entries(id, data, secret, timestamp, host_tag, domain_tag) "
+                    + "VALUES(?,?,?,?,?,?)");
+            ps.setString(1, id);
+            ps.setBytes(2, EntryCodec.sealData(id, url, username, dataKey));
+            ps.setBytes(3, EntryCodec.sealSecret(id, passwd, dataKey));
+            ps.setLong(4, timestamp);
+            ps.setBytes(5, index.hostTag(url));
+            ps.setBytes(6, index.domainTag(url));
+            ps.executeUpdate();
+
+            ps = statements.get("DELETE FROM deleted WHERE id = ?");
+            ps.setString(1, id);
+            ps.executeUpdate();
+          }
+        }
+        case TOMBSTONE -> {
+          String id = readString(records);
+          long deletedAt = records.readLong();
+
+          if (deletedAt > timestampOf(statements, "SELECT deleted_at FROM deleted WHERE id = ?", id)
+              && deletedAt > timestampOf(statements, "SELECT timestamp FROM entries WHERE id = ?", id)
+              && deletedAt > timestampOf(statements, "SELECT timestamp FROM attachments WHERE id = ?", id)) {
+            PreparedStatement ps = statements.get("DELETE FROM entries WHERE id = ?");
+            ps.setString(1, id);
+            if (ps.executeUpdate() > 0) {
+              AttachmentStore.deleteForEntry(statements, id, deletedAt);
+            }
+            AttachmentStore.delete(statements, id, deletedAt);
+
+            ps = statements.get("INSERT OR REPLACE INTO deleted(id,deleted_at) VALUES(?,?)");
+            ps.setString(1, id);
+            ps.setLong(2, deletedAt);
+            ps.executeUpdate();
+          }
+        }
+        case ATTACHMENT -> {
+          String id = readString(records);
+          String entryId = readString(records);
+          String name = readString(records);
+          long size = records.readLong();
+          long timestamp = records.readLong();
+          if (size < 0) {
+            throw new IllegalArgumentException("[VaultArchive.restore] ERROR: negative attachment size.");
+          }
+
+          // attachments come after all entries and tombstones, so whether the
+          // entry survives is already settled
+          if (timestampOf(statements, "SELECT timestamp FROM attachments WHERE id = ?", id) < 0
+              && timestamp > timestampOf(statements, "SELECT deleted_at FROM deleted WHERE id = ?", id)
+              && timestampOf(statements, "SELECT timestamp FROM entries WHERE id = ?", entryId) >= 0) {
+            BoundedInputStream content = new BoundedInputStream(records, size);
+            AttachmentStore.write(statements, id, entryId, name, content, dataKey, timestamp);
+            if (content.remaining > 0) {
+              throw new EOFException("[VaultArchive.restore] ERROR: attachment " + id + " is cut off.");
+            }
+          } else {
+            records.skipNBytes(size);
+          }
+        }
+        case -1 -> throw new EOFException("[VaultArchive.restore] ERROR: the archive has no end record.");
+        default -> throw new IllegalArgumentException("[VaultArchive.restore] ERROR: unknown record " + type + ".");
+      }
+    }
+
+    if (records.read() != -1 || opened.read() != -1) {
+      throw new IllegalArgumentException("[VaultArchive.restore] ERROR: data after the end record.");
+    }
+  }
+
+  // -1 if there is no such row
+  private static long timestampOf(StatementCache statements, String sql, String id) throws SQLException {
+    PreparedStatement ps = statements.get(sql);
+    ps.setString(1, id);
+    try (ResultSet rs = ps.executeQuery()) {
+      return rs.next() ? rs.getLong(1) : -1;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IllegalArgumentException("[VaultArchive.readString] ERROR: negative length.");
+    }
+
+    return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] digest(byte[] header) throws NoSuchAlgorithmException {
+    return CryptoContext.get().sha256().digest(header);
+  }
+
+  // header digest || seq (8 bytes, big endian) || 1 if this is the last chunk
+  private static byte[] chunkAad(byte[] headerDigest, long seq, boolean last) {
+    byte[] aad = Arrays.copyOf(headerDigest, headerDigest.length + 9);
+    for (int i = 0; i < 8; i++) {
+      aad[headerDigest.length + i] = (byte) (seq >>> (56 - 8 * i));
+    }
+    aad[aad.length - 1] = (byte) (last ? 1 : 0);
+
+    return aad;
+  }
+
+  // a full chunk is only sealed once more data follows, so the last chunk is
+  // always sealed by close(), and can be empty. close() leaves `out` open
+  private static final class SealingOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final SecretKeySpec key;
+    private final byte[] headerDigest;
+    private final byte[] chunk = new byte[VaultConst.ARCHIVE_CHUNK_SIZE];
+    private int length;
+    private long seq;
+    private boolean closed;
+
+    SealingOutputStream(OutputStream out, SecretKeySpec key, byte[] headerDigest) {
+      this.out = new DataOutputStream(out);
+      this.key = key;
+      this.headerDigest = headerDigest;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (this.length == this.chunk.length) {
+          seal(false);
+        }
+
+        int n = Math.min(len, this.chunk.length - this.length);
+        System.arraycopy(b, off, this.chunk, this.length, n);
+        this.length += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (this.closed) {
+        return;
+      }
+
+      this.closed = true;
+      seal(true);
+      Arrays.fill(this.chunk, (byte) 0);
+      this.out.flush();
+    }
+
+    private void seal(boolean last) throws IOException {
+      byte[] blob;
+      try {
+        blob = CryptoUtils.encryptBlob(this.chunk, 0, this.length, this.key,
+            chunkAad(this.headerDigest, this.seq, last));
+      } catch (Exception e) {
+        throw new IOException("[VaultArchive.SealingOutputStream] ERROR: failed to seal chunk " + this.seq + ".", e);
+      }
+
+      this.out.writeByte(last ? 1 : 0);
+      this.out.writeInt(blob.length);
+      this.out.write(blob);
+      this.length = 0;
+      this.seq++;
+    }
+  }
+
+  private static final class OpeningInputStream extends InputStream {
+    // nonce and tag
+    private static final int OVERHEAD = VaultConst.GCM_IV_LENGTH + VaultConst.GCM_TAG_LENGTH / 8;
+
+    private final DataInputStream in;
+    private final SecretKeySpec key;
+    private final byte[] headerDigest;
+    private byte[] chunk = new byte[0];
+    private int pos;
+    private long seq;
+    private boolean last;
+
+    OpeningInputStream(InputStream in, SecretKeySpec key, byte[] headerDigest) {
+      this.in = new DataInputStream(in);
+      this.key = key;
+      this.headerDigest = headerDigest;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+
+      return this.chunk[this.pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+
+      int n = Math.min(len, this.chunk.length - this.pos);
+      System.arraycopy(this.chunk, this.pos, b, off, n);
+      this.pos += n;
+      return n;
+    }
+
+    private boolean fill() throws IOException {
+      while (this.pos == this.chunk.length) {
+        if (this.last) {
+          return false;
+        }
+
+        int flag;
+        int length;
+        try {
+          flag = this.in.readUnsignedByte();
+          length = this.in.readInt();
+        } catch (EOFException e) {
+          throw new EOFException("[VaultArchive.OpeningInputStream] ERROR: the archive is cut off.");
+        }
+        if (flag > 1 || length < OVERHEAD || length > VaultConst.ARCHIVE_CHUNK_SIZE + OVERHEAD) {
+          throw new IllegalArgumentException("[VaultArchive.OpeningInputStream] ERROR: bad chunk " + this.seq + ".");
+        }
+
+        byte[] blob = this.in.readNBytes(length);
+        if (blob.length != length) {
+          throw new EOFException("[VaultArchive.OpeningInputStream] ERROR: the archive is cut off.");
+        }
+
+        Arrays.fill(this.chunk, (byte) 0);
+        try {
+          this.chunk = CryptoUtils.decryptBlob(blob, this.key, chunkAad(this.headerDigest, this.seq, flag == 1));
+        } catch (AEADBadTagException e) {
+          throw new IllegalArgumentException("[VaultArchive.OpeningInputStream] ERROR: chunk " + this.seq
+              + " is damaged.", e);
+        } catch (Exception e) {
+          throw new IOException("[VaultArchive.OpeningInputStream] ERROR: failed to open chunk " + this.seq + ".", e);
+        }
+        this.pos = 0;
+        this.last = flag == 1;
+        this.seq++;
+      }
+
+      return true;
+    }
+  }
+
+  // the next `remaining` bytes of `in`
+  private static final class BoundedInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long remaining) {
+      this.in = in;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (this.remaining == 0) {
+        return -1;
+      }
+
+      int n = this.in.read(b, off, (int) Math.min(len, this.remaining));
+      if (n > 0) {
+        this.remaining -= n;
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package org.vault;
+
+import java.util.ArrayList;
+
+// What VaultManager.changesSince() found after a watermark
+public final class VaultChanges {
+  private final ArrayList<Entry> entries = new ArrayList<>();
+  // ids of the entries and attachments removed since, including the old ids of
+  // edited entries
+  private final ArrayList<String> deletedIds = new ArrayList<>();
+  // pass this to the next changesSince()
+  private long highWaterMark;
+
+  public ArrayList<Entry> getEntries() {
+    return this.entries;
+  }
+
+  public ArrayList<String> getDeletedIds() {
+    return this.deletedIds;
+  }
+
+  public long getHighWaterMark() {
+    return this.highWaterMark;
+  }
+
+  public boolean isEmpty() {
+    return this.entries.isEmpty() && this.deletedIds.isEmpty();
+  }
+
+  void clear() {
+    this.entries.clear();
+    this.deletedIds.clear();
+  }
+
+  void setHighWaterMark(long highWaterMark) {
+    this.highWaterMark = highWaterMark;
+  }
+}
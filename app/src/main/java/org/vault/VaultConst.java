@@ -7,4 +7,71 @@ public class VaultConst {
   public static final int KEY_LENGTH = 256;
   public static final int IV_LENGTH = 16;
   public static final int SALT_LENGTH = 16;
+
+  // new vaults calibrate their KDF cost so unlocking takes about this long
+  public static final long KDF_TARGET_MILLIS = 250;
+
+  // entries are sealed as a single AEAD blob: iv || ciphertext || tag. This
+  // is the AES suite, see CipherSuite
+  public static final String ENTRY_ENCRYPTION_ALGO = "AES/GCM/NoPadding";
+  public static final int GCM_IV_LENGTH = 12;
+  public static final int GCM_TAG_LENGTH = 128;
+
+  // 1: url/username/password as separate AES/CBC ciphertexts sharing an iv column
+  // 2: all entry fields packed into one AES/GCM blob in the data column
+  // 3: ciphertexts, ivs and salts stored as raw BLOBs instead of Base64 TEXT
+  // 4: the password moved out of `data` into its own `secret` blob so it can be
+  // decrypted lazily
+  // 5: the KDF and its parameters are stored in `metadata` (kdf, kdf_params)
+  // 6: a key-check value (metadata.kcv) replaces decrypting the verification
+  // text to check the master password
+  // 7: entries are sealed with a random data key, stored in metadata.wrapped_key
+  // sealed under the key derived from the master password
+  // 8: the AEAD of the entry blobs is stored in metadata.cipher (CipherSuite)
+  // 9: `attachments` and `attachment_chunks` tables for files attached to
+  // entries
+  // 10: `entries.host_tag` and `entries.domain_tag`, a blind index of the site
+  // of every entry, see DomainIndex
+  // 11: indexes on entries.timestamp and deleted.deleted_at, and
+  // metadata.high_water kept up by triggers, for VaultManager.changesSince()
+  // 12: `sync_points`, the high-water mark at which each device last merged,
+  // see VaultMaintenance
+  public static final int FORMAT_VERSION = 12;
+
+  // attachments are sealed in chunks of this many bytes, see AttachmentStore
+  public static final int ATTACHMENT_CHUNK_SIZE = 64 * 1024;
+
+  // VaultManager.scanVault() reads and decrypts this many rows at a time
+  public static final int ENTRY_PAGE_SIZE = 256;
+
+  // decrypted entries a VaultManager keeps between openVault() calls, and how
+  // long one stays cached without being read, see EntryCache
+  public static final int ENTRY_CACHE_SIZE = 10000;
+  public static final long ENTRY_CACHE_IDLE_MILLIS = 10 * 60 * 1000;
+
+  // a sensible minimum age for VaultManager.setTombstoneHorizonMillis(). Off
+  // by default, see VaultMaintenance
+  public static final long TOMBSTONE_HORIZON_MILLIS = 90L * 24 * 60 * 60 * 1000;
+  // VaultMaintenance gives free pages back once there are at least this many
+  public static final int VACUUM_MIN_FREE_PAGES = 256;
+  public static final long MAINTENANCE_PERIOD_MILLIS = 5 * 60 * 1000;
+
+  // plaintext bytes per chunk of an export archive, see VaultArchive
+  public static final int ARCHIVE_CHUNK_SIZE = 64 * 1024;
+
+  // VaultImporter seals and commits imported entries in batches of this many
+  public static final int IMPORT_BATCH_SIZE = 1000;
+
+  // kcv = HMAC-SHA256(password-derived key, KCV_LABEL)
+  public static final String KCV_LABEL = "yapm-key-check-v1";
+  // AAD of metadata.wrapped_key
+  public static final String DATA_KEY_LABEL = "yapm-data-key-v1";
+
+  // QuickUnlock: the data key is sealed under PBKDF2(PIN) with this few
+  // iterations, so a PIN unlock takes milliseconds. It never leaves the process
+  // and is thrown away after QUICK_UNLOCK_ATTEMPTS wrong PINs
+  public static final int QUICK_UNLOCK_ITERATIONS = 10000;
+  public static final int QUICK_UNLOCK_ATTEMPTS = 5;
+  public static final int QUICK_UNLOCK_MIN_PIN_LENGTH = 4;
+  public static final String QUICK_UNLOCK_LABEL = "yapm-quick-unlock-v1";
 }
@@ -0,0 +1,157 @@
+package org.vault;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// The pipeline behind VaultManager.importEntries(). The calling thread pulls
+// credentials from the ImportReader, drops duplicates by computeId() and cuts
+// them into batches of VaultConst.IMPORT_BATCH_SIZE. A worker pool seals the
+// batches, and the calling thread inserts each one, in order, as one batched
+// statement and one commit. At most two batches per worker are in flight, so
+// memory stays flat however large the file is.
+//
+// Ids already in the vault count as duplicates: an import never overwrites
+// an entry. A failure rolls back the current batch only, the batches before
+// it stay imported
+final class VaultImporter {
+  private static final String INSERT_SQL = "INSERT OR REPLACE INTO entries(id, data, secret, timestamp, "
+      + "host_tag, domain_tag) VALUES(?,?,?,?,?,?)";
+  private static final String UNDELETE_SQL = "DELETE FROM deleted WHERE id = ?";
+
+  private VaultImporter() {
+  }
+
+  private static final class Sealed {
+    final String id;
+    final byte[] data, secret, hostTag, domainTag;
+
+    Sealed(String id, byte[] data, byte[] secret, byte[] hostTag, byte[] domainTag) {
+      this.id = id;
+      this.data = data;
+      this.secret = secret;
+      this.hostTag = hostTag;
+      this.domainTag = domainTag;
+    }
+  }
+
+  static void run(ImportReader reader, StatementCache statements, SecretKeySpec key, int workers,
+      ImportReport report) throws Exception {
+    long start = System.nanoTime();
+
+    HashSet<String> seen = new HashSet<>();
+    try (ResultSet rs = statements.get("SELECT id FROM entries").executeQuery()) {
+      while (rs.next()) {
+        seen.add(rs.getString(1));
+      }
+    }
+
+    DomainIndex index = new DomainIndex(key);
+    ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+      Thread t = new Thread(r, "vault-import");
+      t.setDaemon(true);
+      return t;
+    });
+    ArrayDeque<Future<List<Sealed>>> inFlight = new ArrayDeque<>();
+    try {
+      ArrayList<String> ids = new ArrayList<>();
+      ArrayList<ImportReader.Credential> batch = new ArrayList<>();
+      ImportReader.Credential credential;
+      while ((credential = reader.next()) != null) {
+        if (!credential.isComplete()) {
+          report.addSkipped();
+          continue;
+        }
+
+        String id = VaultManager.computeId(credential.url, credential.username);
+        if (!seen.add(id)) {
+          report.addDuplicate();
+          continue;
+        }
+
+        ids.add(id);
+        batch.add(credential);
+        if (batch.size() == VaultConst.IMPORT_BATCH_SIZE) {
+          inFlight.add(pool.submit(seal(ids, batch, key, index)));
+          ids = new ArrayList<>();
+          batch = new ArrayList<>();
+
+          if (inFlight.size() >= 2 * workers) {
+            insert(statements, await(inFlight.poll()), report);
+          }
+        }
+      }
+
+      if (!batch.isEmpty()) {
+        inFlight.add(pool.submit(seal(ids, batch, key, index)));
+      }
+      while (!inFlight.isEmpty()) {
+        insert(statements, await(inFlight.poll()), report);
+      }
+    } finally {
+      pool.shutdownNow();
+      report.setElapsedNanos(System.nanoTime() - start);
+    }
+  }
+
+  private static Callable<List<Sealed>> seal(List<String> ids,
+      List<ImportReader.Credential> batch, SecretKeySpec key, DomainIndex index) {
+    return () -> {
+      ArrayList<Sealed> sealed = new ArrayList<>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        ImportReader.Credential credential = batch.get(i);
+        String id = ids.get(i);
+        sealed.add(new Sealed(id, EntryCodec.sealData(id, credential.url, credential.username, key),
+            EntryCodec.sealSecret(id, credential.passwd, key), index.hostTag(credential.url),
+            index.domainTag(credential.url)));
+      }
+
+      return sealed;
+    };
+  }
+
+  private static List<Sealed> await(Future<List<Sealed>> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception cause ? cause : e;
+    }
+  }
+
+  private static void insert(StatementCache statements, List<Sealed> batch, ImportReport report) throws Exception {
+    PreparedStatement ps = statements.get(INSERT_SQL);
+    long now = System.currentTimeMillis();
+    for (Sealed entry : batch) {
+      ps.setString(1, entry.id);
+      ps.setBytes(2, entry.data);
+      ps.setBytes(3, entry.secret);
+      ps.setLong(4, now);
+      ps.setBytes(5, entry.hostTag);
+      ps.setBytes(6, entry.domainTag);
+      ps.addBatch();
+    }
+
+    // an imported id may have been deleted here before. Its tombstone has to go
+    // in the same transaction, or merge() would drop the entry again
+    PreparedStatement undelete = statements.get(UNDELETE_SQL);
+    for (Sealed entry : batch) {
+      undelete.setString(1, entry.id);
+      undelete.addBatch();
+    }
+
+    ps.executeBatch();
+    undelete.executeBatch();
+    statements.connection().commit();
+    report.addImported(batch.size());
+  }
+}
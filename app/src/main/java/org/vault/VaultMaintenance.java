@@ -0,0 +1,125 @@
+package org.vault;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.sqlite.SQLiteConfig;
+
+// Keeps a vault file from growing without bound, see VaultManager.compact().
+//
+// Tombstones in `deleted` only exist so merge() can tell a deleted row from
+// one the other vault never had. Once every device has synced past a
+// tombstone it can go. Every merge() by a VaultManager with a device id
+// records the merged high-water mark for that device in `sync_points`, and
+// merge() keeps the higher point of each device. A tombstone expires once it
+// is below the lowest point and older than the manager's horizon. Expiry is
+// off unless a horizon is set: a device that hasn't merged since the vault
+// got `sync_points` has no point yet, and nothing protects its rows.
+//
+// Vaults are created with auto_vacuum=INCREMENTAL, so pages freed by deletes
+// and compaction can be handed back to the file system a few at a time. Older
+// vaults are converted by one full VACUUM the first time they have enough
+// free pages
+final class VaultMaintenance {
+  // how long a maintenance pass waits for the vault's own connection
+  private static final int BUSY_TIMEOUT_MILLIS = 2000;
+
+  private VaultMaintenance() {
+  }
+
+  // auto_vacuum can only be switched on a file without tables, and in WAL mode
+  // only by a VACUUM. On a new file that costs nothing
+  static void enableIncrementalVacuum(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement();
+        ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM sqlite_master")) {
+      if (rs.getInt(1) > 0) {
+        return;
+      }
+    }
+
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(true);
+    try (Statement statement = conn.createStatement()) {
+      statement.execute("PRAGMA auto_vacuum = INCREMENTAL;");
+      statement.execute("VACUUM;");
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  static void createTables(Statement statement) throws SQLException {
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS sync_points (" +
+        "  device TEXT PRIMARY KEY," +
+        "  high_water INTEGER NOT NULL" +
+        ");");
+  }
+
+  // the higher point of each device wins
+  static void mergeSyncPoints(Connection conn, String... schemas) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      for (String schema : schemas) {
+        statement.executeUpdate("INSERT INTO sync_points(device, high_water) SELECT device, high_water FROM "
+            + schema + ".sync_points WHERE true ON CONFLICT(device) DO UPDATE SET "
+            + "high_water = MAX(high_water, excluded.high_water);");
+      }
+    }
+  }
+
+  // the device has seen every row up to the vault's current high-water mark
+  static void recordSyncPoint(Connection conn, String device) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO sync_points(device, high_water) "
+        + "VALUES(?, (SELECT high_water FROM metadata LIMIT 1))")) {
+      ps.setString(1, device);
+      ps.executeUpdate();
+    }
+  }
+
+  // with no sync point at all nothing is below the lowest one
+  static int compactTombstones(Connection conn, long horizon) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement("DELETE FROM deleted WHERE deleted_at < ? "
+        + "AND deleted_at < (SELECT MIN(high_water) FROM sync_points)")) {
+      ps.setLong(1, horizon);
+      return ps.executeUpdate();
+    }
+  }
+
+  // one pass on a connection of its own, in autocommit mode since VACUUM can't
+  // run inside a transaction. Returns the number of pages given back
+  static long run(String dbPath, SqliteProfile profile, long horizon, int minFreePages) throws SQLException {
+    SQLiteConfig config = profile.config();
+    config.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath, config.toProperties());
+        Statement statement = conn.createStatement()) {
+      compactTombstones(conn, horizon);
+
+      long before = pragma(statement, "page_count");
+      if (pragma(statement, "freelist_count") >= minFreePages) {
+        long mode = pragma(statement, "auto_vacuum");
+        if (mode == 0) {
+          statement.execute("PRAGMA auto_vacuum = INCREMENTAL;");
+          statement.execute("VACUUM;");
+        } else if (mode == 2) {
+          // the pragma frees one page per step, so step it to the end
+          try (ResultSet rs = statement.executeQuery("PRAGMA incremental_vacuum;")) {
+            while (rs.next()) {
+            }
+          }
+        }
+      }
+      statement.execute("PRAGMA wal_checkpoint(TRUNCATE);");
+
+      return before - pragma(statement, "page_count");
+    }
+  }
+
+  private static long pragma(Statement statement, String name) throws SQLException {
+    try (ResultSet rs = statement.executeQuery("PRAGMA " + name + ";")) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+}
@@ -1,6 +1,10 @@
 package org.vault;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
@@ -10,63 +14,198 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
 
 public class VaultManager implements AutoCloseable {
   private final String JDBC_PREFIX = "jdbc:sqlite:";
   private final String VERIFICATION_TEXT = "vault_verification";
-  private final String dbPath;
-  private final String masterPasswd;
+  private String dbPath;
+  // the master password and anything else this manager keeps off the heap.
+  // Wiped on close()
+  private final SecretArena secrets = new SecretArena();
+  private SecretArena.Secret masterPasswd;
   private Connection connection;
+  // compiled statements of `connection`, see StatementCache
+  private StatementCache statements;
+  // keys derived from the master password during this session, keyed by the
+  // KDF parameters and the Base64 vault salt. They only wrap the data key.
+  // Cleared on closeDB()
+  private final HashMap<String, SecretKeySpec> derivedKeys = new HashMap<>();
+  // set once the master password has been verified (and the vault migrated to
+  // VaultConst.FORMAT_VERSION) on the current connection. Every later operation
+  // uses `sessionKey`, the unwrapped data key, without touching `metadata` or
+  // the KDF again
+  private byte[] verifiedSalt;
+  private SecretKeySpec sessionKey;
+  // metadata.wrapped_key the session key came from. reopen() keeps the session
+  // on a file that still holds it
+  private byte[] sessionWrappedKey;
+  // how long an Entry keeps its password in plaintext after getPasswd(). 0
+  // means it is decrypted again on every call
+  private long passwdCacheMillis;
+  // decrypted entries by (id, timestamp), so openVault() only decrypts the
+  // rows that changed since the last one
+  private final EntryCache entryCache = new EntryCache(VaultConst.ENTRY_CACHE_SIZE,
+      VaultConst.ENTRY_CACHE_IDLE_MILLIS);
+  // KDF of the open vault, read from `metadata`
+  private KeyDerivation kdf = Pbkdf2Derivation.legacy();
+  // KDF used by createVault(), calibrated to `kdfTargetMillis` on this host
+  private KeyDerivation newVaultKdf = Pbkdf2Derivation.legacy();
+  private long kdfTargetMillis = VaultConst.KDF_TARGET_MILLIS;
+  // AEAD for the entries of new vaults. null picks the faster one on this host
+  private CipherSuite newVaultCipherSuite;
+  private SqliteProfile sqliteProfile = SqliteProfile.configured();
+  // tombstones older than this that every device has synced past are dropped
+  // by compact(). Negative keeps them all, see VaultMaintenance
+  private long tombstoneHorizonMillis = -1;
+  // names this device in `sync_points` when it merges. null records nothing
+  private String deviceId;
+  // runs compact() in the background while connected, see startMaintenance().
+  // A pass holds `maintenanceLock`, so closing the connection waits for it
+  private ScheduledExecutorService maintenance;
+  private final Object maintenanceLock = new Object();
+  private volatile boolean maintenancePaused = true;
+  // keys from the login of the vault's owner, if any. Vaults are created with
+  // (and older vaults re-keyed to) the account's KDF so they open without a
+  // second PBKDF2 run
+  private AccountKeys accountKeys;
 
   public VaultManager(String dbPath, String masterPasswd) {
+    this(dbPath, masterPasswd, null);
+  }
+
+  public VaultManager(String dbPath, String masterPasswd, AccountKeys accountKeys) {
+    this.dbPath = dbPath;
+    this.masterPasswd = this.secrets.encode(masterPasswd);
+    this.accountKeys = accountKeys;
+  }
+
+  // the password stays where it is, the copy goes from arena to arena
+  public VaultManager(String dbPath, SecretArena.Secret masterPasswd, AccountKeys accountKeys) {
     this.dbPath = dbPath;
-    this.masterPasswd = masterPasswd;
+    this.masterPasswd = this.secrets.copyOf(masterPasswd);
+    this.accountKeys = accountKeys;
+  }
+
+  public void setPasswdCacheMillis(long passwdCacheMillis) {
+    this.passwdCacheMillis = Math.max(0, passwdCacheMillis);
+    // the cached entries were built with the old setting
+    this.entryCache.clear();
+  }
+
+  // 0 entries turns the cache off
+  public void setEntryCache(int maxEntries, long idleMillis) {
+    this.entryCache.configure(maxEntries, idleMillis);
+  }
+
+  public void setKeyDerivation(KeyDerivation kdf) {
+    this.newVaultKdf = kdf;
+  }
+
+  public void setKdfTargetMillis(long kdfTargetMillis) {
+    this.kdfTargetMillis = kdfTargetMillis;
+  }
+
+  public void setCipherSuite(CipherSuite suite) {
+    this.newVaultCipherSuite = suite;
+  }
+
+  // takes effect on the next connectToDB()
+  public void setSqliteProfile(SqliteProfile sqliteProfile) {
+    this.sqliteProfile = sqliteProfile;
+  }
+
+  public void setTombstoneHorizonMillis(long tombstoneHorizonMillis) {
+    this.tombstoneHorizonMillis = tombstoneHorizonMillis;
+  }
+
+  public void setDeviceId(String deviceId) {
+    this.deviceId = deviceId;
+  }
+
+  // compacts the vault every `periodMillis` on a background thread, on a
+  // connection of its own. Passes are skipped while this manager isn't
+  // connected, e.g. between suspend() and reopen()
+  public void startMaintenance(long periodMillis) {
+    stopMaintenance();
+    this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "vault-maintenance");
+      t.setDaemon(true);
+      return t;
+    });
+    this.maintenance.scheduleWithFixedDelay(this::maintainInBackground, periodMillis, periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  public void stopMaintenance() {
+    if (this.maintenance != null) {
+      this.maintenance.shutdownNow();
+      this.maintenance = null;
+    }
   }
 
   @Override
   public void close() {
+    this.stopMaintenance();
     this.closeDB();
+    this.secrets.close();
   }
 
   public VaultStatus createVault() {
     try (Statement statement = this.connection.createStatement()) {
-      statement.executeUpdate("CREATE TABLE IF NOT EXISTS metadata (" +
-          "  salt TEXT NOT NULL," +
-          "  verification TEXT NOT NULL" +
-          ");");
-      statement.executeUpdate("CREATE TABLE IF NOT EXISTS entries (" +
-          "  id TEXT PRIMARY KEY," +
-          "  url TEXT NOT NULL," +
-          "  username TEXT NOT NULL," +
-          "  password TEXT NOT NULL," +
-          "  iv TEXT NOT NULL," +
-          "  timestamp INTEGER NOT NULL" +
-          ");");
-      statement.executeUpdate("CREATE TABLE IF NOT EXISTS deleted (" +
-          "  id TEXT PRIMARY KEY," +
-          "  deleted_at INTEGER NOT NULL" +
-          ");");
+      VaultMaintenance.enableIncrementalVacuum(this.connection);
+      createTables(statement);
       statement.executeUpdate("DELETE FROM metadata;");
 
       EncryptedData encryptedVerificationText;
+      CipherSuite suite;
+      SecretKeySpec kek, dataKey;
+      byte[] kcv, wrappedKey;
       try {
-        encryptedVerificationText = CryptoUtils.encrypt(VERIFICATION_TEXT, masterPasswd);
+        byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+        this.derivedKeys.clear();
+        this.verifiedSalt = null;
+        this.kdf = this.accountKeys != null
+            ? this.accountKeys.vaultKdf()
+            : KdfCalibrator.calibrate(this.newVaultKdf, this.kdfTargetMillis);
+        kek = getDerivedKey(salt);
+        encryptedVerificationText = CryptoUtils.encrypt(VERIFICATION_TEXT, kek, salt);
+        kcv = CryptoUtils.keyCheckValue(kek);
+        suite = this.newVaultCipherSuite != null ? this.newVaultCipherSuite : CipherSuite.fastest();
+        dataKey = CryptoUtils.generateDataKey(suite);
+        wrappedKey = CryptoUtils.wrapKey(dataKey, kek);
       } catch (Exception e) {
         System.out.println("[VaultManager.createVault] ERROR: ");
         e.printStackTrace();
         return VaultStatus.DBCreateVaultFailure;
       }
-      String verTextB64 = encryptedVerificationText.getCipherText() + ":" + encryptedVerificationText.getIV();
 
       try (PreparedStatement preparedStatement = this.connection
-          .prepareStatement("INSERT INTO metadata(salt,verification) VALUES(?,?)")) {
-        preparedStatement.setString(1, encryptedVerificationText.getSalt());
-        preparedStatement.setString(2, verTextB64);
+          .prepareStatement("INSERT INTO metadata(salt,verification,format_version,kdf,kdf_params,kcv,wrapped_key,"
+              + "cipher) VALUES(?,?,?,?,?,?,?,?)")) {
+        preparedStatement.setBytes(1, encryptedVerificationText.getSaltBytes());
+        preparedStatement.setBytes(2, VaultMigrator.packVerification(encryptedVerificationText));
+        preparedStatement.setInt(3, VaultConst.FORMAT_VERSION);
+        preparedStatement.setString(4, this.kdf.id());
+        preparedStatement.setString(5, this.kdf.encodeParams());
+        preparedStatement.setBytes(6, kcv);
+        preparedStatement.setBytes(7, wrappedKey);
+        preparedStatement.setString(8, suite.id());
         preparedStatement.executeUpdate();
       }
 
       this.connection.commit();
+      this.verifiedSalt = encryptedVerificationText.getSaltBytes();
+      this.sessionKey = dataKey;
+      this.sessionWrappedKey = wrappedKey;
       return VaultStatus.DBCreateVaultSuccess;
     } catch (SQLException e) {
       System.out.println("[VaultManager.createVault] ERROR: ");
@@ -77,11 +216,13 @@ public class VaultManager implements AutoCloseable {
 
   public VaultStatus openVault(ArrayList<Entry> entries) {
     byte[] salt;
+    SecretKeySpec key;
     try {
-      salt = verifyMasterPasswd(this.masterPasswd);
+      salt = verifyMasterPasswd();
       if (salt == null) {
         return VaultStatus.DBOpenVaultFailure;
       }
+      key = this.sessionKey;
     } catch (IllegalStateException e) {
       System.out.println("[VaultManager.openVault] ERROR: ");
       e.printStackTrace();
@@ -96,38 +237,53 @@ public class VaultManager implements AutoCloseable {
       return VaultStatus.DBOpenVaultFailure;
     }
 
-    String saltB64 = Base64.getEncoder().encodeToString(salt);
-    try (PreparedStatement preparedStatement = this.connection
-        .prepareStatement("SELECT e.id, e.url, e.username, e.password, e.iv " +
+    try (EntryDecryptor decryptor = new EntryDecryptor(key, this.passwdCacheMillis);
+        ResultSet resultSet = this.statements.get("SELECT e.id, e.data, e.secret, e.timestamp " +
             " FROM entries e " +
             " LEFT JOIN deleted d ON e.id = d.id " +
-            " WHERE d.id IS NULL;")) {
-      ResultSet resultSet = preparedStatement.executeQuery();
-
-      while (resultSet.next()) {
-        String id = resultSet.getString("id");
-        String urlField = resultSet.getString("url");
-        String usernameField = resultSet.getString("username");
-        String passwdField = resultSet.getString("password");
-        String ivField = resultSet.getString("iv");
-
-        EncryptedData url = new EncryptedData(urlField, ivField, saltB64);
-        EncryptedData username = new EncryptedData(usernameField, ivField, saltB64);
-        EncryptedData passwd = new EncryptedData(passwdField, ivField, saltB64);
-
-        String plainUrl, plainUsername, plainPasswd;
-        try {
-          plainUrl = CryptoUtils.decrypt(url, masterPasswd);
-          plainUsername = CryptoUtils.decrypt(username, masterPasswd);
-          plainPasswd = CryptoUtils.decrypt(passwd, masterPasswd);
-        } catch (Exception e) {
-          System.out.println("[VaultManager.openVault] ERROR: ");
-          e.printStackTrace();
-          return VaultStatus.DBOpenVaultFailure;
+            " WHERE d.id IS NULL;").executeQuery()) {
+      // rows cached at their current timestamp are taken as they are, only the
+      // others are read and decrypted. `rows` keeps the row order, with null
+      // where a decrypted entry goes
+      ArrayList<Entry> rows = new ArrayList<>();
+      ArrayList<String> missIds = new ArrayList<>();
+      ArrayList<Long> missTimestamps = new ArrayList<>();
+      HashSet<String> live = new HashSet<>();
+      try {
+        this.entryCache.bind(key);
+        while (resultSet.next()) {
+          String id = resultSet.getString("id");
+          long timestamp = resultSet.getLong("timestamp");
+          live.add(id);
+
+          Entry cached = this.entryCache.get(id, timestamp);
+          rows.add(cached);
+          if (cached == null) {
+            decryptor.submit(id, resultSet.getBytes("data"), resultSet.getBytes("secret"));
+            missIds.add(id);
+            missTimestamps.add(timestamp);
+          }
         }
 
-        Entry entry = new Entry(id, plainUrl, plainUsername, plainPasswd);
-        entries.add(entry);
+        ArrayList<Entry> decrypted = new ArrayList<>(missIds.size());
+        decryptor.drainTo(decrypted);
+        entries.ensureCapacity(entries.size() + rows.size());
+        int next = 0;
+        for (Entry e : rows) {
+          if (e == null) {
+            e = decrypted.get(next);
+            this.entryCache.put(missIds.get(next), missTimestamps.get(next), e);
+            next++;
+          }
+          entries.add(e);
+        }
+        this.entryCache.retainAll(live);
+      } catch (SQLException e) {
+        throw e;
+      } catch (Exception e) {
+        System.out.println("[VaultManager.openVault] ERROR: ");
+        e.printStackTrace();
+        return VaultStatus.DBOpenVaultFailure;
       }
       // System.out.println("\nOPENED " + this.dbPath + ":\n");
       // for (Entry e : entries) {
@@ -143,20 +299,248 @@ public class VaultManager implements AutoCloseable {
     }
   }
 
+  public VaultStatus scanVault(EntryVisitor visitor) {
+    return scanVault(0, visitor);
+  }
+
+  // the live entries after `afterRowId` in rowid order, read and decrypted a
+  // page of VaultConst.ENTRY_PAGE_SIZE rows at a time, so memory doesn't grow
+  // with the vault and a visitor that stops early never pays for the rest. No
+  // cursor is open while the visitor runs, it may use this VaultManager. Pass
+  // the last rowid seen to resume a scan
+  public VaultStatus scanVault(long afterRowId, EntryVisitor visitor) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBOpenVaultFailure;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.scanVault] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.scanVault] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.scanVault] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBOpenVaultFailure;
+    }
+
+    int pageSize = VaultConst.ENTRY_PAGE_SIZE;
+    try (EntryDecryptor decryptor = new EntryDecryptor(key, this.passwdCacheMillis)) {
+      ArrayList<Entry> page = new ArrayList<>(pageSize);
+      long[] rowIds = new long[pageSize];
+      long after = afterRowId;
+
+      boolean more = true;
+      while (more) {
+        PreparedStatement ps = this.statements.get("SELECT e.rowid, e.id, e.data, e.secret " +
+            " FROM entries e " +
+            " LEFT JOIN deleted d ON e.id = d.id " +
+            " WHERE d.id IS NULL AND e.rowid > ? " +
+            " ORDER BY e.rowid LIMIT ?");
+        ps.setLong(1, after);
+        ps.setInt(2, pageSize);
+
+        int n = 0;
+        try (ResultSet resultSet = ps.executeQuery()) {
+          while (resultSet.next()) {
+            rowIds[n++] = resultSet.getLong(1);
+            decryptor.submit(resultSet.getString("id"), resultSet.getBytes("data"), resultSet.getBytes("secret"));
+          }
+        }
+
+        page.clear();
+        decryptor.drainTo(page);
+        boolean stopped = false;
+        for (int i = 0; i < n && !stopped; i++) {
+          stopped = !visitor.visit(rowIds[i], page.get(i));
+        }
+        more = !stopped && n == pageSize;
+        after = n > 0 ? rowIds[n - 1] : after;
+      }
+
+      this.connection.commit();
+      return VaultStatus.DBOpenVaultSuccess;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.scanVault] ERROR: ");
+      e.printStackTrace();
+      try {
+        this.connection.rollback();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
+      }
+      return VaultStatus.DBOpenVaultFailure;
+    }
+  }
+
+  // the live entries on the registrable domain of `url`, so "example.com" also
+  // finds "login.example.com". Only the matching rows are read and decrypted,
+  // through the blind index, see DomainIndex
+  public VaultStatus findByDomain(String url, ArrayList<Entry> entries) {
+    return findBySite(url, false, entries);
+  }
+
+  // the live entries on exactly the host of `url`
+  public VaultStatus findByHost(String url, ArrayList<Entry> entries) {
+    return findBySite(url, true, entries);
+  }
+
+  private VaultStatus findBySite(String url, boolean exactHost, ArrayList<Entry> entries) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBOpenVaultFailure;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.findBySite] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.findBySite] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.findBySite] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBOpenVaultFailure;
+    }
+
+    try (EntryDecryptor decryptor = new EntryDecryptor(key, this.passwdCacheMillis)) {
+      DomainIndex index = new DomainIndex(key);
+      byte[] tag = exactHost ? index.hostTag(url) : index.domainTag(url);
+      if (tag == null) {
+        this.connection.commit();
+        return VaultStatus.DBOpenVaultSuccess;
+      }
+
+      PreparedStatement ps = this.statements.get(exactHost
+          ? "SELECT e.id, e.data, e.secret FROM entries e LEFT JOIN deleted d ON e.id = d.id "
+              + " WHERE d.id IS NULL AND e.host_tag = ? ORDER BY e.rowid"
+          : "SELECT e.id, e.data, e.secret FROM entries e LEFT JOIN deleted d ON e.id = d.id "
+              + " WHERE d.id IS NULL AND e.domain_tag = ? ORDER BY e.rowid");
+      ps.setBytes(1, tag);
+      try (ResultSet resultSet = ps.executeQuery()) {
+        while (resultSet.next()) {
+          decryptor.submit(resultSet.getString("id"), resultSet.getBytes("data"), resultSet.getBytes("secret"));
+        }
+      }
+
+      decryptor.drainTo(entries);
+      this.connection.commit();
+      return VaultStatus.DBOpenVaultSuccess;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.findBySite] ERROR: ");
+      e.printStackTrace();
+      try {
+        this.connection.rollback();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
+      }
+      return VaultStatus.DBOpenVaultFailure;
+    }
+  }
+
+  // the live entries written and the ids deleted after `since`, found through
+  // the timestamp indexes, and the vault's high-water mark to pass next time.
+  // 0 returns everything. The watermark is in the vault's own timestamps: rows
+  // a merge() brings in keep the time they were written on their device, so
+  // after a sync replaced the file a caller should start again from 0, or use
+  // openVault(), which only decrypts what changed anyway
+  public VaultStatus changesSince(long since, VaultChanges changes) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBOpenVaultFailure;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.changesSince] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.changesSince] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.changesSince] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBOpenVaultFailure;
+    }
+
+    changes.clear();
+    // one read transaction, so nothing written between these reads is
+    // missed by the next call
+    try (EntryDecryptor decryptor = new EntryDecryptor(key, this.passwdCacheMillis)) {
+      try (ResultSet resultSet = this.statements.get("SELECT high_water FROM metadata LIMIT 1").executeQuery()) {
+        changes.setHighWaterMark(resultSet.next() ? resultSet.getLong(1) : 0);
+      }
+
+      PreparedStatement ps = this.statements.get("SELECT e.id, e.data, e.secret, e.timestamp " +
+          " FROM entries e " +
+          " LEFT JOIN deleted d ON e.id = d.id " +
+          " WHERE d.id IS NULL AND e.timestamp > ? " +
+          " ORDER BY e.timestamp");
+      ps.setLong(1, since);
+      ArrayList<String> ids = new ArrayList<>();
+      ArrayList<Long> timestamps = new ArrayList<>();
+      try (ResultSet resultSet = ps.executeQuery()) {
+        while (resultSet.next()) {
+          ids.add(resultSet.getString("id"));
+          timestamps.add(resultSet.getLong("timestamp"));
+          decryptor.submit(resultSet.getString("id"), resultSet.getBytes("data"), resultSet.getBytes("secret"));
+        }
+      }
+
+      ps = this.statements.get("SELECT id FROM deleted WHERE deleted_at > ? ORDER BY deleted_at");
+      ps.setLong(1, since);
+      try (ResultSet resultSet = ps.executeQuery()) {
+        while (resultSet.next()) {
+          changes.getDeletedIds().add(resultSet.getString("id"));
+        }
+      }
+
+      decryptor.drainTo(changes.getEntries());
+      this.entryCache.bind(key);
+      for (int i = 0; i < ids.size(); i++) {
+        this.entryCache.put(ids.get(i), timestamps.get(i), changes.getEntries().get(i));
+      }
+
+      this.connection.commit();
+      return VaultStatus.DBOpenVaultSuccess;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.changesSince] ERROR: ");
+      e.printStackTrace();
+      changes.clear();
+      try {
+        this.connection.rollback();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
+      }
+      return VaultStatus.DBOpenVaultFailure;
+    }
+  }
+
   public VaultStatus addEntry(String urlField, String usernameField, String passwdField) {
     if (urlField.isEmpty() || usernameField.isEmpty() || passwdField.isEmpty()) {
       return VaultStatus.DBAddEntryFailureEmptyParameter;
     }
 
     byte[] salt;
+    SecretKeySpec key;
     String id;
     try {
-      salt = verifyMasterPasswd(this.masterPasswd);
+      salt = verifyMasterPasswd();
       id = computeId(urlField, usernameField);
 
       if (salt == null) {
         return VaultStatus.DBAddEntryFailureException;
       }
+      key = this.sessionKey;
     } catch (IllegalStateException e) {
       System.out.println("[VaultManager.addEntry] ERROR: ");
       e.printStackTrace();
@@ -171,34 +555,32 @@ public class VaultManager implements AutoCloseable {
       return VaultStatus.DBAddEntryFailureException;
     }
 
-    EncryptedData encryptedUrl, encryptedUsername, encryptedPasswd;
+    byte[] data, secret, hostTag, domainTag;
     try {
-      encryptedUrl = CryptoUtils.encrypt(urlField, this.masterPasswd, salt);
-
-      final byte[] iv = Base64.getDecoder().decode(encryptedUrl.getIV());
-      encryptedUsername = CryptoUtils.encrypt(usernameField, this.masterPasswd, salt, iv);
-      encryptedPasswd = CryptoUtils.encrypt(passwdField, this.masterPasswd, salt, iv);
+      data = EntryCodec.sealData(id, urlField, usernameField, key);
+      secret = EntryCodec.sealSecret(id, passwdField, key);
+      DomainIndex index = new DomainIndex(key);
+      hostTag = index.hostTag(urlField);
+      domainTag = index.domainTag(urlField);
     } catch (Exception e) {
       System.out.println("[VaultManager.addEntry] ERROR: ");
       e.printStackTrace();
       return VaultStatus.DBAddEntryFailureException;
     }
-    String cipherUrl = encryptedUrl.getCipherText();
-    String cipherUsername = encryptedUsername.getCipherText();
-    String cipherPasswd = encryptedPasswd.getCipherText();
-    String ivB64 = encryptedUrl.getIV();
 
-    try (PreparedStatement preparedStatement = this.connection.prepareStatement(
-        "INSERT OR REPLACE INTO entries(id, url, username, password, iv, timestamp) VALUES(?,?,?,?,?,?)")) {
+    try {
+      PreparedStatement preparedStatement = this.statements.get(
+          "INSERT OR REPLACE INTO entries(id, data, secret, timestamp, host_tag, domain_tag) VALUES(?,?,?,?,?,?)");
       preparedStatement.setString(1, id);
-      preparedStatement.setString(2, cipherUrl);
-      preparedStatement.setString(3, cipherUsername);
-      preparedStatement.setString(4, cipherPasswd);
-      preparedStatement.setString(5, ivB64);
-      preparedStatement.setLong(6, System.currentTimeMillis());
+      preparedStatement.setBytes(2, data);
+      preparedStatement.setBytes(3, secret);
+      preparedStatement.setLong(4, System.currentTimeMillis());
+      preparedStatement.setBytes(5, hostTag);
+      preparedStatement.setBytes(6, domainTag);
 
       preparedStatement.executeUpdate();
       this.connection.commit();
+      this.entryCache.invalidate(id);
 
       return VaultStatus.DBAddEntrySuccess;
     } catch (SQLException e) {
@@ -210,7 +592,7 @@ public class VaultManager implements AutoCloseable {
 
   public VaultStatus deleteEntry(String entryID) {
     try {
-      byte[] salt = verifyMasterPasswd(this.masterPasswd);
+      byte[] salt = verifyMasterPasswd();
       if (salt == null) {
         return VaultStatus.DBDeleteEntryFailureException;
       }
@@ -229,22 +611,21 @@ public class VaultManager implements AutoCloseable {
     }
 
     try {
-      try (PreparedStatement preparedStatement = this.connection.prepareStatement("DELETE FROM entries WHERE id = ?")) {
-        preparedStatement.setString(1, entryID);
-        int affected = preparedStatement.executeUpdate();
-        if (affected == 0) {
-          return VaultStatus.DBDeleteEntryFailureInvalidID;
-        }
+      PreparedStatement preparedStatement = this.statements.get("DELETE FROM entries WHERE id = ?");
+      preparedStatement.setString(1, entryID);
+      int affected = preparedStatement.executeUpdate();
+      if (affected == 0) {
+        return VaultStatus.DBDeleteEntryFailureInvalidID;
       }
-      try (PreparedStatement preparedStatement = this.connection
-          .prepareStatement("INSERT OR REPLACE INTO deleted(id,deleted_at) VALUES(?,?)")) {
-        preparedStatement.setString(1, entryID);
-        preparedStatement.setLong(2, System.currentTimeMillis());
 
-        preparedStatement.executeUpdate();
-      }
+      preparedStatement = this.statements.get("INSERT OR REPLACE INTO deleted(id,deleted_at) VALUES(?,?)");
+      preparedStatement.setString(1, entryID);
+      preparedStatement.setLong(2, System.currentTimeMillis());
+      preparedStatement.executeUpdate();
+      AttachmentStore.deleteForEntry(this.statements, entryID, System.currentTimeMillis());
 
       this.connection.commit();
+      this.entryCache.invalidate(entryID);
       return VaultStatus.DBDeleteEntrySuccess;
     } catch (SQLException e) {
       System.out.println("[VaultManager.deleteEntry] ERROR: ");
@@ -259,14 +640,16 @@ public class VaultManager implements AutoCloseable {
     }
 
     byte[] salt;
+    SecretKeySpec key;
     String id;
     try {
-      salt = verifyMasterPasswd(this.masterPasswd);
+      salt = verifyMasterPasswd();
       id = computeId(newUrl, newUsername);
 
       if (salt == null) {
         return VaultStatus.DBEditEntryFailureException;
       }
+      key = this.sessionKey;
     } catch (IllegalStateException e) {
       System.out.println("[VaultManager.editEntry] ERROR: ");
       e.printStackTrace();
@@ -281,70 +664,371 @@ public class VaultManager implements AutoCloseable {
       return VaultStatus.DBEditEntryFailureException;
     }
 
-    EncryptedData encryptedUrl, encryptedUsername, encryptedPasswd;
+    byte[] data, secret, hostTag, domainTag;
     try {
-      encryptedUrl = CryptoUtils.encrypt(newUrl, this.masterPasswd, salt);
-
-      final byte[] iv = Base64.getDecoder().decode(encryptedUrl.getIV());
-      encryptedUsername = CryptoUtils.encrypt(newUsername, this.masterPasswd, salt, iv);
-      encryptedPasswd = CryptoUtils.encrypt(newPasswd, this.masterPasswd, salt, iv);
+      data = EntryCodec.sealData(id, newUrl, newUsername, key);
+      secret = EntryCodec.sealSecret(id, newPasswd, key);
+      DomainIndex index = new DomainIndex(key);
+      hostTag = index.hostTag(newUrl);
+      domainTag = index.domainTag(newUrl);
     } catch (Exception e) {
       System.out.println("[VaultManager.editEntry] ERROR: ");
       e.printStackTrace();
       return VaultStatus.DBEditEntryFailureException;
     }
-    String cipherUrl = encryptedUrl.getCipherText();
-    String cipherUsername = encryptedUsername.getCipherText();
-    String cipherPasswd = encryptedPasswd.getCipherText();
-    String ivB64 = encryptedUrl.getIV();
 
     try {
-      try (PreparedStatement ps = this.connection.prepareStatement(
-          "DELETE FROM entries WHERE id = ?")) {
-        ps.setString(1, entryID);
+      PreparedStatement ps = this.statements.get("DELETE FROM entries WHERE id = ?");
+      ps.setString(1, entryID);
+
+      int affected = ps.executeUpdate();
+      if (affected == 0) {
+        return VaultStatus.DBEditEntryFailureInvalidID;
+      }
+
+      ps = this.statements.get("INSERT OR REPLACE INTO deleted(id,deleted_at) VALUES(?,?)");
+      ps.setString(1, entryID);
+      ps.setLong(2, System.currentTimeMillis());
+      ps.executeUpdate();
+
+      ps = this.statements.get("DELETE FROM deleted WHERE id = ?");
+      ps.setString(1, id);
+      ps.executeUpdate();
+
+      ps = this.statements.get(
+          "INSERT INTO entries(id,data,secret,timestamp,host_tag,domain_tag) VALUES(?,?,?,?,?,?)");
+      ps.setString(1, id);
+      ps.setBytes(2, data);
+      ps.setBytes(3, secret);
+      ps.setLong(4, System.currentTimeMillis());
+      ps.setBytes(5, hostTag);
+      ps.setBytes(6, domainTag);
+      ps.executeUpdate();
+      AttachmentStore.moveToEntry(this.statements, entryID, id, System.currentTimeMillis());
 
-        int affected = ps.executeUpdate();
-        if (affected == 0) {
-          return VaultStatus.DBEditEntryFailureInvalidID;
+      this.connection.commit();
+      this.entryCache.invalidate(entryID);
+      this.entryCache.invalidate(id);
+      return VaultStatus.DBEditEntrySuccess;
+    } catch (SQLException e) {
+      System.out.println("[VaultManager.editEntry] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBEditEntryFailureException;
+    }
+  }
+
+  // streams `content` into a new attachment of the entry. The stream is read
+  // chunk by chunk and never held in memory as a whole. The caller closes it
+  public VaultStatus addAttachment(String entryID, String name, InputStream content, ArrayList<Attachment> added) {
+    if (name.isEmpty()) {
+      return VaultStatus.DBAddAttachmentFailureEmptyParameter;
+    }
+
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBAddAttachmentFailureException;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.addAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.addAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.addAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBAddAttachmentFailureException;
+    }
+
+    try {
+      PreparedStatement ps = this.statements.get("SELECT 1 FROM entries WHERE id = ?");
+      ps.setString(1, entryID);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) {
+          return VaultStatus.DBAddAttachmentFailureInvalidID;
         }
       }
 
-      try (PreparedStatement ps = this.connection.prepareStatement(
-          "INSERT OR REPLACE INTO deleted(id,deleted_at) VALUES(?,?)")) {
-        ps.setString(1, entryID);
-        ps.setLong(2, System.currentTimeMillis());
-        ps.executeUpdate();
+      Attachment attachment = AttachmentStore.write(this.statements, entryID, name, content, key);
+      this.connection.commit();
+      if (added != null) {
+        added.add(attachment);
       }
 
-      try (PreparedStatement ps = this.connection.prepareStatement("DELETE FROM deleted WHERE id = ?")) {
-        ps.setString(1, id);
-        ps.executeUpdate();
+      return VaultStatus.DBAddAttachmentSuccess;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.addAttachment] ERROR: ");
+      e.printStackTrace();
+      try {
+        this.connection.rollback();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
       }
+      return VaultStatus.DBAddAttachmentFailureException;
+    }
+  }
 
-      try (PreparedStatement ps = connection
-          .prepareStatement("INSERT INTO entries(id,url,username,password,iv,timestamp) VALUES(?,?,?,?,?,?)")) {
+  public VaultStatus listAttachments(String entryID, ArrayList<Attachment> attachments) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBListAttachmentsFailure;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.listAttachments] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.listAttachments] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.listAttachments] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBListAttachmentsFailure;
+    }
 
-        ps.setString(1, id);
-        ps.setString(2, cipherUrl);
-        ps.setString(3, cipherUsername);
-        ps.setString(4, cipherPasswd);
-        ps.setString(5, ivB64);
-        ps.setLong(6, System.currentTimeMillis());
+    try {
+      AttachmentStore.list(this.statements, entryID, key, attachments);
+      this.connection.commit();
+      return VaultStatus.DBListAttachmentsSuccess;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.listAttachments] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBListAttachmentsFailure;
+    }
+  }
 
-        ps.executeUpdate();
+  public VaultStatus readAttachment(String attachmentID, OutputStream out) {
+    return readAttachment(attachmentID, 0, Long.MAX_VALUE, out);
+  }
+
+  // writes `length` bytes from `offset` on (fewer at the end of the
+  // attachment). Only the chunks covering the range are read and decrypted
+  public VaultStatus readAttachment(String attachmentID, long offset, long length, OutputStream out) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBReadAttachmentFailureException;
       }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.readAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.readAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.readAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBReadAttachmentFailureException;
+    }
 
+    try {
+      boolean found = AttachmentStore.read(this.statements, attachmentID, offset, length, out, key);
       this.connection.commit();
-      return VaultStatus.DBEditEntrySuccess;
+
+      return found ? VaultStatus.DBReadAttachmentSuccess : VaultStatus.DBReadAttachmentFailureInvalidID;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.readAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBReadAttachmentFailureException;
+    }
+  }
+
+  public VaultStatus deleteAttachment(String attachmentID) {
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBDeleteAttachmentFailureException;
+      }
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.deleteAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.deleteAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.deleteAttachment] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBDeleteAttachmentFailureException;
+    }
+
+    try {
+      if (!AttachmentStore.delete(this.statements, attachmentID, System.currentTimeMillis())) {
+        return VaultStatus.DBDeleteAttachmentFailureInvalidID;
+      }
+
+      this.connection.commit();
+      return VaultStatus.DBDeleteAttachmentSuccess;
     } catch (SQLException e) {
-      System.out.println("[VaultManager.editEntry] ERROR: ");
+      System.out.println("[VaultManager.deleteAttachment] ERROR: ");
       e.printStackTrace();
-      return VaultStatus.DBEditEntryFailureException;
+      return VaultStatus.DBDeleteAttachmentFailureException;
+    }
+  }
+
+  // bulk-loads an export file of another password manager, see VaultImporter.
+  // The master password is verified once for the whole file
+  public VaultStatus importEntries(ImportFormat format, InputStream source, ImportReport report) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBImportFailureException;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.importEntries] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.importEntries] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.importEntries] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBImportFailureException;
+    }
+
+    VaultStatus status;
+    try (ImportReader reader = format.open(source)) {
+      VaultImporter.run(reader, this.statements, key, Runtime.getRuntime().availableProcessors(),
+          report != null ? report : new ImportReport());
+      status = VaultStatus.DBImportSuccess;
+    } catch (IllegalArgumentException e) {
+      System.out.println("[VaultManager.importEntries] ERROR: ");
+      e.printStackTrace();
+      status = VaultStatus.DBImportFailureBadFormat;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.importEntries] ERROR: ");
+      e.printStackTrace();
+      status = VaultStatus.DBImportFailureException;
+    }
+
+    // the batches before a failure stay imported, see the report
+    if (status != VaultStatus.DBImportSuccess) {
+      try {
+        this.connection.rollback();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
+      }
     }
+    return status;
+  }
+
+  // writes a consistent snapshot of the vault, entries, tombstones and
+  // attachments, to `out` as an encrypted archive (VaultArchive). Costs one
+  // run of the vault's KDF for the archive key
+  public VaultStatus exportArchive(OutputStream out) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBExportArchiveFailureException;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.exportArchive] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.exportArchive] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.exportArchive] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBExportArchiveFailureException;
+    }
+
+    try {
+      byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+      CipherSuite suite = CipherSuite.forKey(key);
+      SecretKeySpec archiveKey = archiveKey(this.kdf, salt, suite);
+      VaultArchive.Header header = new VaultArchive.Header(this.kdf, salt, suite,
+          CryptoUtils.keyCheckValue(archiveKey));
+
+      // one read transaction for the whole archive
+      VaultArchive.export(this.statements, key, header, archiveKey, out);
+      this.connection.commit();
+
+      return VaultStatus.DBExportArchiveSuccess;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.exportArchive] ERROR: ");
+      e.printStackTrace();
+      try {
+        this.connection.rollback();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
+      }
+      return VaultStatus.DBExportArchiveFailureException;
+    }
+  }
+
+  // reads an archive of exportArchive() into this vault, in one transaction.
+  // The archive must have been written under the same master password, it
+  // may come from another vault file. Rows the vault has a newer version of
+  // are kept
+  public VaultStatus restoreArchive(InputStream in) {
+    SecretKeySpec key;
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBRestoreArchiveFailureException;
+      }
+      key = this.sessionKey;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.restoreArchive] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.restoreArchive] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.restoreArchive] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBRestoreArchiveFailureException;
+    }
+
+    VaultStatus status;
+    try {
+      VaultArchive.Header header = VaultArchive.Header.read(in);
+      SecretKeySpec archiveKey = archiveKey(header.kdf, header.salt, header.suite);
+      if (!MessageDigest.isEqual(header.kcv, CryptoUtils.keyCheckValue(archiveKey))) {
+        return VaultStatus.DBWrongMasterPasswd;
+      }
+
+      VaultArchive.restore(this.statements, key, header, archiveKey, in);
+      this.connection.commit();
+      return VaultStatus.DBRestoreArchiveSuccess;
+    } catch (IllegalArgumentException | IOException e) {
+      System.out.println("[VaultManager.restoreArchive] ERROR: ");
+      e.printStackTrace();
+      status = VaultStatus.DBRestoreArchiveFailureBadFormat;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.restoreArchive] ERROR: ");
+      e.printStackTrace();
+      status = VaultStatus.DBRestoreArchiveFailureException;
+    }
+
+    try {
+      this.connection.rollback();
+    } catch (SQLException rollbackErr) {
+      rollbackErr.printStackTrace();
+    }
+    return status;
   }
 
   public static VaultStatus merge(String newDbPath, VaultManager v1, VaultManager v2) {
-    if (!v1.masterPasswd.equals(v2.masterPasswd)) {
+    if (!v1.masterPasswd.contentEquals(v2.masterPasswd)) {
       return VaultStatus.DBMergeDifferentMasterPasswd;
     }
     if (v1.connection == null) {
@@ -360,8 +1044,8 @@ public class VaultManager implements AutoCloseable {
 
     byte[] salt1, salt2;
     try {
-      salt1 = v1.verifyMasterPasswd(v1.masterPasswd);
-      salt2 = v2.verifyMasterPasswd(v2.masterPasswd);
+      salt1 = v1.verifyMasterPasswd();
+      salt2 = v2.verifyMasterPasswd();
 
       if (salt1 == null || salt2 == null) {
         return VaultStatus.DBMergeFailureException;
@@ -381,38 +1065,31 @@ public class VaultManager implements AutoCloseable {
     }
 
     try {
-      VaultManager nv = new VaultManager(newDbPath, v1.masterPasswd);
+      VaultManager nv = new VaultManager(newDbPath, v1.masterPasswd, v1.accountKeys);
       nv.connectToDB();
+      VaultMaintenance.enableIncrementalVacuum(nv.connection);
       try (Statement stmt = nv.connection.createStatement()) {
-        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS metadata (" +
-            "  salt TEXT NOT NULL," +
-            "  verification TEXT NOT NULL" +
-            ");");
-        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS entries (" +
-            "  id TEXT PRIMARY KEY," +
-            "  url TEXT NOT NULL," +
-            "  username TEXT NOT NULL," +
-            "  password TEXT NOT NULL," +
-            "  iv TEXT NOT NULL," +
-            "  timestamp INTEGER NOT NULL" +
-            ");");
-        stmt.executeUpdate("CREATE TABLE IF NOT EXISTS deleted (" +
-            "  id TEXT PRIMARY KEY," +
-            "  deleted_at INTEGER NOT NULL" +
-            ");");
-
+        createTables(stmt);
         stmt.executeUpdate("DELETE FROM metadata;");
       }
 
       try (ResultSet rs = v1.connection.createStatement().executeQuery(
-          "SELECT salt, verification FROM metadata LIMIT 1");
+          "SELECT salt, verification, kdf, kdf_params, kcv, wrapped_key, cipher FROM metadata LIMIT 1");
           PreparedStatement ps = nv.connection.prepareStatement(
-              "INSERT INTO metadata(salt,verification) VALUES(?,?)")) {
+              "INSERT INTO metadata(salt,verification,format_version,kdf,kdf_params,kcv,wrapped_key,cipher) "
+                  + "VALUES(?,?,?,?,?,?,?,?)")) {
         if (!rs.next()) {
           return VaultStatus.DBBadVerificationFormat;
         }
-        ps.setString(1, rs.getString("salt"));
-        ps.setString(2, rs.getString("verification"));
+        // both vaults were brought up to the current format while verifying them
+        ps.setBytes(1, rs.getBytes("salt"));
+        ps.setBytes(2, rs.getBytes("verification"));
+        ps.setInt(3, VaultConst.FORMAT_VERSION);
+        ps.setString(4, rs.getString("kdf"));
+        ps.setString(5, rs.getString("kdf_params"));
+        ps.setBytes(6, rs.getBytes("kcv"));
+        ps.setBytes(7, rs.getBytes("wrapped_key"));
+        ps.setString(8, rs.getString("cipher"));
 
         ps.executeUpdate();
       }
@@ -424,10 +1101,15 @@ public class VaultManager implements AutoCloseable {
       nv.connection.createStatement().execute("ATTACH DATABASE '" + v1.dbPath + "' AS v1;");
       nv.connection.createStatement().execute("ATTACH DATABASE '" + v2.dbPath + "' AS v2;");
 
+      boolean sameKey = MessageDigest.isEqual(v1.sessionKey.getEncoded(), v2.sessionKey.getEncoded())
+          && v1.sessionKey.getAlgorithm().equals(v2.sessionKey.getAlgorithm());
       ResultSet rsAll = nv.connection.createStatement().executeQuery(
           "SELECT id FROM v1.entries UNION SELECT id FROM v2.entries " +
               "UNION SELECT id FROM v1.deleted UNION SELECT id FROM v2.deleted");
 
+      // ids whose merged row differs from one of the two vaults. Their cached
+      // entries go, in case the merged file replaces that vault
+      ArrayList<String> invalidated = new ArrayList<>();
       while (rsAll.next()) {
         String id = rsAll.getString("id");
         Record rec = new Record();
@@ -452,16 +1134,35 @@ public class VaultManager implements AutoCloseable {
           // write tombstone only and delete the entry from new vault
           rec.upsertDeleted(nv.connection, id, finalDeleted);
           rec.deleteEntryRow(nv.connection, id);
+          invalidated.add(id);
         } else {
           // pick newer record to write and remove the entry from table deleted
           Record chosen = (r1.timestamp >= r2.timestamp) ? r1 : r2;
+          // the merged vault uses v1's data key. v2 may have been created separately
+          if (chosen == r2 && !sameKey) {
+            chosen = r2.resealed(v2.sessionKey, v1.sessionKey);
+          }
 
           rec.upsertEntry(nv.connection, chosen);
           rec.deleteDeletedRow(nv.connection, id);
+          if (r1.timestamp != r2.timestamp) {
+            invalidated.add(id);
+          }
         }
       }
 
+      AttachmentStore.merge(nv.connection, v1.sessionKey, v2.sessionKey, sameKey);
+      // every tombstone goes into the new file, only compact() drops them
+      VaultMaintenance.mergeSyncPoints(nv.connection, "v1", "v2");
+      if (v1.deviceId != null) {
+        VaultMaintenance.recordSyncPoint(nv.connection, v1.deviceId);
+      }
+
       nv.connection.commit();
+      for (String id : invalidated) {
+        v1.entryCache.invalidate(id);
+        v2.entryCache.invalidate(id);
+      }
       nv.connection.createStatement().execute("DETACH DATABASE v1;");
       nv.connection.createStatement().execute("DETACH DATABASE v2;");
       ArrayList<Entry> entries = new ArrayList<>();
@@ -475,57 +1176,429 @@ public class VaultManager implements AutoCloseable {
       nv.close();
 
       return VaultStatus.DBMergeSuccess;
-    } catch (SQLException e) {
+    } catch (Exception e) {
       System.out.println("[VaultManager.merge] ERROR: ");
       e.printStackTrace();
       return VaultStatus.DBMergeFailureException;
     }
   }
 
-  private byte[] verifyMasterPasswd(String masterPasswd) throws Exception {
-    String saltB64, verPayload;
+  private byte[] verifyMasterPasswd() throws Exception {
+    if (this.verifiedSalt != null) {
+      return this.verifiedSalt;
+    }
 
-    try (Statement statement = this.connection.createStatement();
-        ResultSet resultSet = statement.executeQuery("SELECT salt, verification FROM metadata LIMIT 1")) {
-      if (!resultSet.next()) {
-        throw new IllegalStateException(
-            "[VaultManager.verifyMasterPasswd] ERROR: metadata table is missing or corrupted.");
-      }
+    EncryptedData verificationData;
+    byte[] kcv;
 
-      saltB64 = resultSet.getString("salt");
-      verPayload = resultSet.getString("verification");
+    try {
+      // until the vault has been migrated on this connection the metadata may
+      // still be in an older layout
+      int version = VaultMigrator.getFormatVersion(this.connection);
+      verificationData = VaultMigrator.readVerification(this.connection, version);
+      this.kdf = VaultMigrator.readKeyDerivation(this.connection);
+      kcv = VaultMigrator.readKeyCheckValue(this.connection);
     } catch (SQLException e) {
       System.out.println("[VaultManager.verifyMasterPasswd] ERROR: ");
       e.printStackTrace();
       return null;
     }
 
-    String[] segments = verPayload.split(":");
-    if (segments.length != 2) {
-      throw new IllegalStateException("[VaultManager.verifyMasterPasswd] ERROR: bad verification format.");
+    byte[] salt = verificationData.getSaltBytes();
+    SecretKeySpec key;
+    boolean matches;
+    try {
+      key = getDerivedKey(salt);
+      if (kcv != null) {
+        matches = MessageDigest.isEqual(kcv, CryptoUtils.keyCheckValue(key));
+      } else {
+        // vaults from before format 6 only have the encrypted verification text
+        matches = CryptoUtils.decrypt(verificationData, key).equals(VERIFICATION_TEXT);
+      }
+    } catch (Exception e) {
+      this.derivedKeys.remove(derivedKeyId(salt));
+      throw new SecurityException("[VaultManager.verifyMasterPasswd] ERROR: incorrect master password.", e);
+    }
+    if (!matches) {
+      this.derivedKeys.remove(derivedKeyId(salt));
+      throw new SecurityException("[VaultManager.verifyMasterPasswd] ERROR: incorrect master password.");
+    }
+
+    VaultMigrator.migrate(this.connection, key);
+
+    byte[] wrappedKey = VaultMigrator.readWrappedKey(this.connection);
+    SecretKeySpec dataKey;
+    try {
+      dataKey = CryptoUtils.unwrapKey(wrappedKey, key, VaultMigrator.readCipherSuite(this.connection));
+    } catch (GeneralSecurityException e) {
+      // the password was right, so the wrapped key itself is broken
+      throw new IllegalStateException("[VaultManager.verifyMasterPasswd] ERROR: corrupted data key.", e);
     }
 
-    String cipherMasterPasswd = segments[0];
-    String ivB64 = segments[1];
+    this.sessionWrappedKey = wrappedKey;
+    if (this.accountKeys != null && !this.accountKeys.derives(this.kdf)) {
+      KeyDerivation oldKdf = this.kdf;
+      this.kdf = this.accountKeys.vaultKdf();
+      try {
+        salt = rewrapDataKey(dataKey);
+      } catch (Exception e) {
+        this.kdf = oldKdf;
+        throw e;
+      }
+    }
+
+    this.verifiedSalt = salt;
+    this.sessionKey = dataKey;
+    return salt;
+  }
+
+  // re-wraps the data key under the new password. The entries are untouched,
+  // so this costs one KDF run however large the vault is. The vault no longer
+  // uses this manager's AccountKeys afterwards
+  public VaultStatus changeMasterPasswd(String newPasswd) {
+    if (newPasswd.isEmpty()) {
+      return VaultStatus.DBChangeMasterPasswdFailureEmptyParameter;
+    }
+
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBChangeMasterPasswdFailureException;
+      }
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.changeMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.changeMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.changeMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBChangeMasterPasswdFailureException;
+    }
 
-    EncryptedData verificationData = new EncryptedData(cipherMasterPasswd, ivB64, saltB64);
-    String decrypted;
+    SecretArena.Secret oldPasswd = this.masterPasswd;
+    AccountKeys oldAccountKeys = this.accountKeys;
     try {
-      decrypted = CryptoUtils.decrypt(verificationData, masterPasswd);
+      this.masterPasswd = this.secrets.encode(newPasswd);
+      this.accountKeys = null;
+      this.derivedKeys.clear();
+      this.verifiedSalt = rewrapDataKey(this.sessionKey);
+      oldPasswd.wipe();
+
+      return VaultStatus.DBChangeMasterPasswdSuccess;
     } catch (Exception e) {
-      throw new SecurityException("[VaultManager.verifyMasterPasswd] ERROR: incorrect master password.", e);
+      if (this.masterPasswd != oldPasswd) {
+        this.masterPasswd.wipe();
+      }
+      this.masterPasswd = oldPasswd;
+      this.accountKeys = oldAccountKeys;
+      this.derivedKeys.clear();
+      System.out.println("[VaultManager.changeMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBChangeMasterPasswdFailureException;
     }
-    if (!decrypted.equals(VERIFICATION_TEXT)) {
-      throw new SecurityException("[VaultManager.verifyMasterPasswd] ERROR: incorrect master password.");
+  }
+
+  // seals this vault's data key under `pin` into `quickUnlock`, replacing
+  // whatever it held. Unlocks the vault with the master password first if
+  // that hasn't happened on this connection
+  public VaultStatus enableQuickUnlock(String pin, QuickUnlock quickUnlock) {
+    if (pin.length() < VaultConst.QUICK_UNLOCK_MIN_PIN_LENGTH) {
+      return VaultStatus.DBEnableQuickUnlockFailureEmptyParameter;
+    }
+
+    try {
+      if (verifyMasterPasswd() == null) {
+        return VaultStatus.DBEnableQuickUnlockFailureException;
+      }
+
+      byte[] wrappedKey = VaultMigrator.readWrappedKey(this.connection);
+      this.connection.commit();
+
+      quickUnlock.arm(pin, this.sessionKey, wrappedKey);
+      return VaultStatus.DBEnableQuickUnlockSuccess;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.enableQuickUnlock] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.enableQuickUnlock] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.enableQuickUnlock] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBEnableQuickUnlockFailureException;
+    }
+  }
+
+  // unlocks the vault on this connection with the data key sealed in
+  // `quickUnlock`, without running the master password KDF. A vault that was
+  // re-keyed or replaced since is DBQuickUnlockStale and needs the master
+  // password; no attempt is used up for it
+  public VaultStatus quickUnlock(QuickUnlock quickUnlock, String pin) {
+    if (!quickUnlock.isArmed()) {
+      return VaultStatus.DBQuickUnlockLocked;
+    }
+
+    boolean current;
+    byte[] wrappedKey = null;
+    byte[] salt = null;
+    KeyDerivation kdf = null;
+    try {
+      current = VaultMigrator.getFormatVersion(this.connection) == VaultConst.FORMAT_VERSION
+          && quickUnlock.belongsTo(wrappedKey = VaultMigrator.readWrappedKey(this.connection));
+      if (current) {
+        salt = VaultMigrator.readVerification(this.connection, VaultConst.FORMAT_VERSION).getSaltBytes();
+        kdf = VaultMigrator.readKeyDerivation(this.connection);
+      }
+      this.connection.commit();
+    } catch (Exception e) {
+      System.out.println("[VaultManager.quickUnlock] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBQuickUnlockFailureException;
+    }
+    if (!current) {
+      return VaultStatus.DBQuickUnlockStale;
     }
 
-    return Base64.getDecoder().decode(saltB64);
+    SecretKeySpec dataKey;
+    try {
+      dataKey = quickUnlock.unlock(pin);
+    } catch (IllegalStateException e) {
+      return VaultStatus.DBQuickUnlockLocked;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.quickUnlock] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBQuickUnlockFailureException;
+    }
+    if (dataKey == null) {
+      return quickUnlock.isArmed() ? VaultStatus.DBQuickUnlockWrongPin : VaultStatus.DBQuickUnlockLocked;
+    }
+
+    this.kdf = kdf;
+    this.verifiedSalt = salt;
+    this.sessionKey = dataKey;
+    this.sessionWrappedKey = wrappedKey;
+    return VaultStatus.DBQuickUnlockSuccess;
+  }
+
+  // unlocks the vault on this connection with a master password the user just
+  // typed, for when QuickUnlock is stale. The key is derived afresh from the
+  // vault's salt and KDF: neither the keys cached for the session nor the
+  // AccountKeys can stand in for the password. A password other than the one
+  // of this session is wrong too, the session has to log in again
+  public VaultStatus unlockWithMasterPasswd(String passwd) {
+    EncryptedData verificationData;
+    KeyDerivation kdf;
+    byte[] kcv;
+    try {
+      int version = VaultMigrator.getFormatVersion(this.connection);
+      verificationData = VaultMigrator.readVerification(this.connection, version);
+      kdf = VaultMigrator.readKeyDerivation(this.connection);
+      kcv = VaultMigrator.readKeyCheckValue(this.connection);
+      this.connection.commit();
+    } catch (Exception e) {
+      System.out.println("[VaultManager.unlockWithMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBOpenVaultFailure;
+    }
+
+    SecretKeySpec key = null;
+    boolean matches;
+    try {
+      key = CryptoUtils.deriveKeyFromPasswd(passwd, verificationData.getSaltBytes(), kdf);
+      matches = kcv != null
+          ? MessageDigest.isEqual(kcv, CryptoUtils.keyCheckValue(key))
+          : CryptoUtils.decrypt(verificationData, key).equals(VERIFICATION_TEXT);
+    } catch (Exception e) {
+      matches = false;
+    }
+    if (!matches || !this.masterPasswd.matches(passwd)) {
+      return VaultStatus.DBWrongMasterPasswd;
+    }
+
+    // the same password, so the usual path can reuse the key to migrate the
+    // vault and unwrap the data key
+    this.derivedKeys.clear();
+    this.verifiedSalt = null;
+    this.kdf = kdf;
+    this.derivedKeys.put(derivedKeyId(verificationData.getSaltBytes()), key);
+    try {
+      return verifyMasterPasswd() != null ? VaultStatus.DBOpenVaultSuccess : VaultStatus.DBOpenVaultFailure;
+    } catch (IllegalStateException e) {
+      System.out.println("[VaultManager.unlockWithMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBBadVerificationFormat;
+    } catch (SecurityException e) {
+      System.out.println("[VaultManager.unlockWithMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBWrongMasterPasswd;
+    } catch (Exception e) {
+      System.out.println("[VaultManager.unlockWithMasterPasswd] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBOpenVaultFailure;
+    }
+  }
+
+
+  private static void createTables(Statement statement) throws SQLException {
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS metadata (" +
+        "  salt BLOB NOT NULL," +
+        "  verification BLOB NOT NULL," +
+        "  format_version INTEGER NOT NULL DEFAULT 1," +
+        "  kdf TEXT NOT NULL," +
+        "  kdf_params TEXT NOT NULL," +
+        "  kcv BLOB," +
+        "  wrapped_key BLOB," +
+        "  cipher TEXT NOT NULL," +
+        "  high_water INTEGER NOT NULL DEFAULT 0" +
+        ");");
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS entries (" +
+        "  id TEXT PRIMARY KEY," +
+        "  data BLOB NOT NULL," +
+        "  secret BLOB NOT NULL," +
+        "  timestamp INTEGER NOT NULL," +
+        "  host_tag BLOB," +
+        "  domain_tag BLOB" +
+        ");");
+    DomainIndex.createIndexes(statement);
+    VaultMaintenance.createTables(statement);
+    statement.executeUpdate("CREATE TABLE IF NOT EXISTS deleted (" +
+        "  id TEXT PRIMARY KEY," +
+        "  deleted_at INTEGER NOT NULL" +
+        ");");
+    createChangeTracking(statement);
+    AttachmentStore.createTables(statement);
+  }
+
+  // indexes for changesSince(), and triggers that raise metadata.high_water to
+  // every timestamp written to `entries` or `deleted`, whichever code path
+  // writes it. INSERT OR REPLACE fires the insert triggers
+  static void createChangeTracking(Statement statement) throws SQLException {
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS entries_timestamp ON entries(timestamp);");
+    statement.executeUpdate("CREATE INDEX IF NOT EXISTS deleted_deleted_at ON deleted(deleted_at);");
+    statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS entries_insert_high_water AFTER INSERT ON entries "
+        + "BEGIN UPDATE metadata SET high_water = MAX(high_water, NEW.timestamp); END;");
+    statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS entries_update_high_water AFTER UPDATE OF timestamp "
+        + "ON entries BEGIN UPDATE metadata SET high_water = MAX(high_water, NEW.timestamp); END;");
+    statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS deleted_insert_high_water AFTER INSERT ON deleted "
+        + "BEGIN UPDATE metadata SET high_water = MAX(high_water, NEW.deleted_at); END;");
+  }
+
+  // seals the data key under a key derived with `this.kdf` from a fresh vault
+  // salt, and records the new salt, KDF and check values. Returns the new salt
+  private byte[] rewrapDataKey(SecretKeySpec dataKey) throws Exception {
+    byte[] newSalt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+
+    try {
+      SecretKeySpec kek = getDerivedKey(newSalt);
+      EncryptedData verification = CryptoUtils.encrypt(VERIFICATION_TEXT, kek, newSalt);
+      byte[] wrappedKey = CryptoUtils.wrapKey(dataKey, kek);
+
+      try (PreparedStatement ps = this.connection.prepareStatement(
+          "UPDATE metadata SET salt = ?, verification = ?, kcv = ?, kdf = ?, kdf_params = ?, wrapped_key = ?")) {
+        ps.setBytes(1, newSalt);
+        ps.setBytes(2, VaultMigrator.packVerification(verification));
+        ps.setBytes(3, CryptoUtils.keyCheckValue(kek));
+        ps.setString(4, this.kdf.id());
+        ps.setString(5, this.kdf.encodeParams());
+        ps.setBytes(6, wrappedKey);
+        ps.executeUpdate();
+      }
+
+      this.connection.commit();
+      this.sessionWrappedKey = wrappedKey;
+      return newSalt;
+    } catch (Exception e) {
+      this.connection.rollback();
+      throw e;
+    }
+  }
+
+  private SecretKeySpec getDerivedKey(byte[] salt) throws Exception {
+    String keyId = derivedKeyId(salt);
+
+    SecretKeySpec key = this.derivedKeys.get(keyId);
+    if (key == null) {
+      key = deriveKey(this.kdf, salt);
+      this.derivedKeys.put(keyId, key);
+    }
+
+    return key;
+  }
+
+  private SecretKeySpec deriveKey(KeyDerivation kdf, byte[] salt) throws Exception {
+    return this.accountKeys != null && this.accountKeys.derives(kdf)
+        ? new SecretKeySpec(this.accountKeys.vaultKey(salt, VaultConst.KEY_LENGTH / 8), "AES")
+        : CryptoUtils.deriveKeyFromPasswd(this.masterPasswd, salt, kdf);
+  }
+
+  // the key of an export archive, in the suite the archive names
+  private SecretKeySpec archiveKey(KeyDerivation kdf, byte[] salt, CipherSuite suite) throws Exception {
+    byte[] raw = deriveKey(kdf, salt).getEncoded();
+    try {
+      return suite.key(raw);
+    } finally {
+      Arrays.fill(raw, (byte) 0);
+    }
+  }
+
+  private String derivedKeyId(byte[] salt) {
+    return this.kdf.id() + ":" + this.kdf.encodeParams() + ":" + Base64.getEncoder().encodeToString(salt);
+  }
+
+  // drops the tombstones older than the horizon that every device has synced
+  // past and, once enough pages are free, gives them back to the file system.
+  // Anything this manager left uncommitted is committed first
+  public VaultStatus compact() {
+    try {
+      this.connection.commit();
+      synchronized (this.maintenanceLock) {
+        VaultMaintenance.run(this.dbPath, this.sqliteProfile, tombstoneExpiry(), VaultConst.VACUUM_MIN_FREE_PAGES);
+      }
+
+      return VaultStatus.DBCompactSuccess;
+    } catch (SQLException e) {
+      System.out.println("[VaultManager.compact] ERROR: ");
+      e.printStackTrace();
+      return VaultStatus.DBCompactFailureException;
+    }
+  }
+
+  // tombstones from before this may go
+  private long tombstoneExpiry() {
+    return this.tombstoneHorizonMillis < 0 ? Long.MIN_VALUE : System.currentTimeMillis() - this.tombstoneHorizonMillis;
+  }
+
+  private void maintainInBackground() {
+    synchronized (this.maintenanceLock) {
+      if (this.maintenancePaused) {
+        return;
+      }
+
+      try {
+        VaultMaintenance.run(this.dbPath, this.sqliteProfile, tombstoneExpiry(), VaultConst.VACUUM_MIN_FREE_PAGES);
+      } catch (SQLException e) {
+        // the vault was busy or gone, the next pass tries again
+        System.out.println("[VaultManager.maintainInBackground] ERROR: ");
+        e.printStackTrace();
+      }
+    }
   }
 
   public VaultStatus connectToDB() {
     try {
-      this.connection = DriverManager.getConnection(JDBC_PREFIX + dbPath);
+      this.connection = DriverManager.getConnection(JDBC_PREFIX + dbPath,
+          this.sqliteProfile.config().toProperties());
       this.connection.setAutoCommit(false);
+      this.statements = new StatementCache(this.connection);
+      this.verifiedSalt = null;
+      this.sessionKey = null;
+      this.sessionWrappedKey = null;
+      this.maintenancePaused = false;
 
       return VaultStatus.DBConnectionSuccess;
     } catch (SQLException e) {
@@ -536,8 +1609,85 @@ public class VaultManager implements AutoCloseable {
   }
 
   public VaultStatus closeDB() {
+    this.derivedKeys.clear();
+    this.entryCache.clear();
+    this.verifiedSalt = null;
+    this.sessionKey = null;
+    this.sessionWrappedKey = null;
+
+    return closeConnection();
+  }
+
+  // closes the connection but keeps the unlocked session, for when the vault
+  // file is about to be replaced (LoginUser.sync()). reopen() picks it up again
+  public VaultStatus suspend() {
+    return closeConnection();
+  }
+
+  // connects to `dbPath`, which may be a new file, like the merged vault a
+  // sync leaves behind. If the file still holds the data key of the session,
+  // the session carries on without the KDF. Otherwise the next operation
+  // verifies the master password (and migrates the vault) like after
+  // connectToDB()
+  public VaultStatus reopen(String dbPath) {
+    if (this.statements != null) {
+      closeConnection();
+    }
+
+    byte[] wrappedKey = this.sessionWrappedKey;
+    SecretKeySpec key = this.sessionKey;
+    this.dbPath = dbPath;
+
+    VaultStatus status = connectToDB();
+    if (status != VaultStatus.DBConnectionSuccess || key == null) {
+      return status;
+    }
+
     try {
-      this.connection.close();
+      if (VaultMigrator.getFormatVersion(this.connection) == VaultConst.FORMAT_VERSION
+          && Arrays.equals(wrappedKey, VaultMigrator.readWrappedKey(this.connection))) {
+        this.verifiedSalt = VaultMigrator.readVerification(this.connection, VaultConst.FORMAT_VERSION)
+            .getSaltBytes();
+        this.kdf = VaultMigrator.readKeyDerivation(this.connection);
+        this.sessionKey = key;
+        this.sessionWrappedKey = wrappedKey;
+      }
+      this.connection.commit();
+    } catch (Exception e) {
+      // not fatal, the session is verified again on the next operation
+      System.out.println("[VaultManager.reopen] ERROR: ");
+      e.printStackTrace();
+      this.verifiedSalt = null;
+      this.sessionKey = null;
+      this.sessionWrappedKey = null;
+    }
+
+    return status;
+  }
+
+  private VaultStatus closeConnection() {
+    synchronized (this.maintenanceLock) {
+      this.maintenancePaused = true;
+    }
+
+    try {
+      try {
+        if (this.statements != null) {
+          this.statements.close();
+        }
+        // the file is uploaded and swapped as it is, so nothing may be left in
+        // its -wal file. A no-op for rollback journals. Uncommitted changes are
+        // dropped, like close() would
+        if (!this.connection.isClosed()) {
+          this.connection.rollback();
+          try (Statement statement = this.connection.createStatement()) {
+            statement.execute("PRAGMA wal_checkpoint(TRUNCATE);");
+          }
+        }
+      } finally {
+        this.statements = null;
+        this.connection.close();
+      }
 
       return VaultStatus.DBCloseSuccess;
     } catch (SQLException e) {
@@ -548,7 +1698,7 @@ public class VaultManager implements AutoCloseable {
   }
 
   public static String computeId(String url, String username) throws NoSuchAlgorithmException {
-    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    MessageDigest md = CryptoContext.get().sha256();
     md.update((url + ":" + username).getBytes(StandardCharsets.UTF_8));
 
     return Base64.getEncoder().encodeToString(md.digest());
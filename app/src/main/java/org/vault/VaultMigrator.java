@@ -0,0 +1,506 @@
+package org.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// Upgrades vault files written by older versions to VaultConst.FORMAT_VERSION.
+// Vaults without a `format_version` column in `metadata` are version 1.
+class VaultMigrator {
+  static final int BATCH_SIZE = 500;
+
+  static int getFormatVersion(Connection conn) throws SQLException {
+    if (!hasColumn(conn, "metadata", "format_version")) {
+      return 1;
+    }
+
+    try (Statement statement = conn.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT format_version FROM metadata LIMIT 1")) {
+      return resultSet.next() ? resultSet.getInt("format_version") : 1;
+    }
+  }
+
+  // runs every pending upgrade step inside one transaction. Nothing is changed
+  // if any step fails
+  static void migrate(Connection conn, SecretKeySpec key) throws Exception {
+    int version = getFormatVersion(conn);
+    if (version == VaultConst.FORMAT_VERSION) {
+      return;
+    }
+    if (version > VaultConst.FORMAT_VERSION) {
+      throw new IllegalStateException("[VaultMigrator.migrate] ERROR: vault format " + version
+          + " is newer than the supported format " + VaultConst.FORMAT_VERSION + ".");
+    }
+
+    try {
+      if (version < 2) {
+        migrateToSingleBlob(conn, key);
+      }
+      if (version < 3) {
+        migrateToBinaryColumns(conn);
+      }
+      if (version < 4) {
+        migrateToSeparateSecret(conn, key);
+      }
+      if (version < 5) {
+        migrateToStoredKdf(conn);
+      }
+      if (version < 6) {
+        migrateToKeyCheckValue(conn, key);
+      }
+      if (version < 7) {
+        migrateToWrappedDataKey(conn, key);
+      }
+      if (version < 8) {
+        migrateToStoredCipherSuite(conn);
+      }
+      if (version < 9) {
+        try (Statement statement = conn.createStatement()) {
+          AttachmentStore.createTables(statement);
+        }
+      }
+      if (version < 10) {
+        migrateToDomainIndex(conn, key);
+      }
+      if (version < 11) {
+        migrateToChangeTracking(conn);
+      }
+      if (version < 12) {
+        try (Statement statement = conn.createStatement()) {
+          VaultMaintenance.createTables(statement);
+        }
+      }
+
+      setFormatVersion(conn, VaultConst.FORMAT_VERSION);
+      conn.commit();
+    } catch (Exception e) {
+      conn.rollback();
+      throw e;
+    }
+  }
+
+  // v1 -> v2: re-seal the three CBC ciphertexts of every row into one GCM blob,
+  // streaming the old table into a new one and swapping them at the end
+  private static void migrateToSingleBlob(Connection conn, SecretKeySpec key) throws Exception {
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate("DROP TABLE IF EXISTS entries_v2;");
+      statement.executeUpdate("CREATE TABLE entries_v2 (" +
+          "  id TEXT PRIMARY KEY," +
+          "  data TEXT NOT NULL," +
+          "  timestamp INTEGER NOT NULL" +
+          ");");
+    }
+
+    try (Statement read = conn.createStatement();
+        ResultSet rs = read.executeQuery("SELECT id, url, username, password, iv, timestamp FROM entries");
+        PreparedStatement write = conn.prepareStatement(
+            "INSERT INTO entries_v2(id, data, timestamp) VALUES(?,?,?)")) {
+      int batched = 0;
+
+      while (rs.next()) {
+        String id = rs.getString("id");
+        String ivB64 = rs.getString("iv");
+
+        String url = CryptoUtils.decrypt(new EncryptedData(rs.getString("url"), ivB64, null), key);
+        String username = CryptoUtils.decrypt(new EncryptedData(rs.getString("username"), ivB64, null), key);
+        String passwd = CryptoUtils.decrypt(new EncryptedData(rs.getString("password"), ivB64, null), key);
+
+        byte[] blob = CryptoUtils.encryptBlob(EntryCodec.pack(url, username, passwd), key,
+            id.getBytes(StandardCharsets.UTF_8));
+
+        write.setString(1, id);
+        write.setString(2, Base64.getEncoder().encodeToString(blob));
+        write.setLong(3, rs.getLong("timestamp"));
+        write.addBatch();
+
+        if (++batched % BATCH_SIZE == 0) {
+          write.executeBatch();
+        }
+      }
+
+      write.executeBatch();
+    }
+
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate("DROP TABLE entries;");
+      statement.executeUpdate("ALTER TABLE entries_v2 RENAME TO entries;");
+    }
+  }
+
+  // v2 -> v3: decode the Base64 TEXT columns of `entries` and `metadata` into
+  // raw BLOBs. The verification payload becomes iv || ciphertext
+  private static void migrateToBinaryColumns(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate("DROP TABLE IF EXISTS entries_v3;");
+      statement.executeUpdate("CREATE TABLE entries_v3 (" +
+          "  id TEXT PRIMARY KEY," +
+          "  data BLOB NOT NULL," +
+          "  timestamp INTEGER NOT NULL" +
+          ");");
+    }
+
+    try (Statement read = conn.createStatement();
+        ResultSet rs = read.executeQuery("SELECT id, data, timestamp FROM entries");
+        PreparedStatement write = conn.prepareStatement(
+            "INSERT INTO entries_v3(id, data, timestamp) VALUES(?,?,?)")) {
+      int batched = 0;
+
+      while (rs.next()) {
+        write.setString(1, rs.getString("id"));
+        write.setBytes(2, Base64.getDecoder().decode(rs.getString("data")));
+        write.setLong(3, rs.getLong("timestamp"));
+        write.addBatch();
+
+        if (++batched % BATCH_SIZE == 0) {
+          write.executeBatch();
+        }
+      }
+
+      write.executeBatch();
+    }
+
+    EncryptedData verification = readVerification(conn, 2);
+
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate("DROP TABLE entries;");
+      statement.executeUpdate("ALTER TABLE entries_v3 RENAME TO entries;");
+
+      statement.executeUpdate("DROP TABLE metadata;");
+      statement.executeUpdate("CREATE TABLE metadata (" +
+          "  salt BLOB NOT NULL," +
+          "  verification BLOB NOT NULL," +
+          "  format_version INTEGER NOT NULL DEFAULT 1" +
+          ");");
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement(
+        "INSERT INTO metadata(salt, verification, format_version) VALUES(?,?,?)")) {
+      ps.setBytes(1, verification.getSaltBytes());
+      ps.setBytes(2, packVerification(verification));
+      ps.setInt(3, 3);
+      ps.executeUpdate();
+    }
+  }
+
+  // v3 -> v4: split every single blob into a `data` blob (url, username) and a
+  // `secret` blob (password)
+  private static void migrateToSeparateSecret(Connection conn, SecretKeySpec key) throws Exception {
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate("DROP TABLE IF EXISTS entries_v4;");
+      statement.executeUpdate("CREATE TABLE entries_v4 (" +
+          "  id TEXT PRIMARY KEY," +
+          "  data BLOB NOT NULL," +
+          "  secret BLOB NOT NULL," +
+          "  timestamp INTEGER NOT NULL" +
+          ");");
+    }
+
+    try (Statement read = conn.createStatement();
+        ResultSet rs = read.executeQuery("SELECT id, data, timestamp FROM entries");
+        PreparedStatement write = conn.prepareStatement(
+            "INSERT INTO entries_v4(id, data, secret, timestamp) VALUES(?,?,?,?)")) {
+      int batched = 0;
+
+      while (rs.next()) {
+        String id = rs.getString("id");
+        byte[] packed = CryptoUtils.decryptBlob(rs.getBytes("data"), key, id.getBytes(StandardCharsets.UTF_8));
+        String[] fields = EntryCodec.unpack(packed, 3);
+
+        write.setString(1, id);
+        write.setBytes(2, EntryCodec.sealData(id, fields[0], fields[1], key));
+        write.setBytes(3, EntryCodec.sealSecret(id, fields[2], key));
+        write.setLong(4, rs.getLong("timestamp"));
+        write.addBatch();
+
+        if (++batched % BATCH_SIZE == 0) {
+          write.executeBatch();
+        }
+      }
+
+      write.executeBatch();
+    }
+
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate("DROP TABLE entries;");
+      statement.executeUpdate("ALTER TABLE entries_v4 RENAME TO entries;");
+    }
+  }
+
+  // v4 -> v5: record the KDF every older vault was created with
+  private static void migrateToStoredKdf(Connection conn) throws SQLException {
+    KeyDerivation legacy = Pbkdf2Derivation.legacy();
+
+    try (Statement statement = conn.createStatement()) {
+      if (!hasColumn(conn, "metadata", "kdf")) {
+        statement.executeUpdate("ALTER TABLE metadata ADD COLUMN kdf TEXT NOT NULL DEFAULT '" + legacy.id() + "';");
+      }
+      if (!hasColumn(conn, "metadata", "kdf_params")) {
+        statement.executeUpdate(
+            "ALTER TABLE metadata ADD COLUMN kdf_params TEXT NOT NULL DEFAULT '" + legacy.encodeParams() + "';");
+      }
+    }
+  }
+
+  // v5 -> v6: store the key-check value of the (already verified) vault key
+  private static void migrateToKeyCheckValue(Connection conn, SecretKeySpec key) throws Exception {
+    if (!hasColumn(conn, "metadata", "kcv")) {
+      try (Statement statement = conn.createStatement()) {
+        statement.executeUpdate("ALTER TABLE metadata ADD COLUMN kcv BLOB;");
+      }
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement("UPDATE metadata SET kcv = ?")) {
+      ps.setBytes(1, CryptoUtils.keyCheckValue(key));
+      ps.executeUpdate();
+    }
+  }
+
+  // v6 -> v7: move every entry from the password-derived key to a new random
+  // data key and store that key wrapped under the password-derived one
+  private static void migrateToWrappedDataKey(Connection conn, SecretKeySpec kek) throws Exception {
+    if (!hasColumn(conn, "metadata", "wrapped_key")) {
+      try (Statement statement = conn.createStatement()) {
+        statement.executeUpdate("ALTER TABLE metadata ADD COLUMN wrapped_key BLOB;");
+      }
+    }
+
+    SecretKeySpec dataKey = CryptoUtils.generateDataKey();
+    resealEntries(conn, kek, dataKey);
+
+    try (PreparedStatement ps = conn.prepareStatement("UPDATE metadata SET wrapped_key = ?")) {
+      ps.setBytes(1, CryptoUtils.wrapKey(dataKey, kek));
+      ps.executeUpdate();
+    }
+  }
+
+  // v7 -> v8: every older vault is sealed with AES-GCM
+  private static void migrateToStoredCipherSuite(Connection conn) throws SQLException {
+    if (!hasColumn(conn, "metadata", "cipher")) {
+      try (Statement statement = conn.createStatement()) {
+        statement.executeUpdate(
+            "ALTER TABLE metadata ADD COLUMN cipher TEXT NOT NULL DEFAULT '" + CipherSuite.AES_GCM.id() + "';");
+      }
+    }
+  }
+
+  // v9 -> v10: tag the host and domain of every entry for the blind index. The
+  // tags are keyed by the data key, which is unwrapped here
+  private static void migrateToDomainIndex(Connection conn, SecretKeySpec kek) throws Exception {
+    try (Statement statement = conn.createStatement()) {
+      if (!hasColumn(conn, "entries", "host_tag")) {
+        statement.executeUpdate("ALTER TABLE entries ADD COLUMN host_tag BLOB;");
+      }
+      if (!hasColumn(conn, "entries", "domain_tag")) {
+        statement.executeUpdate("ALTER TABLE entries ADD COLUMN domain_tag BLOB;");
+      }
+      DomainIndex.createIndexes(statement);
+    }
+
+    SecretKeySpec dataKey = CryptoUtils.unwrapKey(readWrappedKey(conn), kek, readCipherSuite(conn));
+    DomainIndex index = new DomainIndex(dataKey);
+
+    try (Statement read = conn.createStatement();
+        ResultSet rs = read.executeQuery("SELECT id, data FROM entries");
+        PreparedStatement write = conn.prepareStatement(
+            "UPDATE entries SET host_tag = ?, domain_tag = ? WHERE id = ?")) {
+      int batched = 0;
+
+      while (rs.next()) {
+        String id = rs.getString("id");
+        String url = EntryCodec.openData(id, rs.getBytes("data"), dataKey)[0];
+
+        write.setBytes(1, index.hostTag(url));
+        write.setBytes(2, index.domainTag(url));
+        write.setString(3, id);
+        write.addBatch();
+
+        if (++batched % BATCH_SIZE == 0) {
+          write.executeBatch();
+        }
+      }
+
+      write.executeBatch();
+    }
+  }
+
+  // v10 -> v11: timestamp indexes and a high-water mark, started at the
+  // newest timestamp already in the vault
+  private static void migrateToChangeTracking(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      if (!hasColumn(conn, "metadata", "high_water")) {
+        statement.executeUpdate("ALTER TABLE metadata ADD COLUMN high_water INTEGER NOT NULL DEFAULT 0;");
+      }
+      VaultManager.createChangeTracking(statement);
+      statement.executeUpdate("UPDATE metadata SET high_water = MAX(high_water, "
+          + "(SELECT IFNULL(MAX(timestamp), 0) FROM entries), (SELECT IFNULL(MAX(deleted_at), 0) FROM deleted));");
+    }
+  }
+
+  static CipherSuite readCipherSuite(Connection conn) throws SQLException {
+    if (!hasColumn(conn, "metadata", "cipher")) {
+      return CipherSuite.AES_GCM;
+    }
+
+    try (Statement statement = conn.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT cipher FROM metadata LIMIT 1")) {
+      if (!resultSet.next()) {
+        throw new IllegalStateException(
+            "[VaultMigrator.readCipherSuite] ERROR: metadata table is missing or corrupted.");
+      }
+
+      try {
+        return CipherSuite.fromId(resultSet.getString("cipher"));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("[VaultMigrator.readCipherSuite] ERROR: unknown cipher suite.", e);
+      }
+    }
+  }
+
+  // re-seals the data and secret blob of every row from one key to another,
+  // without committing
+  static void resealEntries(Connection conn, SecretKeySpec from, SecretKeySpec to) throws Exception {
+    try (Statement read = conn.createStatement();
+        ResultSet rs = read.executeQuery("SELECT id, data, secret FROM entries");
+        PreparedStatement write = conn.prepareStatement("UPDATE entries SET data = ?, secret = ? WHERE id = ?")) {
+      int batched = 0;
+
+      while (rs.next()) {
+        String id = rs.getString("id");
+        String[] fields = EntryCodec.openData(id, rs.getBytes("data"), from);
+        String passwd = EntryCodec.openSecret(id, rs.getBytes("secret"), from);
+
+        write.setBytes(1, EntryCodec.sealData(id, fields[0], fields[1], to));
+        write.setBytes(2, EntryCodec.sealSecret(id, passwd, to));
+        write.setString(3, id);
+        write.addBatch();
+
+        if (++batched % BATCH_SIZE == 0) {
+          write.executeBatch();
+        }
+      }
+
+      write.executeBatch();
+    }
+  }
+
+  static byte[] readWrappedKey(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT wrapped_key FROM metadata LIMIT 1")) {
+      byte[] wrapped = resultSet.next() ? resultSet.getBytes("wrapped_key") : null;
+      if (wrapped == null) {
+        throw new IllegalStateException("[VaultMigrator.readWrappedKey] ERROR: the vault has no data key.");
+      }
+
+      return wrapped;
+    }
+  }
+
+  // null for vaults from before format 6
+  static byte[] readKeyCheckValue(Connection conn) throws SQLException {
+    if (!hasColumn(conn, "metadata", "kcv")) {
+      return null;
+    }
+
+    try (Statement statement = conn.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT kcv FROM metadata LIMIT 1")) {
+      return resultSet.next() ? resultSet.getBytes("kcv") : null;
+    }
+  }
+
+  // vaults from before format 5 have no KDF columns and were all created with
+  // the legacy PBKDF2 parameters
+  static KeyDerivation readKeyDerivation(Connection conn) throws SQLException {
+    if (!hasColumn(conn, "metadata", "kdf")) {
+      return Pbkdf2Derivation.legacy();
+    }
+
+    try (Statement statement = conn.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT kdf, kdf_params FROM metadata LIMIT 1")) {
+      if (!resultSet.next()) {
+        throw new IllegalStateException(
+            "[VaultMigrator.readKeyDerivation] ERROR: metadata table is missing or corrupted.");
+      }
+
+      try {
+        return KeyDerivation.fromParams(resultSet.getString("kdf"), resultSet.getString("kdf_params"));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("[VaultMigrator.readKeyDerivation] ERROR: bad KDF parameters.", e);
+      }
+    }
+  }
+
+  static byte[] packVerification(EncryptedData verification) {
+    byte[] iv = verification.getIVBytes();
+    byte[] cipherText = verification.getCipherTextBytes();
+
+    byte[] verPayload = new byte[iv.length + cipherText.length];
+    System.arraycopy(iv, 0, verPayload, 0, iv.length);
+    System.arraycopy(cipherText, 0, verPayload, iv.length, cipherText.length);
+
+    return verPayload;
+  }
+
+  // reads the salt and the encrypted verification text from `metadata` in the
+  // layout used by the given format version
+  static EncryptedData readVerification(Connection conn, int version) throws SQLException {
+    try (Statement statement = conn.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT salt, verification FROM metadata LIMIT 1")) {
+      if (!resultSet.next()) {
+        throw new IllegalStateException(
+            "[VaultMigrator.readVerification] ERROR: metadata table is missing or corrupted.");
+      }
+
+      if (version < 3) {
+        String[] segments = resultSet.getString("verification").split(":");
+        if (segments.length != 2) {
+          throw new IllegalStateException("[VaultMigrator.readVerification] ERROR: bad verification format.");
+        }
+
+        return new EncryptedData(segments[0], segments[1], resultSet.getString("salt"));
+      }
+
+      byte[] salt = resultSet.getBytes("salt");
+      byte[] verPayload = resultSet.getBytes("verification");
+      if (salt == null || verPayload == null || verPayload.length <= VaultConst.IV_LENGTH) {
+        throw new IllegalStateException("[VaultMigrator.readVerification] ERROR: bad verification format.");
+      }
+
+      byte[] iv = Arrays.copyOfRange(verPayload, 0, VaultConst.IV_LENGTH);
+      byte[] cipherText = Arrays.copyOfRange(verPayload, VaultConst.IV_LENGTH, verPayload.length);
+      return new EncryptedData(cipherText, iv, salt);
+    }
+  }
+
+  private static void setFormatVersion(Connection conn, int version) throws SQLException {
+    if (!hasColumn(conn, "metadata", "format_version")) {
+      try (Statement statement = conn.createStatement()) {
+        statement.executeUpdate("ALTER TABLE metadata ADD COLUMN format_version INTEGER NOT NULL DEFAULT 1;");
+      }
+    }
+
+    try (PreparedStatement ps = conn.prepareStatement("UPDATE metadata SET format_version = ?")) {
+      ps.setInt(1, version);
+      ps.executeUpdate();
+    }
+  }
+
+  static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+    try (Statement statement = conn.createStatement();
+        ResultSet rs = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+      while (rs.next()) {
+        if (column.equalsIgnoreCase(rs.getString("name"))) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+}
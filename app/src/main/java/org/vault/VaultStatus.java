@@ -31,6 +31,50 @@ public enum VaultStatus {
   DBMergeFailureException,
   DBMergeDifferentMasterPasswd,
 
+  DBAddAttachmentSuccess,
+  DBAddAttachmentFailureEmptyParameter,
+  DBAddAttachmentFailureInvalidID,
+  DBAddAttachmentFailureException,
+
+  DBListAttachmentsSuccess,
+  DBListAttachmentsFailure,
+
+  DBReadAttachmentSuccess,
+  DBReadAttachmentFailureInvalidID,
+  DBReadAttachmentFailureException,
+
+  DBDeleteAttachmentSuccess,
+  DBDeleteAttachmentFailureInvalidID,
+  DBDeleteAttachmentFailureException,
+
+  DBImportSuccess,
+  DBImportFailureBadFormat,
+  DBImportFailureException,
+
+  DBExportArchiveSuccess,
+  DBExportArchiveFailureException,
+
+  DBRestoreArchiveSuccess,
+  DBRestoreArchiveFailureBadFormat,
+  DBRestoreArchiveFailureException,
+
+  DBCompactSuccess,
+  DBCompactFailureException,
+
+  DBChangeMasterPasswdSuccess,
+  DBChangeMasterPasswdFailureEmptyParameter,
+  DBChangeMasterPasswdFailureException,
+
+  DBEnableQuickUnlockSuccess,
+  DBEnableQuickUnlockFailureEmptyParameter,
+  DBEnableQuickUnlockFailureException,
+
+  DBQuickUnlockSuccess,
+  DBQuickUnlockWrongPin,
+  DBQuickUnlockLocked,
+  DBQuickUnlockStale,
+  DBQuickUnlockFailureException,
+
   DBCloseSuccess,
   DBCloseFailure
 }
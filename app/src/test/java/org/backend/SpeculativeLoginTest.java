@@ -0,0 +1,171 @@
+package org.backend;
+
+import org.vault.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+class SpeculativeLoginTest {
+  private static final String PASSWD = "genUser123#!";
+  private static final byte[] SALT = "speculative-salt".getBytes();
+
+  // the local DB, in memory
+  static final class StubConnection implements DatabaseConnection {
+    final Connection con;
+    volatile boolean closed;
+
+    StubConnection() throws SQLException {
+      this.con = DriverManager.getConnection("jdbc:sqlite::memory:");
+      try (Statement st = this.con.createStatement()) {
+        st.execute("CREATE TABLE `" + EnvVars.MASTER_USER_TABLE + "` (username TEXT, email TEXT, "
+            + "hashed_password TEXT, salt TEXT, pwd_db_path TEXT, last_logged_in INTEGER)");
+      }
+    }
+
+    void addUser(String username, String hashedPassword) throws SQLException {
+      try (PreparedStatement ps = this.con.prepareStatement(
+          "INSERT INTO `" + EnvVars.MASTER_USER_TABLE + "` VALUES (?,?,?,?,?,?)")) {
+        ps.setString(1, username);
+        ps.setString(2, username + "@example.com");
+        ps.setString(3, hashedPassword);
+        ps.setString(4, Base64.getEncoder().encodeToString(SALT));
+        ps.setString(5, username + ".db");
+        ps.setLong(6, 1);
+        ps.executeUpdate();
+      }
+    }
+
+    public Connection getConnection() {
+      return this.con;
+    }
+
+    public void close() {
+      this.closed = true;
+      try {
+        this.con.close();
+      } catch (SQLException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  StubConnection db;
+  int connects;
+  SpeculativeLogin speculativeLogin;
+
+  @BeforeEach
+  void setup() throws Exception {
+    this.db = new StubConnection();
+    this.connects = 0;
+    this.speculativeLogin = new SpeculativeLogin(() -> {
+      this.connects++;
+      return this.db;
+    });
+  }
+
+  @AfterEach
+  void teardown() {
+    this.speculativeLogin.close();
+  }
+
+  Future<SpeculativeLogin.Prederived> take(String accountIdentifier, String passwd) {
+    try (SecretArena arena = new SecretArena()) {
+      return this.speculativeLogin.take(accountIdentifier, arena.encode(passwd));
+    }
+  }
+
+  @Test
+  void handsOverTheKeysForTheSameCredentials() throws Exception {
+    String stored = AccountKeys.derive(PASSWD, SALT, 1000).encodeVerifier();
+    this.db.addUser("alice", stored);
+
+    this.speculativeLogin.start("alice", PASSWD);
+    this.speculativeLogin.start("alice", PASSWD);
+    SpeculativeLogin.Prederived guess = SpeculativeLogin.await(take("alice", PASSWD));
+    assertNotNull(guess);
+    assertTrue(guess.accountKeys.matches(stored));
+    assertEquals(1, this.connects);
+
+    guess.wipe();
+    assertTrue(guess.arena.isClosed());
+
+    // taken once only
+    assertNull(take("alice", PASSWD));
+  }
+
+  @Test
+  void dropsGuessesForOtherCredentials() throws Exception {
+    this.db.addUser("alice", AccountKeys.derive(PASSWD, SALT, 1000).encodeVerifier());
+
+    this.speculativeLogin.start("alice", PASSWD);
+    assertNull(take("alice", PASSWD + "x"));
+    assertNull(take("alice", PASSWD));
+
+    this.speculativeLogin.start("alice", PASSWD);
+    this.speculativeLogin.cancel();
+    assertNull(take("alice", PASSWD));
+
+    this.speculativeLogin.start("alice", PASSWD);
+    this.speculativeLogin.start("alice@example.com", PASSWD);
+    assertNull(take("alice", PASSWD));
+  }
+
+  @Test
+  void wipesTheLegacyHashWithTheGuess() throws Exception {
+    byte[] hash = RegisterUser.LEGACY_PASSWORD_HASH_KDF.derive(PASSWD, SALT, RegisterUser.LEGACY_PASSWORD_HASH_LENGTH);
+    this.db.addUser("bob", Base64.getEncoder().encodeToString(hash));
+
+    this.speculativeLogin.start("bob@example.com", PASSWD);
+    SpeculativeLogin.Prederived guess = SpeculativeLogin.await(take("bob@example.com", PASSWD));
+    assertNotNull(guess);
+    assertNull(guess.accountKeys);
+    assertArrayEquals(hash, guess.legacyHash);
+
+    guess.wipe();
+    assertArrayEquals(new byte[hash.length], guess.legacyHash);
+  }
+
+  @Test
+  void survivesUnknownUsersAndConnectionFailures() throws Exception {
+    this.speculativeLogin.start("nobody", PASSWD);
+    assertNull(SpeculativeLogin.await(take("nobody", PASSWD)));
+
+    try (SpeculativeLogin offline = new SpeculativeLogin(() -> {
+      throw new SQLException("no DB");
+    })) {
+      offline.start("alice", PASSWD);
+      try (SecretArena arena = new SecretArena()) {
+        assertNull(SpeculativeLogin.await(offline.take("alice", arena.encode(PASSWD))));
+      }
+    }
+  }
+
+  @Test
+  void closesTheConnectionAndStopsGuessing() throws Exception {
+    this.speculativeLogin.start("nobody", PASSWD);
+    assertNull(SpeculativeLogin.await(take("nobody", PASSWD)));
+    assertEquals(1, this.connects);
+
+    this.speculativeLogin.close();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!this.db.closed && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(this.db.closed);
+
+    this.speculativeLogin.start("nobody", PASSWD);
+    assertNull(take("nobody", PASSWD));
+  }
+}
@@ -1,6 +1,15 @@
 package org.vault;
 
 import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class CryptoUtilsTest {
@@ -18,4 +27,88 @@ class CryptoUtilsTest {
       e.printStackTrace();
     }
   }
+
+  @Test
+  void derivedKeyOverloadsMatchPasswordOverloads() throws Exception {
+    String masterPasswd = "abcdefgh12345678";
+    String plaintext = "aquickbrownfoxjumpsoveralazydog69420";
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+
+    EncryptedData encrypted = CryptoUtils.encrypt(plaintext, masterPasswd, salt);
+    SecretKeySpec key = CryptoUtils.deriveKeyFromPasswd(masterPasswd, salt);
+
+    assertEquals(plaintext, CryptoUtils.decrypt(encrypted, key),
+        "A pre-derived key should decrypt data encrypted with the password.");
+    assertEquals(plaintext, CryptoUtils.decrypt(CryptoUtils.encrypt(plaintext, key, salt), masterPasswd),
+        "Data encrypted with a pre-derived key should decrypt with the password.");
+  }
+
+  @Test
+  void packedEntryBlobRoundTripsAndIsBoundToItsId() throws Exception {
+    SecretKeySpec key = CryptoUtils.deriveKeyFromPasswd("abcdefgh12345678",
+        CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH));
+    byte[] packed = EntryCodec.pack("https://example.com", "", "p\u00e4ss:w0rd");
+
+    byte[] blob = CryptoUtils.encryptBlob(packed, key, "id-1".getBytes(StandardCharsets.UTF_8));
+    String[] fields = EntryCodec.unpack(CryptoUtils.decryptBlob(blob, key, "id-1".getBytes(StandardCharsets.UTF_8)), 3);
+
+    assertArrayEquals(new String[] { "https://example.com", "", "p\u00e4ss:w0rd" }, fields);
+    assertThrows(Exception.class, () -> CryptoUtils.decryptBlob(blob, key, "id-2".getBytes(StandardCharsets.UTF_8)),
+        "A blob moved to another entry id should fail authentication.");
+  }
+
+  @Test
+  void everyCipherSuiteSealsWithItsOwnCipher() throws Exception {
+    byte[] raw = CryptoUtils.generateRandomBytes(VaultConst.KEY_LENGTH / 8);
+    byte[] aad = "id-1".getBytes(StandardCharsets.UTF_8);
+    byte[] plaintext = "p\u00e4ss:w0rd".getBytes(StandardCharsets.UTF_8);
+
+    for (CipherSuite suite : CipherSuite.values()) {
+      SecretKeySpec key = CryptoUtils.generateDataKey(suite);
+      byte[] blob = CryptoUtils.encryptBlob(plaintext, key, aad);
+
+      assertEquals(VaultConst.GCM_IV_LENGTH + plaintext.length + VaultConst.GCM_TAG_LENGTH / 8, blob.length);
+      assertArrayEquals(plaintext, CryptoUtils.decryptBlob(blob, key, aad));
+      assertEquals(suite, CipherSuite.fromId(suite.id()));
+    }
+
+    // the same key bytes under the other suite must not open the blob
+    byte[] blob = CryptoUtils.encryptBlob(plaintext, CipherSuite.AES_GCM.key(raw), aad);
+    assertThrows(Exception.class, () -> CryptoUtils.decryptBlob(blob, CipherSuite.CHACHA20_POLY1305.key(raw), aad));
+    assertNotNull(CipherSuite.fastest());
+  }
+
+  @Test
+  void pooledCiphersAreSafeToUseFromManyThreads() throws Exception {
+    SecretKeySpec key = CryptoUtils.deriveKeyFromPasswd("abcdefgh12345678",
+        CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH));
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+
+    try {
+      ArrayList<Future<Boolean>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        final int thread = t;
+        results.add(pool.submit(() -> {
+          for (int i = 0; i < 200; i++) {
+            String plaintext = "secret-" + thread + "-" + i;
+            byte[] aad = Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+
+            EncryptedData cbc = CryptoUtils.encrypt(plaintext, key, new byte[0]);
+            byte[] blob = CryptoUtils.encryptBlob(plaintext.getBytes(StandardCharsets.UTF_8), key, aad);
+            if (!plaintext.equals(CryptoUtils.decrypt(cbc, key))
+                || !plaintext.equals(new String(CryptoUtils.decryptBlob(blob, key, aad), StandardCharsets.UTF_8))) {
+              return false;
+            }
+          }
+          return true;
+        }));
+      }
+
+      for (Future<Boolean> f : results) {
+        assertTrue(f.get(), "Every thread should round-trip its own data.");
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
 }
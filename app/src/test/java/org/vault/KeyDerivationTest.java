@@ -0,0 +1,180 @@
+package org.vault;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyDerivationTest {
+  @Test
+  void scryptMatchesRfc7914TestVectors() throws Exception {
+    byte[] dk = new ScryptDerivation(10, 8, 16).derive("password", "NaCl".getBytes(StandardCharsets.UTF_8), 64);
+    assertEquals("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+        + "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640", HexFormat.of().formatHex(dk));
+
+    dk = new ScryptDerivation(14, 8, 1).derive("pleaseletmein", "SodiumChloride".getBytes(StandardCharsets.UTF_8), 64);
+    assertEquals("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+        + "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887", HexFormat.of().formatHex(dk));
+  }
+
+  @Test
+  void pbkdf2MatchesTheJcaImplementation() throws Exception {
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+    PBEKeySpec spec = new PBEKeySpec("abcdefgh12345678".toCharArray(), salt, 65536, 128);
+    byte[] expected = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+
+    assertArrayEquals(expected, new Pbkdf2Derivation(Pbkdf2Derivation.ID_SHA1, 65536).derive("abcdefgh12345678", salt, 16),
+        "Master password hashes must stay compatible with existing accounts.");
+    assertArrayEquals(CryptoUtils.deriveKeyFromPasswd("abcdefgh12345678", salt).getEncoded(),
+        Pbkdf2Derivation.legacy().derive("abcdefgh12345678", salt, VaultConst.KEY_LENGTH / 8));
+  }
+
+  @Test
+  void pbkdf2EngineIsBitExactWithTheJdk() throws Exception {
+    String[] passwds = { "p", "abcdefgh12345678", "pässwörd \uD83D\uDD11", "x".repeat(64), "long".repeat(40) };
+    int[] iterations = { 1, 2, 1000 };
+    int[] keyLengths = { 16, 20, 32, 33, 64 };
+
+    for (String passwd : passwds) {
+      for (int c : iterations) {
+        for (int len : keyLengths) {
+          byte[] salt = CryptoUtils.generateRandomBytes(1 + len % 24);
+          PBEKeySpec spec = new PBEKeySpec(passwd.toCharArray(), salt, c, len * 8);
+
+          assertArrayEquals(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded(),
+              Pbkdf2Engine.sha256().derive(passwd.getBytes(StandardCharsets.UTF_8), salt, c, len));
+          assertArrayEquals(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded(),
+              Pbkdf2Engine.sha1().derive(passwd.getBytes(StandardCharsets.UTF_8), salt, c, len));
+        }
+      }
+    }
+
+    // RFC 6070
+    assertEquals("4b007901b765489abead49d926f721d065a429c1", HexFormat.of().formatHex(
+        new Pbkdf2Derivation(Pbkdf2Derivation.ID_SHA1, 4096).derive("password", "salt".getBytes(), 20)));
+  }
+
+  // ./gradlew test -Dyapm.bench=true
+  @Test
+  @EnabledIfSystemProperty(named = "yapm.bench", matches = "true")
+  void benchmarkPbkdf2EngineAgainstTheJdk() throws Exception {
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+    SecretKeyFactory jdk = SecretKeyFactory.getInstance(VaultConst.KEY_DERIVATION_FUNCTION);
+    KeyDerivation engine = Pbkdf2Derivation.legacy();
+
+    for (int round = 0; round < 3; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < 10; i++) {
+        jdk.generateSecret(new PBEKeySpec("abcdefgh12345678".toCharArray(), salt, VaultConst.ITERATIONS,
+            VaultConst.KEY_LENGTH)).getEncoded();
+      }
+      long jdkNanos = (System.nanoTime() - start) / 10;
+
+      start = System.nanoTime();
+      for (int i = 0; i < 10; i++) {
+        engine.derive("abcdefgh12345678", salt, VaultConst.KEY_LENGTH / 8);
+      }
+      long engineNanos = (System.nanoTime() - start) / 10;
+
+      System.out.printf("PBKDF2-SHA256 x%d: jdk %.1f ms, engine %.1f ms (%.2fx)%n", VaultConst.ITERATIONS,
+          jdkNanos / 1e6, engineNanos / 1e6, (double) jdkNanos / engineNanos);
+    }
+  }
+
+  @Test
+  void hkdfMatchesRfc5869TestVector() throws Exception {
+    HexFormat hex = HexFormat.of();
+    byte[] okm = CryptoUtils.hkdf(hex.parseHex("000102030405060708090a0b0c"),
+        hex.parseHex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"), hex.parseHex("f0f1f2f3f4f5f6f7f8f9"), 42);
+
+    assertEquals("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865",
+        hex.formatHex(okm));
+  }
+
+  @Test
+  void accountKeysVerifyTheirOwnHashOnly() throws Exception {
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+    AccountKeys keys = AccountKeys.derive("genUser123#!", salt, VaultConst.ITERATIONS);
+    String stored = keys.encodeVerifier();
+
+    assertTrue(AccountKeys.isVerifier(stored));
+    assertTrue(AccountKeys.derive("genUser123#!", salt, stored).matches(stored));
+    assertFalse(AccountKeys.derive("genUser123#?", salt, stored).matches(stored));
+    assertFalse(keys.matches("v2$1000$" + stored.substring(stored.lastIndexOf('$') + 1)),
+        "A verifier with other parameters should not match");
+    assertFalse(AccountKeys.isVerifier("c29tZWxlZ2FjeWhhc2g="), "Legacy Base64 hashes have no prefix");
+
+    // the vault KDF re-derives the same key from the password alone
+    KeyDerivation vaultKdf = KeyDerivation.fromParams(AccountKeyDerivation.ID, keys.vaultKdf().encodeParams());
+    byte[] vaultSalt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+    assertArrayEquals(keys.vaultKey(vaultSalt, 32), vaultKdf.derive("genUser123#!", vaultSalt, 32));
+  }
+
+  @Test
+  void secretsDeriveTheSameKeysAndAreGoneAfterClose() throws Exception {
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+    // longer than an HMAC block and not ASCII
+    String passwd = "pässwörd-".repeat(10);
+    KeyDerivation[] kdfs = { Pbkdf2Derivation.legacy(), new ScryptDerivation(10, 8, 1) };
+
+    SecretArena arena = new SecretArena();
+    SecretArena.Secret secret = arena.encode(passwd);
+    assertEquals(passwd.getBytes(StandardCharsets.UTF_8).length, secret.length());
+    assertTrue(secret.matches(passwd));
+    assertFalse(secret.matches(passwd + "!"));
+    assertTrue(secret.contentEquals(new SecretArena().copyOf(passwd.getBytes(StandardCharsets.UTF_8))));
+
+    for (KeyDerivation kdf : kdfs) {
+      assertArrayEquals(kdf.derive(passwd, salt, 32), kdf.derive(secret, salt, 32), kdf.id());
+    }
+
+    AccountKeys keys = AccountKeys.derive(secret, salt, VaultConst.ITERATIONS);
+    assertTrue(AccountKeys.derive(passwd, salt, VaultConst.ITERATIONS).matches(keys.encodeVerifier()));
+
+    // a wiped secret gives its space back to the next one
+    SecretArena.Secret scratch = arena.encode("scratch");
+    scratch.wipe();
+    assertThrows(IllegalStateException.class, () -> scratch.matches("scratch"));
+    assertTrue(arena.encode("scratch").matches("scratch"));
+
+    arena.close();
+    assertTrue(arena.isClosed());
+    assertThrows(IllegalStateException.class, () -> secret.matches(passwd));
+    assertThrows(IllegalStateException.class, () -> keys.vaultKey(salt, 32));
+    assertThrows(IllegalStateException.class, () -> arena.encode(passwd));
+  }
+
+  @Test
+  void parametersRoundTripThroughTheirEncoding() {
+    KeyDerivation[] kdfs = { Pbkdf2Derivation.legacy(), new ScryptDerivation(16, 8, 2) };
+
+    for (KeyDerivation kdf : kdfs) {
+      KeyDerivation parsed = KeyDerivation.fromParams(kdf.id(), kdf.encodeParams());
+      assertEquals(kdf.id(), parsed.id());
+      assertEquals(kdf.encodeParams(), parsed.encodeParams());
+    }
+
+    assertThrows(IllegalArgumentException.class, () -> KeyDerivation.fromParams("argon2", "m=1"));
+    assertThrows(IllegalArgumentException.class, () -> KeyDerivation.fromParams(ScryptDerivation.ID, "ln=x"));
+  }
+
+  @Test
+  void calibrationNeverGoesBelowTheMinimumCost() throws Exception {
+    Pbkdf2Derivation weak = new Pbkdf2Derivation(Pbkdf2Derivation.ID_SHA256, 1000);
+
+    Pbkdf2Derivation floor = (Pbkdf2Derivation) KdfCalibrator.calibrate(weak, 0);
+    assertEquals(Pbkdf2Derivation.MIN_ITERATIONS, floor.getIterations());
+
+    Pbkdf2Derivation slow = (Pbkdf2Derivation) KdfCalibrator.calibrate(weak, 200);
+    assertTrue(slow.getIterations() >= Pbkdf2Derivation.MIN_ITERATIONS);
+
+    assertEquals("ln=" + ScryptDerivation.DEFAULT_LOG_N + ",r=8,p=1",
+        new ScryptDerivation(10, 8, 1).scaled(0.5).encodeParams());
+  }
+}
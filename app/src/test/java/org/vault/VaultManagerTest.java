@@ -3,12 +3,28 @@ package org.vault;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.junit.jupiter.api.io.TempDir;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.spec.SecretKeySpec;
 
 class VaultManagerTest {
   private static final String MASTER_PASSWD = "testMaster123";
@@ -53,6 +69,1168 @@ class VaultManagerTest {
     assertEquals("pass1", e.getPasswd());
   }
 
+  @Test
+  public void testOpenLargeVaultKeepsRowsIntact() throws Exception {
+    final int count = 600;
+    for (int i = 0; i < count; i++) {
+      assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("url" + i, "user" + i, "pass" + i));
+    }
+
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(entries));
+    assertEquals(count, entries.size());
+
+    for (Entry e : entries) {
+      String n = e.getURL().substring("url".length());
+      assertEquals("user" + n, e.getUsername());
+      assertEquals("pass" + n, e.getPasswd());
+      assertEquals(VaultManager.computeId(e.getURL(), e.getUsername()), e.getID());
+    }
+
+    ArrayList<Entry> reopened = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(reopened));
+    for (int i = 0; i < count; i++) {
+      assertEquals(entries.get(i).getID(), reopened.get(i).getID(), "Row order should be stable across opens");
+    }
+  }
+
+  @Test
+  public void testLargeLegacyVaultIsMigratedInBatches() throws Exception {
+    int count = 2 * VaultMigrator.BATCH_SIZE + 7;
+    String legacyPath = tmpDir.resolve("largeLegacyVault.db").toString();
+    createLegacyVault(legacyPath, count);
+
+    try (VaultManager legacy = new VaultManager(legacyPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, legacy.connectToDB());
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, legacy.openVault(entries));
+      assertEquals(count, entries.size());
+      for (Entry e : entries) {
+        String i = e.getURL().substring(3);
+        assertEquals("user" + i, e.getUsername());
+        assertEquals("pass" + i, e.getPasswd());
+      }
+    }
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + legacyPath)) {
+      assertEquals(VaultConst.FORMAT_VERSION, VaultMigrator.getFormatVersion(conn));
+    }
+  }
+
+  @Test
+  public void testLegacyVaultIsMigratedToCurrentFormat() throws Exception {
+    String legacyPath = tmpDir.resolve("legacyVault.db").toString();
+    createLegacyVault(legacyPath, 3);
+
+    try (VaultManager legacy = new VaultManager(legacyPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, legacy.connectToDB());
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, legacy.openVault(entries));
+      assertEquals(3, entries.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals("url" + i, entries.get(i).getURL());
+        assertEquals("user" + i, entries.get(i).getUsername());
+        assertEquals("pass" + i, entries.get(i).getPasswd());
+      }
+
+      assertEquals(VaultStatus.DBAddEntrySuccess, legacy.addEntry("url3", "user3", "pass3"));
+
+      // the migrated rows were tagged for the blind index
+      ArrayList<Entry> found = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, legacy.findByHost("url1", found));
+      assertEquals(1, found.size());
+      assertEquals("user1", found.get(0).getUsername());
+    }
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + legacyPath);
+        Statement st = conn.createStatement()) {
+      assertEquals(VaultConst.FORMAT_VERSION, VaultMigrator.getFormatVersion(conn));
+      assertFalse(VaultMigrator.hasColumn(conn, "entries", "iv"), "The iv column should be dropped");
+      assertEquals(Pbkdf2Derivation.legacy().encodeParams(), VaultMigrator.readKeyDerivation(conn).encodeParams());
+      assertNotNull(VaultMigrator.readKeyCheckValue(conn), "A key-check value should be added");
+      assertNotNull(VaultMigrator.readWrappedKey(conn), "A wrapped data key should be added");
+      assertEquals(CipherSuite.AES_GCM, VaultMigrator.readCipherSuite(conn));
+      assertTrue(VaultMigrator.hasColumn(conn, "attachment_chunks", "seq"), "Attachment tables should be added");
+      try (ResultSet rs = st.executeQuery("SELECT high_water FROM metadata")) {
+        assertTrue(rs.getLong(1) > 2, "The high-water mark should start at the newest row");
+      }
+
+      try (ResultSet rs = st.executeQuery(
+          "SELECT COUNT(*) FROM entries WHERE typeof(data) = 'blob' AND typeof(secret) = 'blob'")) {
+        assertEquals(4, rs.getInt(1), "Every entry should be stored as raw BLOBs");
+      }
+      try (ResultSet rs = st.executeQuery("SELECT typeof(salt), typeof(verification) FROM metadata")) {
+        assertEquals("blob", rs.getString(1));
+        assertEquals("blob", rs.getString(2));
+      }
+    }
+  }
+
+  @Test
+  public void testVaultRemembersItsKdf() throws Exception {
+    String scryptPath = tmpDir.resolve("scryptVault.db").toString();
+
+    try (VaultManager created = new VaultManager(scryptPath, MASTER_PASSWD)) {
+      created.setKeyDerivation(new ScryptDerivation());
+      created.setKdfTargetMillis(0);
+      assertEquals(VaultStatus.DBConnectionSuccess, created.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, created.createVault());
+      assertEquals(VaultStatus.DBAddEntrySuccess, created.addEntry("http://example.com", "user1", "pass1"));
+    }
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + scryptPath)) {
+      KeyDerivation kdf = VaultMigrator.readKeyDerivation(conn);
+      assertEquals(ScryptDerivation.ID, kdf.id());
+      assertEquals(new ScryptDerivation().encodeParams(), kdf.encodeParams());
+    }
+
+    // a manager configured for another KDF still opens the vault with the stored one
+    try (VaultManager reopened = new VaultManager(scryptPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, reopened.connectToDB());
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, reopened.openVault(entries));
+      assertEquals(1, entries.size());
+      assertEquals("pass1", entries.get(0).getPasswd());
+    }
+  }
+
+  @Test
+  public void testChaChaVaultRoundTrips() throws Exception {
+    String chachaPath = tmpDir.resolve("chachaVault.db").toString();
+
+    try (VaultManager created = new VaultManager(chachaPath, MASTER_PASSWD)) {
+      created.setCipherSuite(CipherSuite.CHACHA20_POLY1305);
+      assertEquals(VaultStatus.DBConnectionSuccess, created.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, created.createVault());
+      assertEquals(VaultStatus.DBAddEntrySuccess, created.addEntry("http://example.com", "user1", "pass1"));
+    }
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + chachaPath)) {
+      assertEquals(CipherSuite.CHACHA20_POLY1305, VaultMigrator.readCipherSuite(conn));
+    }
+
+    try (VaultManager reopened = new VaultManager(chachaPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, reopened.connectToDB());
+      assertEquals(VaultStatus.DBEditEntrySuccess, reopened.editEntry(
+          VaultManager.computeId("http://example.com", "user1"), "http://example.com", "user1", "pass2"));
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, reopened.openVault(entries));
+      assertEquals(1, entries.size());
+      assertEquals("pass2", entries.get(0).getPasswd());
+    }
+  }
+
+  @Test
+  public void testAttachmentsAreStoredInIndependentChunks() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+    String entryId = VaultManager.computeId("http://example.com", "user1");
+
+    int chunk = VaultConst.ATTACHMENT_CHUNK_SIZE;
+    byte[] content = CryptoUtils.generateRandomBytes(2 * chunk + 123);
+    ArrayList<Attachment> added = new ArrayList<Attachment>();
+    assertEquals(VaultStatus.DBAddAttachmentFailureInvalidID,
+        vm.addAttachment("nope", "id_ed25519", new ByteArrayInputStream(content), added));
+    assertEquals(VaultStatus.DBAddAttachmentSuccess,
+        vm.addAttachment(entryId, "id_ed25519", new ByteArrayInputStream(content), added));
+    assertEquals(VaultStatus.DBAddAttachmentSuccess,
+        vm.addAttachment(entryId, "empty.txt", new ByteArrayInputStream(new byte[0]), added));
+    String id = added.get(0).getID();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(VaultStatus.DBReadAttachmentSuccess, vm.readAttachment(id, out));
+    assertArrayEquals(content, out.toByteArray());
+
+    // a range across a chunk boundary, and one running past the end
+    out.reset();
+    assertEquals(VaultStatus.DBReadAttachmentSuccess, vm.readAttachment(id, chunk - 10, 20, out));
+    assertArrayEquals(Arrays.copyOfRange(content, chunk - 10, chunk + 10), out.toByteArray());
+    out.reset();
+    assertEquals(VaultStatus.DBReadAttachmentSuccess, vm.readAttachment(id, 2 * chunk, 1000, out));
+    assertArrayEquals(Arrays.copyOfRange(content, 2 * chunk, content.length), out.toByteArray());
+
+    out.reset();
+    assertEquals(VaultStatus.DBReadAttachmentSuccess, vm.readAttachment(added.get(1).getID(), out));
+    assertEquals(0, out.size());
+
+    // editing the entry moves its attachments along
+    assertEquals(VaultStatus.DBEditEntrySuccess, vm.editEntry(entryId, "http://example.com", "user2", "pass1"));
+    String newEntryId = VaultManager.computeId("http://example.com", "user2");
+    ArrayList<Attachment> listed = new ArrayList<Attachment>();
+    assertEquals(VaultStatus.DBListAttachmentsSuccess, vm.listAttachments(newEntryId, listed));
+    assertEquals(2, listed.size());
+    assertEquals("id_ed25519", listed.get(0).getName());
+    assertEquals(content.length, listed.get(0).getSize());
+
+    // a chunk copied to another position is caught by the AAD
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        PreparedStatement ps = conn.prepareStatement("UPDATE attachment_chunks SET data = (SELECT data FROM "
+            + "attachment_chunks WHERE attachment_id = ?1 AND seq = 1) WHERE attachment_id = ?1 AND seq = 0")) {
+      ps.setString(1, id);
+      assertEquals(1, ps.executeUpdate());
+    }
+    assertEquals(VaultStatus.DBReadAttachmentFailureException, vm.readAttachment(id, new ByteArrayOutputStream()));
+
+    assertEquals(VaultStatus.DBDeleteEntrySuccess, vm.deleteEntry(newEntryId));
+    assertEquals(VaultStatus.DBReadAttachmentFailureInvalidID, vm.readAttachment(id, new ByteArrayOutputStream()));
+  }
+
+  @Test
+  public void testVaultIsRekeyedToTheAccountKeys() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.org", "user2", "pass2"));
+
+    AccountKeys keys = AccountKeys.derive(MASTER_PASSWD, CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH),
+        VaultConst.ITERATIONS);
+    try (VaultManager withKeys = new VaultManager(dbPath, MASTER_PASSWD, keys)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, withKeys.connectToDB());
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, withKeys.openVault(entries));
+      assertEquals(2, entries.size());
+      assertEquals(VaultStatus.DBAddEntrySuccess, withKeys.addEntry("http://example.net", "user3", "pass3"));
+    }
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+      assertEquals(keys.vaultKdf().encodeParams(), VaultMigrator.readKeyDerivation(conn).encodeParams());
+    }
+
+    // the password alone still opens the re-keyed vault
+    try (VaultManager passwdOnly = new VaultManager(dbPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, passwdOnly.connectToDB());
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, passwdOnly.openVault(entries));
+      assertEquals(3, entries.size());
+      for (Entry e : entries) {
+        assertEquals("pass" + e.getUsername().substring(4), e.getPasswd());
+      }
+    }
+  }
+
+  @Test
+  public void testMasterPasswdChangeOnlyRewrapsTheDataKey() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+    String id = VaultManager.computeId("http://example.com", "user1");
+    byte[] sealedBefore = readSecret(id);
+
+    assertEquals(VaultStatus.DBChangeMasterPasswdFailureEmptyParameter, vm.changeMasterPasswd(""));
+    assertEquals(VaultStatus.DBChangeMasterPasswdSuccess, vm.changeMasterPasswd(WRONG_PASSWD));
+    assertArrayEquals(sealedBefore, readSecret(id), "Entries should not be re-encrypted");
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.org", "user2", "pass2"));
+
+    try (VaultManager oldPasswd = new VaultManager(dbPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, oldPasswd.connectToDB());
+      assertEquals(VaultStatus.DBWrongMasterPasswd, oldPasswd.openVault(new ArrayList<Entry>()));
+    }
+
+    try (VaultManager newPasswd = new VaultManager(dbPath, WRONG_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, newPasswd.connectToDB());
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, newPasswd.openVault(entries));
+      assertEquals(2, entries.size());
+      for (Entry e : entries) {
+        assertEquals("pass" + e.getUsername().substring(4), e.getPasswd());
+      }
+    }
+  }
+
+  @Test
+  public void testQuickUnlockOpensTheVaultWithThePinAlone() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+
+    QuickUnlock quickUnlock = new QuickUnlock();
+    assertEquals(VaultStatus.DBEnableQuickUnlockFailureEmptyParameter, vm.enableQuickUnlock("123", quickUnlock));
+    assertEquals(VaultStatus.DBEnableQuickUnlockSuccess, vm.enableQuickUnlock("1234", quickUnlock));
+    assertEquals(VaultConst.QUICK_UNLOCK_ATTEMPTS, quickUnlock.getAttemptsLeft());
+
+    // the master password is never looked at, the PIN unseals the data key
+    try (VaultManager relocked = new VaultManager(dbPath, WRONG_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, relocked.connectToDB());
+      assertEquals(VaultStatus.DBQuickUnlockWrongPin, relocked.quickUnlock(quickUnlock, "4321"));
+      assertEquals(VaultConst.QUICK_UNLOCK_ATTEMPTS - 1, quickUnlock.getAttemptsLeft());
+      assertEquals(VaultStatus.DBQuickUnlockSuccess, relocked.quickUnlock(quickUnlock, "1234"));
+      assertEquals(VaultConst.QUICK_UNLOCK_ATTEMPTS, quickUnlock.getAttemptsLeft(), "A good PIN resets the count");
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, relocked.openVault(entries));
+      assertEquals(1, entries.size());
+      assertEquals("pass1", entries.get(0).getPasswd());
+      assertEquals(VaultStatus.DBAddEntrySuccess, relocked.addEntry("http://example.org", "user2", "pass2"));
+    }
+
+    // the sealed key is dropped after too many wrong PINs
+    for (int i = 1; i < VaultConst.QUICK_UNLOCK_ATTEMPTS; i++) {
+      assertEquals(VaultStatus.DBQuickUnlockWrongPin, vm.quickUnlock(quickUnlock, "0000"));
+    }
+    assertEquals(VaultStatus.DBQuickUnlockLocked, vm.quickUnlock(quickUnlock, "0000"));
+    assertFalse(quickUnlock.isArmed());
+    assertEquals(VaultStatus.DBQuickUnlockLocked, vm.quickUnlock(quickUnlock, "1234"));
+
+    // a re-keyed vault doesn't take the old data key
+    assertEquals(VaultStatus.DBEnableQuickUnlockSuccess, vm.enableQuickUnlock("1234", quickUnlock));
+    assertEquals(VaultStatus.DBChangeMasterPasswdSuccess, vm.changeMasterPasswd(WRONG_PASSWD));
+    assertEquals(VaultStatus.DBQuickUnlockStale, vm.quickUnlock(quickUnlock, "1234"));
+    assertEquals(VaultConst.QUICK_UNLOCK_ATTEMPTS, quickUnlock.getAttemptsLeft());
+  }
+
+  @Test
+  public void testStaleQuickUnlockTakesOnlyAFreshMasterPasswd() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+    QuickUnlock quickUnlock = new QuickUnlock();
+    assertEquals(VaultStatus.DBEnableQuickUnlockSuccess, vm.enableQuickUnlock("1234", quickUnlock));
+
+    // another device changed the password: neither the old one this session
+    // holds nor the new one opens the vault here
+    try (VaultManager other = new VaultManager(dbPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, other.connectToDB());
+      assertEquals(VaultStatus.DBChangeMasterPasswdSuccess, other.changeMasterPasswd(WRONG_PASSWD));
+    }
+    assertEquals(VaultStatus.DBQuickUnlockStale, vm.quickUnlock(quickUnlock, "1234"));
+    assertEquals(VaultStatus.DBWrongMasterPasswd, vm.unlockWithMasterPasswd(MASTER_PASSWD));
+    assertEquals(VaultStatus.DBWrongMasterPasswd, vm.unlockWithMasterPasswd(WRONG_PASSWD));
+
+    // changed by this session, the typed password has to be the new one
+    try (VaultManager current = new VaultManager(dbPath, WRONG_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, current.connectToDB());
+      assertEquals(VaultStatus.DBEnableQuickUnlockSuccess, current.enableQuickUnlock("1234", quickUnlock));
+      assertEquals(VaultStatus.DBChangeMasterPasswdSuccess, current.changeMasterPasswd(MASTER_PASSWD));
+      assertEquals(VaultStatus.DBCloseSuccess, current.closeDB());
+      assertEquals(VaultStatus.DBConnectionSuccess, current.connectToDB());
+
+      assertEquals(VaultStatus.DBQuickUnlockStale, current.quickUnlock(quickUnlock, "1234"));
+      assertEquals(VaultStatus.DBWrongMasterPasswd, current.unlockWithMasterPasswd(WRONG_PASSWD));
+      assertEquals(VaultStatus.DBOpenVaultSuccess, current.unlockWithMasterPasswd(MASTER_PASSWD));
+
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, current.openVault(entries));
+      assertEquals(1, entries.size());
+      assertEquals("pass1", entries.get(0).getPasswd());
+
+      // without a readable vault the PIN can't be checked
+      assertEquals(VaultStatus.DBCloseSuccess, current.closeDB());
+      assertEquals(VaultStatus.DBQuickUnlockFailureException, current.quickUnlock(quickUnlock, "1234"));
+      assertEquals(VaultConst.QUICK_UNLOCK_ATTEMPTS, quickUnlock.getAttemptsLeft());
+    }
+  }
+
+  @Test
+  public void testReopenCarriesTheSessionOverToAReplacedFile() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+    assertEquals(VaultStatus.DBCloseSuccess, vm.suspend());
+
+    // what a sync does: a new file with the same metadata, under a new name.
+    // The broken key-check value shows the session isn't verified again
+    String syncedPath = tmpDir.resolve("synced.db").toString();
+    Files.copy(Path.of(dbPath), Path.of(syncedPath));
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + syncedPath);
+        Statement st = conn.createStatement()) {
+      assertEquals(1, st.executeUpdate("UPDATE metadata SET kcv = zeroblob(32)"));
+    }
+
+    assertEquals(VaultStatus.DBConnectionSuccess, vm.reopen(syncedPath));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.org", "user2", "pass2"));
+    for (int i = 0; i < 3; i++) {
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(entries));
+      assertEquals(2, entries.size());
+    }
+
+    // a different vault under the path needs the master password again
+    String otherPath = tmpDir.resolve("other.db").toString();
+    try (VaultManager other = new VaultManager(otherPath, WRONG_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, other.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, other.createVault());
+    }
+    assertEquals(VaultStatus.DBConnectionSuccess, vm.reopen(otherPath));
+    assertEquals(VaultStatus.DBWrongMasterPasswd, vm.openVault(new ArrayList<Entry>()));
+
+    assertEquals(VaultStatus.DBConnectionSuccess, vm.reopen(dbPath));
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(entries));
+    assertEquals(1, entries.size());
+  }
+
+  @Test
+  public void testSqliteProfilesAreAppliedAndLeaveASelfContainedFile() throws Exception {
+    String walPath = tmpDir.resolve("wal.db").toString();
+    try (VaultManager wal = new VaultManager(walPath, MASTER_PASSWD)) {
+      wal.setSqliteProfile(SqliteProfile.THROUGHPUT);
+      assertEquals(VaultStatus.DBConnectionSuccess, wal.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, wal.createVault());
+      assertEquals(VaultStatus.DBAddEntrySuccess, wal.addEntry("http://example.com", "user1", "pass1"));
+      assertTrue(Files.exists(Path.of(walPath + "-wal")), "Commits should go to the WAL");
+    }
+
+    // everything was checkpointed into the file itself
+    Path walFile = Path.of(walPath + "-wal");
+    assertTrue(!Files.exists(walFile) || Files.size(walFile) == 0);
+    Path copy = tmpDir.resolve("copy.db");
+    Files.copy(Path.of(walPath), copy);
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + copy);
+        Statement st = conn.createStatement()) {
+      assertEquals("wal", pragma(st, "journal_mode"));
+      assertEquals("4096", pragma(st, "page_size"));
+      assertTrue(st.executeQuery("SELECT id FROM entries").next());
+    }
+
+    String legacyPath = tmpDir.resolve("legacy.db").toString();
+    try (VaultManager legacy = new VaultManager(legacyPath, MASTER_PASSWD)) {
+      legacy.setSqliteProfile(SqliteProfile.LEGACY);
+      assertEquals(VaultStatus.DBConnectionSuccess, legacy.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, legacy.createVault());
+    }
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + legacyPath);
+        Statement st = conn.createStatement()) {
+      assertEquals("delete", pragma(st, "journal_mode"));
+    }
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + copy,
+        SqliteProfile.fromId("Balanced").config().toProperties());
+        Statement st = conn.createStatement()) {
+      assertEquals("1", pragma(st, "synchronous"));
+      assertEquals("-8192", pragma(st, "cache_size"));
+      assertEquals("2", pragma(st, "temp_store"));
+      assertEquals(Long.toString(64L << 20), pragma(st, "mmap_size"));
+    }
+    assertThrows(IllegalArgumentException.class, () -> SqliteProfile.fromId("turbo"));
+  }
+
+  // ./gradlew test -Dyapm.bench=true
+  @Test
+  @EnabledIfSystemProperty(named = "yapm.bench", matches = "true")
+  public void benchmarkSqliteProfiles() throws Exception {
+    for (SqliteProfile profile : SqliteProfile.values()) {
+      String path = tmpDir.resolve("bench-" + profile.id() + ".db").toString();
+      try (VaultManager bench = new VaultManager(path, MASTER_PASSWD)) {
+        bench.setSqliteProfile(profile);
+        assertEquals(VaultStatus.DBConnectionSuccess, bench.connectToDB());
+        assertEquals(VaultStatus.DBCreateVaultSuccess, bench.createVault());
+
+        // every addEntry() is its own commit
+        int commits = 500;
+        long start = System.nanoTime();
+        for (int i = 0; i < commits; i++) {
+          assertEquals(VaultStatus.DBAddEntrySuccess, bench.addEntry("http://site" + i + ".com", "user", "pass" + i));
+        }
+        long commitNanos = (System.nanoTime() - start) / commits;
+
+        // what a refresh does: close the file and open it again with the session
+        int opens = 20;
+        start = System.nanoTime();
+        for (int i = 0; i < opens; i++) {
+          assertEquals(VaultStatus.DBCloseSuccess, bench.suspend());
+          assertEquals(VaultStatus.DBConnectionSuccess, bench.reopen(path));
+          ArrayList<Entry> entries = new ArrayList<Entry>();
+          assertEquals(VaultStatus.DBOpenVaultSuccess, bench.openVault(entries));
+          assertEquals(commits, entries.size());
+        }
+        long openNanos = (System.nanoTime() - start) / opens;
+
+        System.out.printf("%-10s commit %.3f ms, close+open %.2f ms (%d entries)%n", profile.id(),
+            commitNanos / 1e6, openNanos / 1e6, commits);
+      }
+    }
+  }
+
+  @Test
+  public void testScanVaultPagesAndStopsEarly() throws Exception {
+    int count = 2 * VaultConst.ENTRY_PAGE_SIZE + 10;
+    StringBuilder csv = new StringBuilder("url,username,password\n");
+    for (int i = 0; i < count; i++) {
+      csv.append("https://site").append(i).append(".example.com,user,pass").append(i).append('\n');
+    }
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.CSV, csv.toString(), null));
+    assertEquals(VaultStatus.DBDeleteEntrySuccess,
+        vm.deleteEntry(VaultManager.computeId("https://site3.example.com", "user")));
+
+    ArrayList<Long> rowIds = new ArrayList<Long>();
+    ArrayList<String> urls = new ArrayList<String>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.scanVault((rowId, e) -> {
+      rowIds.add(rowId);
+      urls.add(e.getURL());
+      return true;
+    }));
+    assertEquals(count - 1, urls.size());
+    assertFalse(urls.contains("https://site3.example.com"));
+    for (int i = 1; i < rowIds.size(); i++) {
+      assertTrue(rowIds.get(i) > rowIds.get(i - 1));
+    }
+
+    // a lookup stops at its entry, and the visitor may write to the vault
+    int[] visited = { 0 };
+    Entry[] found = { null };
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.scanVault((rowId, e) -> {
+      visited[0]++;
+      if (e.getURL().equals("https://site5.example.com")) {
+        found[0] = e;
+        assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://new.example.com", "user", "pass"));
+        return false;
+      }
+      return true;
+    }));
+    assertEquals("pass5", found[0].getPasswd());
+    assertEquals(5, visited[0]);
+
+    // resuming after the last rowid of the first page
+    long resumeAfter = rowIds.get(VaultConst.ENTRY_PAGE_SIZE - 1);
+    ArrayList<String> rest = new ArrayList<String>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.scanVault(resumeAfter, (rowId, e) -> rest.add(e.getURL())));
+    assertEquals(urls.subList(VaultConst.ENTRY_PAGE_SIZE, urls.size()), rest.subList(0, rest.size() - 1));
+    assertEquals("https://new.example.com", rest.get(rest.size() - 1));
+
+    assertEquals(VaultStatus.DBOpenVaultFailure, vm.scanVault((rowId, e) -> {
+      throw new IllegalStateException("visitor failed");
+    }));
+  }
+
+  @Test
+  public void testImportDedupesAndSkipsIncompleteEntries() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://example.com", "alice", "kept"));
+
+    String csv = "name,url,username,password,note\r\n"
+        + "Example,https://example.com,alice,overwritten,\r\n"
+        + "Mail,https://mail.example.com,bob,\"pa,ss \"\"quoted\"\"\",\"two\nlines\"\r\n"
+        + "No url,,carol,secret,\r\n"
+        + "Mail,https://mail.example.com,bob,again,\r\n"
+        + "Broken,https://broken.example.com,,nopass,\r\n";
+    ImportReport report = new ImportReport();
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.CSV, csv, report));
+    assertEquals(2, report.getImported());
+    assertEquals(2, report.getDuplicates());
+    assertEquals(1, report.getSkipped());
+
+    String json = "\uFEFF{\"encrypted\": false, \"folders\": [{\"id\": \"f\", \"name\": \"Work\"}], \"items\": ["
+        + "{\"type\": 1, \"name\": \"Git\", \"notes\": null, \"login\": {\"uris\": [{\"match\": null, "
+        + "\"uri\": \"https://git.example.com\"}, {\"uri\": \"https://other\"}], \"username\": \"dave\", "
+        + "\"password\": \"p\\u00e4ss\\\"w\", \"totp\": null}, \"fields\": [{\"n\": [1, 2.5e3, true]}]},"
+        + "{\"type\": 2, \"name\": \"A note\", \"login\": null}]}";
+    report = new ImportReport();
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.BITWARDEN_JSON, json, report));
+    assertEquals(1, report.getImported());
+    assertEquals(1, report.getSkipped());
+
+    String xml = "<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?><KeePassFile><Root><Group>"
+        + "<Name>Root</Name><Entry><UUID>x</UUID><String><Key>Title</Key><Value>Router</Value></String>"
+        + "<String><Key>UserName</Key><Value>admin</Value></String>"
+        + "<String><Key>Password</Key><Value ProtectInMemory=\"True\">r&amp;uter</Value></String>"
+        + "<String><Key>URL</Key><Value /></String><Times><LastModificationTime>t</LastModificationTime></Times>"
+        + "<History><Entry><String><Key>Title</Key><Value>Old</Value></String></Entry></History></Entry>"
+        + "<Group><Entry><String><Key>UserName</Key><Value>eve</Value></String></Entry></Group></Group></Root>"
+        + "</KeePassFile>";
+    report = new ImportReport();
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.KEEPASS_XML, xml, report));
+    assertEquals(1, report.getImported());
+    assertEquals(1, report.getSkipped());
+
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(entries));
+    assertEquals(5, entries.size());
+    assertEquals("kept", passwdOf(entries, "https://example.com"));
+    assertEquals("pa,ss \"quoted\"", passwdOf(entries, "https://mail.example.com"));
+    assertEquals("p\u00e4ss\"w", passwdOf(entries, "https://git.example.com"));
+    assertEquals("r&uter", passwdOf(entries, "Router"));
+
+    // an entry deleted here and imported again loses its tombstone with the import
+    String routerId = VaultManager.computeId("Router", "admin");
+    assertEquals(VaultStatus.DBDeleteEntrySuccess, vm.deleteEntry(routerId));
+    report = new ImportReport();
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.KEEPASS_XML, xml, report));
+    assertEquals(1, report.getImported());
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM deleted WHERE id = ?")) {
+      ps.setString(1, routerId);
+      try (ResultSet rs = ps.executeQuery()) {
+        assertFalse(rs.next());
+      }
+    }
+    entries.clear();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(entries));
+    assertEquals(5, entries.size());
+    assertEquals("r&uter", passwdOf(entries, "Router"));
+
+    assertEquals(VaultStatus.DBImportFailureBadFormat,
+        importString(ImportFormat.BITWARDEN_JSON, "{\"encrypted\": true, \"data\": \"x\"}", report));
+    assertEquals(VaultStatus.DBImportFailureBadFormat, importString(ImportFormat.BITWARDEN_JSON, "{\"items\": [}", report));
+    assertEquals(VaultStatus.DBImportFailureBadFormat, importString(ImportFormat.CSV, "a,b\r\n1,2", report));
+    assertEquals(ImportFormat.KEEPASS_XML, ImportFormat.forFileName("Export.XML"));
+  }
+
+  @Test
+  public void testImportSpansSeveralBatches() throws Exception {
+    int count = 2 * VaultConst.IMPORT_BATCH_SIZE + 7;
+    StringBuilder csv = new StringBuilder("url,username,password\n");
+    for (int i = 0; i < count; i++) {
+      csv.append("https://site").append(i).append(".example.com,user,pass").append(i).append('\n');
+    }
+
+    ImportReport report = new ImportReport();
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.CSV, csv.toString(), report));
+    assertEquals(count, report.getImported());
+
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(entries));
+    assertEquals(count, entries.size());
+    assertEquals("pass" + (count - 1), passwdOf(entries, "https://site" + (count - 1) + ".example.com"));
+  }
+
+  // ./gradlew test -Dyapm.bench=true
+  @Test
+  @EnabledIfSystemProperty(named = "yapm.bench", matches = "true")
+  public void benchmarkImport() throws Exception {
+    int count = 50_000;
+    StringBuilder csv = new StringBuilder("url,username,password\n");
+    for (int i = 0; i < count; i++) {
+      csv.append("https://site").append(i).append(".example.com,user").append(i).append(",pass").append(i)
+          .append('\n');
+    }
+
+    ImportReport report = new ImportReport();
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.CSV, csv.toString(), report));
+    assertEquals(count, report.getImported());
+    System.out.println("CSV import: " + report);
+  }
+
+  @Test
+  public void testFindByDomainOnlyReadsMatchingRows() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://www.example.com/login", "alice", "pass1"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("login.EXAMPLE.com", "bob", "pass2"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://example.co.uk", "carol", "pass3"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://shop.example.co.uk:8443/", "dave", "pass4"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://10.0.0.1/admin", "root", "pass5"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("example.org", "erin", "pass6"));
+
+    assertEquals("example.co.uk", DomainIndex.domain(DomainIndex.host("https://user@a.b.Example.co.uk.:443/x")));
+    assertEquals(2, findByDomain(vm, "https://EXAMPLE.com").size());
+    assertEquals(2, findByDomain(vm, "foo.example.co.uk").size());
+    assertEquals(1, findByDomain(vm, "10.0.0.1:8080").size());
+    assertEquals(0, findByDomain(vm, "example.net").size());
+    ArrayList<Entry> found = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.findByHost("http://example.com", found));
+    assertEquals(1, found.size());
+    assertEquals("pass1", found.get(0).getPasswd());
+
+    // edits move an entry in the index, deletes drop it
+    assertEquals(VaultStatus.DBEditEntrySuccess, vm.editEntry(VaultManager.computeId("login.EXAMPLE.com", "bob"),
+        "https://login.example.net", "bob", "pass2"));
+    assertEquals(1, findByDomain(vm, "example.com").size());
+    assertEquals("bob", findByDomain(vm, "example.net").get(0).getUsername());
+    assertEquals(VaultStatus.DBDeleteEntrySuccess,
+        vm.deleteEntry(VaultManager.computeId("https://example.co.uk", "carol")));
+    assertEquals("dave", findByDomain(vm, "example.co.uk").get(0).getUsername());
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        Statement st = conn.createStatement();
+        ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM entries WHERE length(host_tag) = 16 "
+            + "AND length(domain_tag) = 16 AND host_tag <> domain_tag")) {
+      assertEquals(2, rs.getInt(1), "Only the subdomain entries should have differing tags");
+    }
+
+    // a vault created on its own has another data key, its rows are re-tagged
+    // under the merged vault's key
+    String otherPath = tmpDir.resolve("other.db").toString();
+    try (VaultManager other = new VaultManager(otherPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, other.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, other.createVault());
+      assertEquals(VaultStatus.DBAddEntrySuccess, other.addEntry("https://vpn.example.com", "frank", "pass7"));
+
+      String mergedPath = tmpDir.resolve("merged.db").toString();
+      assertEquals(VaultStatus.DBMergeSuccess, VaultManager.merge(mergedPath, vm, other));
+      try (VaultManager merged = new VaultManager(mergedPath, MASTER_PASSWD)) {
+        assertEquals(VaultStatus.DBConnectionSuccess, merged.connectToDB());
+        ArrayList<Entry> entries = findByDomain(merged, "example.com");
+        assertEquals(2, entries.size());
+        assertEquals("pass7", passwdOf(entries, "https://vpn.example.com"));
+      }
+    }
+  }
+
+  @Test
+  public void testChangesSinceFollowsTheHighWaterMark() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://a.example.com", "alice", "pass1"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://b.example.com", "bob", "pass2"));
+
+    VaultChanges changes = new VaultChanges();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.changesSince(0, changes));
+    assertEquals(2, changes.getEntries().size());
+    assertTrue(changes.getDeletedIds().isEmpty());
+    long mark = changes.getHighWaterMark();
+    assertTrue(mark > 0);
+
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.changesSince(mark, changes));
+    assertTrue(changes.isEmpty());
+    assertEquals(mark, changes.getHighWaterMark());
+
+    Thread.sleep(5);
+    String oldB = VaultManager.computeId("https://b.example.com", "bob");
+    String oldA = VaultManager.computeId("https://a.example.com", "alice");
+    assertEquals(VaultStatus.DBEditEntrySuccess, vm.editEntry(oldB, "https://b.example.com", "bobby", "pass3"));
+    assertEquals(VaultStatus.DBDeleteEntrySuccess, vm.deleteEntry(oldA));
+
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.changesSince(mark, changes));
+    assertEquals(1, changes.getEntries().size());
+    assertEquals("bobby", changes.getEntries().get(0).getUsername());
+    assertEquals("pass3", changes.getEntries().get(0).getPasswd());
+    assertEquals(2, changes.getDeletedIds().size());
+    assertTrue(changes.getDeletedIds().containsAll(Arrays.asList(oldA, oldB)));
+    assertTrue(changes.getHighWaterMark() > mark);
+
+    // both lookups go through their index
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        Statement st = conn.createStatement()) {
+      for (String[] q : new String[][] { { "entries WHERE timestamp > 0", "entries_timestamp" },
+          { "deleted WHERE deleted_at > 0", "deleted_deleted_at" } }) {
+        try (ResultSet rs = st.executeQuery("EXPLAIN QUERY PLAN SELECT id FROM " + q[0])) {
+          assertTrue(rs.next());
+          assertTrue(rs.getString("detail").contains(q[1]), rs.getString("detail"));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCompactDropsOldTombstonesAndShrinksTheFile() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://old.example.com", "alice", "pass1"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://new.example.com", "bob", "pass2"));
+    String oldId = VaultManager.computeId("https://old.example.com", "alice");
+    String newId = VaultManager.computeId("https://new.example.com", "bob");
+    ArrayList<Attachment> added = new ArrayList<Attachment>();
+    assertEquals(VaultStatus.DBAddAttachmentSuccess, vm.addAttachment(newId, "big.bin",
+        new ByteArrayInputStream(CryptoUtils.generateRandomBytes(4 << 20)), added));
+    assertEquals(VaultStatus.DBDeleteEntrySuccess, vm.deleteEntry(oldId));
+
+    // a vault from before auto_vacuum, with a tombstone past the horizon that
+    // every device has synced past
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        Statement st = conn.createStatement()) {
+      assertEquals("2", pragma(st, "auto_vacuum"), "New vaults should vacuum incrementally");
+      st.execute("PRAGMA auto_vacuum = NONE;");
+      st.execute("VACUUM;");
+      assertEquals(1, st.executeUpdate("UPDATE deleted SET deleted_at = 1 WHERE id = '" + oldId + "'"));
+      st.executeUpdate("INSERT INTO sync_points(device, high_water) VALUES('other', 2)");
+    }
+    assertEquals(VaultStatus.DBDeleteAttachmentSuccess, vm.deleteAttachment(added.get(0).getID()));
+    assertEquals(VaultStatus.DBDeleteEntrySuccess, vm.deleteEntry(newId));
+
+    long pagesBefore;
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        Statement st = conn.createStatement()) {
+      assertTrue(Long.parseLong(pragma(st, "freelist_count")) >= VaultConst.VACUUM_MIN_FREE_PAGES);
+      pagesBefore = Long.parseLong(pragma(st, "page_count"));
+    }
+
+    vm.setTombstoneHorizonMillis(VaultConst.TOMBSTONE_HORIZON_MILLIS);
+    assertEquals(VaultStatus.DBCompactSuccess, vm.compact());
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        Statement st = conn.createStatement()) {
+      assertEquals("2", pragma(st, "auto_vacuum"), "Older vaults should be converted");
+      assertEquals("0", pragma(st, "freelist_count"));
+      assertTrue(Long.parseLong(pragma(st, "page_count")) < pagesBefore / 10);
+      try (ResultSet rs = st.executeQuery("SELECT COUNT(*), SUM(id = '" + oldId + "') FROM deleted")) {
+        assertEquals(2, rs.getInt(1), "The recent entry and attachment tombstones should be kept");
+        assertEquals(0, rs.getInt(2));
+      }
+    }
+  }
+
+  @Test
+  public void testTombstonesExpireOnlyOnceEveryDeviceSyncedPastThem() throws Exception {
+    String goneId = VaultManager.computeId("https://gone.example.com", "carol");
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://gone.example.com", "carol", "pass1"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://kept.example.com", "dave", "pass2"));
+    vm.setDeviceId("a");
+
+    // the cloud copy, and device b's copy of it
+    assertEquals(VaultStatus.DBCloseSuccess, vm.suspend());
+    String cloudPath = tmpDir.resolve("cloud0.db").toString();
+    String bPath = tmpDir.resolve("b.db").toString();
+    Files.copy(Path.of(dbPath), Path.of(cloudPath));
+    Files.copy(Path.of(dbPath), Path.of(bPath));
+    assertEquals(VaultStatus.DBConnectionSuccess, vm.reopen(dbPath));
+
+    // b syncs once, then goes offline
+    String cloud1 = tmpDir.resolve("cloud1.db").toString();
+    try (VaultManager b = device(bPath, "b"); VaultManager cloud = device(cloudPath, null)) {
+      assertEquals(VaultStatus.DBMergeSuccess, VaultManager.merge(cloud1, b, cloud));
+    }
+
+    Thread.sleep(5);
+    assertEquals(VaultStatus.DBDeleteEntrySuccess, vm.deleteEntry(goneId));
+    Thread.sleep(5);
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://later.example.com", "erin", "pass3"));
+
+    // merge() passes every tombstone on, whatever the horizon
+    vm.setTombstoneHorizonMillis(0);
+    String cloud2 = tmpDir.resolve("cloud2.db").toString();
+    try (VaultManager cloud = device(cloud1, null)) {
+      assertEquals(VaultStatus.DBMergeSuccess, VaultManager.merge(cloud2, vm, cloud));
+    }
+    assertEquals(1, queryLong(cloud2, "SELECT COUNT(*) FROM deleted WHERE id = '" + goneId + "'"));
+    assertEquals(2, queryLong(cloud2, "SELECT COUNT(*) FROM sync_points"));
+
+    // b hasn't synced past the delete, so the tombstone stays however old it is
+    try (VaultManager cloud = device(cloud2, null)) {
+      cloud.setTombstoneHorizonMillis(0);
+      assertEquals(VaultStatus.DBCompactSuccess, cloud.compact());
+    }
+    assertEquals(1, queryLong(cloud2, "SELECT COUNT(*) FROM deleted WHERE id = '" + goneId + "'"));
+
+    // b comes back with the entry still in its copy and loses it to the tombstone
+    String cloud3 = tmpDir.resolve("cloud3.db").toString();
+    try (VaultManager b = device(bPath, "b"); VaultManager cloud = device(cloud2, null)) {
+      assertEquals(VaultStatus.DBMergeSuccess, VaultManager.merge(cloud3, b, cloud));
+    }
+    assertEquals(0, queryLong(cloud3, "SELECT COUNT(*) FROM entries WHERE id = '" + goneId + "'"));
+    assertTrue(queryLong(cloud3, "SELECT MIN(high_water) FROM sync_points")
+        > queryLong(cloud3, "SELECT deleted_at FROM deleted WHERE id = '" + goneId + "'"));
+
+    // every device is past it now. Expiry is still off by default
+    try (VaultManager cloud = device(cloud3, null)) {
+      assertEquals(VaultStatus.DBCompactSuccess, cloud.compact());
+      assertEquals(1, queryLong(cloud3, "SELECT COUNT(*) FROM deleted WHERE id = '" + goneId + "'"));
+
+      cloud.setTombstoneHorizonMillis(0);
+      assertEquals(VaultStatus.DBCompactSuccess, cloud.compact());
+      assertEquals(0, queryLong(cloud3, "SELECT COUNT(*) FROM deleted"));
+    }
+
+    // with the tombstone expired, a merge of a's copy still doesn't bring the
+    // entry back, since no device has it any more
+    String cloud4 = tmpDir.resolve("cloud4.db").toString();
+    try (VaultManager cloud = device(cloud3, null)) {
+      assertEquals(VaultStatus.DBMergeSuccess, VaultManager.merge(cloud4, vm, cloud));
+    }
+    try (VaultManager merged = device(cloud4, null)) {
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, merged.openVault(entries));
+      assertEquals(2, entries.size());
+      assertTrue(entries.stream().noneMatch(e -> e.getID().equals(goneId)));
+    }
+  }
+
+  private VaultManager device(String path, String deviceId) {
+    VaultManager device = new VaultManager(path, MASTER_PASSWD);
+    device.setDeviceId(deviceId);
+    assertEquals(VaultStatus.DBConnectionSuccess, device.connectToDB());
+    return device;
+  }
+
+  // a format 1 vault: three CBC ciphertexts per row sharing one iv
+  private static void createLegacyVault(String path, int count) throws Exception {
+    byte[] salt = CryptoUtils.generateRandomBytes(VaultConst.SALT_LENGTH);
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+        Statement st = conn.createStatement()) {
+      conn.setAutoCommit(false);
+      st.executeUpdate("CREATE TABLE metadata (salt TEXT NOT NULL, verification TEXT NOT NULL);");
+      st.executeUpdate("CREATE TABLE entries (id TEXT PRIMARY KEY, url TEXT NOT NULL, username TEXT NOT NULL,"
+          + " password TEXT NOT NULL, iv TEXT NOT NULL, timestamp INTEGER NOT NULL);");
+      st.executeUpdate("CREATE TABLE deleted (id TEXT PRIMARY KEY, deleted_at INTEGER NOT NULL);");
+
+      EncryptedData ver = CryptoUtils.encrypt("vault_verification", MASTER_PASSWD, salt);
+      try (PreparedStatement ps = conn.prepareStatement("INSERT INTO metadata(salt,verification) VALUES(?,?)")) {
+        ps.setString(1, ver.getSalt());
+        ps.setString(2, ver.getCipherText() + ":" + ver.getIV());
+        ps.executeUpdate();
+      }
+
+      SecretKeySpec key = CryptoUtils.deriveKeyFromPasswd(MASTER_PASSWD, salt);
+      try (PreparedStatement ps = conn.prepareStatement(
+          "INSERT INTO entries(id,url,username,password,iv,timestamp) VALUES(?,?,?,?,?,?)")) {
+        for (int i = 0; i < count; i++) {
+          EncryptedData url = CryptoUtils.encrypt("url" + i, key, salt);
+          byte[] iv = Base64.getDecoder().decode(url.getIV());
+          EncryptedData user = CryptoUtils.encrypt("user" + i, key, salt, iv);
+          EncryptedData pass = CryptoUtils.encrypt("pass" + i, key, salt, iv);
+
+          ps.setString(1, VaultManager.computeId("url" + i, "user" + i));
+          ps.setString(2, url.getCipherText());
+          ps.setString(3, user.getCipherText());
+          ps.setString(4, pass.getCipherText());
+          ps.setString(5, url.getIV());
+          ps.setLong(6, i);
+          ps.executeUpdate();
+        }
+      }
+      conn.commit();
+    }
+  }
+
+  private static long queryLong(String path, String sql) throws Exception {
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+        Statement st = conn.createStatement();
+        ResultSet rs = st.executeQuery(sql)) {
+      return rs.getLong(1);
+    }
+  }
+
+  @Test
+  public void testArchiveRestoresEntriesTombstonesAndAttachments() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://example.com", "alice", "pass1"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://example.org", "bob", "p\u00e4ss2"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("https://gone.example.com", "carol", "pass3"));
+    assertEquals(VaultStatus.DBDeleteEntrySuccess,
+        vm.deleteEntry(VaultManager.computeId("https://gone.example.com", "carol")));
+    byte[] content = CryptoUtils.generateRandomBytes(VaultConst.ARCHIVE_CHUNK_SIZE + 1000);
+    ArrayList<Attachment> added = new ArrayList<Attachment>();
+    assertEquals(VaultStatus.DBAddAttachmentSuccess, vm.addAttachment(
+        VaultManager.computeId("https://example.com", "alice"), "key.pem", new ByteArrayInputStream(content), added));
+
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    assertEquals(VaultStatus.DBExportArchiveSuccess, vm.exportArchive(archive));
+    byte[] bytes = archive.toByteArray();
+
+    // restoring into the same vault changes nothing
+    assertEquals(VaultStatus.DBRestoreArchiveSuccess, vm.restoreArchive(new ByteArrayInputStream(bytes)));
+
+    String restoredPath = tmpDir.resolve("restored.db").toString();
+    try (VaultManager restored = new VaultManager(restoredPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, restored.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, restored.createVault());
+
+      // damaged and cut off archives are rejected as a whole
+      byte[] damaged = bytes.clone();
+      damaged[damaged.length - 20] ^= 1;
+      assertEquals(VaultStatus.DBRestoreArchiveFailureBadFormat,
+          restored.restoreArchive(new ByteArrayInputStream(damaged)));
+      assertEquals(VaultStatus.DBRestoreArchiveFailureBadFormat,
+          restored.restoreArchive(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 30))));
+      ArrayList<Entry> entries = new ArrayList<Entry>();
+      assertEquals(VaultStatus.DBOpenVaultSuccess, restored.openVault(entries));
+      assertTrue(entries.isEmpty());
+
+      assertEquals(VaultStatus.DBRestoreArchiveSuccess, restored.restoreArchive(new ByteArrayInputStream(bytes)));
+      assertEquals(VaultStatus.DBOpenVaultSuccess, restored.openVault(entries));
+      assertEquals(2, entries.size());
+      assertEquals("p\u00e4ss2", passwdOf(entries, "https://example.org"));
+
+      ArrayList<Attachment> listed = new ArrayList<Attachment>();
+      assertEquals(VaultStatus.DBListAttachmentsSuccess,
+          restored.listAttachments(VaultManager.computeId("https://example.com", "alice"), listed));
+      assertEquals(1, listed.size());
+      assertEquals(added.get(0).getID(), listed.get(0).getID());
+      assertEquals("key.pem", listed.get(0).getName());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(VaultStatus.DBReadAttachmentSuccess, restored.readAttachment(listed.get(0).getID(), out));
+      assertArrayEquals(content, out.toByteArray());
+    }
+
+    // the tombstone came along
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + restoredPath);
+        PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM deleted WHERE id = ?")) {
+      ps.setString(1, VaultManager.computeId("https://gone.example.com", "carol"));
+      try (ResultSet rs = ps.executeQuery()) {
+        assertTrue(rs.next());
+      }
+    }
+
+    String otherPath = tmpDir.resolve("other.db").toString();
+    try (VaultManager other = new VaultManager(otherPath, WRONG_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, other.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, other.createVault());
+      assertEquals(VaultStatus.DBWrongMasterPasswd, other.restoreArchive(new ByteArrayInputStream(bytes)));
+      assertEquals(VaultStatus.DBRestoreArchiveFailureBadFormat,
+          other.restoreArchive(new ByteArrayInputStream("not an archive".getBytes(StandardCharsets.UTF_8))));
+
+      // a header asking for an absurd KDF is refused before anything is derived
+      byte[] salt = new byte[VaultConst.SALT_LENGTH];
+      byte[] kcv = new byte[32];
+      for (KeyDerivation kdf : new KeyDerivation[] {
+          new Pbkdf2Derivation(Pbkdf2Derivation.ID_SHA256, Integer.MAX_VALUE),
+          new ScryptDerivation(22, 8, 1),
+          new ScryptDerivation(20, 8, 16) }) {
+        byte[] oversized = new VaultArchive.Header(kdf, salt, CipherSuite.fastest(), kcv).encode();
+        assertThrows(IllegalArgumentException.class, () -> VaultArchive.Header.read(new ByteArrayInputStream(oversized)));
+        assertEquals(VaultStatus.DBRestoreArchiveFailureBadFormat,
+            other.restoreArchive(new ByteArrayInputStream(oversized)));
+      }
+      assertFalse(new ScryptDerivation(20, 8, 1).exceedsCalibratedMax(VaultArchive.MAX_KDF_COST));
+      assertFalse(KdfCalibrator.calibrate(Pbkdf2Derivation.legacy(), VaultConst.KDF_TARGET_MILLIS)
+          .exceedsCalibratedMax(VaultArchive.MAX_KDF_COST));
+    }
+  }
+
+  // ./gradlew test -Dyapm.bench=true
+  @Test
+  @EnabledIfSystemProperty(named = "yapm.bench", matches = "true")
+  public void benchmarkArchive() throws Exception {
+    int count = 100_000;
+    StringBuilder csv = new StringBuilder("url,username,password\n");
+    for (int i = 0; i < count; i++) {
+      csv.append("https://site").append(i).append(".example.com,user").append(i).append(",pass").append(i)
+          .append('\n');
+    }
+    assertEquals(VaultStatus.DBImportSuccess, importString(ImportFormat.CSV, csv.toString(), null));
+    csv = null;
+
+    Path archive = tmpDir.resolve("vault.yapmarc");
+    Runtime rt = Runtime.getRuntime();
+    System.gc();
+    long heapBefore = rt.totalMemory() - rt.freeMemory();
+    long start = System.nanoTime();
+    try (OutputStream out = Files.newOutputStream(archive)) {
+      assertEquals(VaultStatus.DBExportArchiveSuccess, vm.exportArchive(out));
+    }
+    long exportNanos = System.nanoTime() - start;
+    long heapAfter = rt.totalMemory() - rt.freeMemory();
+
+    String restoredPath = tmpDir.resolve("restored.db").toString();
+    try (VaultManager restored = new VaultManager(restoredPath, MASTER_PASSWD);
+        InputStream in = Files.newInputStream(archive)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, restored.connectToDB());
+      assertEquals(VaultStatus.DBCreateVaultSuccess, restored.createVault());
+      start = System.nanoTime();
+      assertEquals(VaultStatus.DBRestoreArchiveSuccess, restored.restoreArchive(in));
+    }
+    long restoreNanos = System.nanoTime() - start;
+
+    System.out.printf("archive of %d entries: %d KiB, export %.0f ms (heap %+d KiB), restore %.0f ms%n", count,
+        Files.size(archive) / 1024, exportNanos / 1e6, (heapAfter - heapBefore) / 1024, restoreNanos / 1e6);
+  }
+
+  private VaultStatus importString(ImportFormat format, String content, ImportReport report) {
+    return vm.importEntries(format, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), report);
+  }
+
+  private static ArrayList<Entry> findByDomain(VaultManager manager, String url) {
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, manager.findByDomain(url, entries));
+    return entries;
+  }
+
+  private static String passwdOf(ArrayList<Entry> entries, String url) throws Exception {
+    for (Entry e : entries) {
+      if (e.getURL().equals(url)) {
+        return e.getPasswd();
+      }
+    }
+
+    return null;
+  }
+
+  private static String pragma(Statement st, String name) throws Exception {
+    try (ResultSet rs = st.executeQuery("PRAGMA " + name)) {
+      assertTrue(rs.next());
+      return rs.getString(1);
+    }
+  }
+
+  private byte[] readSecret(String id) throws Exception {
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        PreparedStatement ps = conn.prepareStatement("SELECT secret FROM entries WHERE id = ?")) {
+      ps.setString(1, id);
+      try (ResultSet rs = ps.executeQuery()) {
+        assertTrue(rs.next());
+        return rs.getBytes("secret");
+      }
+    }
+  }
+
+  @Test
+  public void testMasterPasswdIsVerifiedOncePerSession() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+
+    // break the stored key-check value behind the session's back. Writes in the
+    // already verified session don't look at it again
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        Statement st = conn.createStatement()) {
+      assertEquals(1, st.executeUpdate("UPDATE metadata SET kcv = zeroblob(32)"));
+    }
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.org", "user2", "pass2"));
+
+    try (VaultManager other = new VaultManager(dbPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, other.connectToDB());
+      assertEquals(VaultStatus.DBWrongMasterPasswd, other.openVault(new ArrayList<Entry>()),
+          "A new session checks the key-check value");
+    }
+  }
+
+  @Test
+  public void testKeyCheckValueRejectsWrongPasswd() throws Exception {
+    try (VaultManager wrong = new VaultManager(dbPath, WRONG_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, wrong.connectToDB());
+      assertEquals(VaultStatus.DBWrongMasterPasswd, wrong.openVault(new ArrayList<Entry>()));
+      assertEquals(VaultStatus.DBWrongMasterPasswd, wrong.addEntry("http://example.com", "user1", "pass1"));
+    }
+  }
+
+  @Test
+  public void testPasswordIsOnlyDecryptedOnDemand() throws Exception {
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.com", "user1", "pass1"));
+    assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("http://example.org", "user2", "pass2"));
+
+    // corrupt the second password. Opening the vault must still work, only
+    // asking for that password fails
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        PreparedStatement ps = conn.prepareStatement("UPDATE entries SET secret = ? WHERE id = ?")) {
+      ps.setBytes(1, new byte[VaultConst.GCM_IV_LENGTH + 16]);
+      ps.setString(2, VaultManager.computeId("http://example.org", "user2"));
+      assertEquals(1, ps.executeUpdate());
+    }
+
+    vm.setPasswdCacheMillis(60_000);
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(entries));
+    assertEquals(2, entries.size());
+
+    Entry good = entries.get(0).getUsername().equals("user1") ? entries.get(0) : entries.get(1);
+    Entry bad = good == entries.get(0) ? entries.get(1) : entries.get(0);
+
+    assertEquals("user2", bad.getUsername());
+    assertThrows(IllegalStateException.class, bad::getPasswd);
+
+    assertEquals("pass1", good.getPasswd());
+    assertSame(good.getPasswd(), good.getPasswd(), "The plaintext should be cached while the TTL lasts");
+  }
+
+  @Test
+  public void testOpenVaultOnlyDecryptsChangedRows() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      assertEquals(VaultStatus.DBAddEntrySuccess, vm.addEntry("url" + i, "user" + i, "pass" + i));
+    }
+    ArrayList<Entry> first = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(first));
+    ArrayList<Entry> second = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(second));
+    for (int i = 0; i < 4; i++) {
+      assertSame(first.get(i), second.get(i), "Unchanged rows should come from the cache");
+    }
+
+    // the manager's own writes invalidate their ids, even within the same
+    // millisecond
+    assertEquals(VaultStatus.DBEditEntrySuccess,
+        vm.editEntry(VaultManager.computeId("url0", "user0"), "url0", "user0", "new0"));
+    assertEquals(VaultStatus.DBDeleteEntrySuccess, vm.deleteEntry(VaultManager.computeId("url1", "user1")));
+
+    // and a sync replaces rows under its feet, with newer timestamps
+    Thread.sleep(5);
+    try (VaultManager other = new VaultManager(dbPath, MASTER_PASSWD)) {
+      assertEquals(VaultStatus.DBConnectionSuccess, other.connectToDB());
+      assertEquals(VaultStatus.DBAddEntrySuccess, other.addEntry("url2", "user2", "new2"));
+    }
+
+    ArrayList<Entry> third = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(third));
+    assertEquals(3, third.size());
+    assertEquals("new0", passwdOf(third, "url0"));
+    assertEquals("new2", passwdOf(third, "url2"));
+    for (Entry e : third) {
+      assertEquals(e.getURL().equals("url3"), second.contains(e), e.getURL() + " should only be reused if unchanged");
+    }
+
+    vm.setEntryCache(0, VaultConst.ENTRY_CACHE_IDLE_MILLIS);
+    ArrayList<Entry> uncached = new ArrayList<Entry>();
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(uncached));
+    assertEquals(VaultStatus.DBOpenVaultSuccess, vm.openVault(third));
+    for (int i = 0; i < uncached.size(); i++) {
+      assertNotSame(uncached.get(i), third.get(3 + i));
+    }
+  }
+
   @Test
   public void testDeleteEntrySuccess() throws Exception {
     vm.addEntry("url", "user", "pwd");